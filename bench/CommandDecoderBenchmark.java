@@ -0,0 +1,109 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+public class CommandDecoderBenchmark {
+	/* Benchmark parameters */
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 5;
+	private static final int COMMANDS_PER_ROUND = 2000000;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* A typical pipelined batch from a mail client */
+	private static final String[] LINES = { "STAT\r\n", "UIDL\r\n",
+			"LIST 12\r\n", "RETR 12\r\n", "TOP 7 20\r\n", "DELE 12\r\n",
+			"NOOP\r\n", "retr 1234\r\n" };
+
+	/* Result sink that stops the JIT from removing the parsing */
+	private static long blackhole;
+
+	/**
+	 * Compares the allocation and time per command of the byte-level command
+	 * decoder with the previous string-based parsing
+	 *
+	 * @param args
+	 *            not used
+	 */
+	public static void main(String[] args) {
+		byte[][] lines = new byte[LINES.length][];
+		for (int i = 0; i < LINES.length; i++) {
+			lines[i] = LINES[i].getBytes(CHARSET);
+		}
+		Command command = new Command();
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			decodeBytes(lines, command);
+			decodeString(lines);
+		}
+
+		for (int i = 0; i < ROUNDS; i++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			decodeBytes(lines, command);
+			long time = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			report("bytes ", time, bytes);
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			decodeString(lines);
+			time = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			report("string", time, bytes);
+		}
+		System.out.println("(checksum " + blackhole + ")");
+	}
+
+	/**
+	 * Decodes the command lines with the reusable byte-level decoder
+	 */
+	private static void decodeBytes(byte[][] lines, Command command) {
+		long sum = 0;
+		for (int i = 0; i < COMMANDS_PER_ROUND; i++) {
+			byte[] line = lines[i % lines.length];
+			command.decode(line, 0, line.length);
+			sum += command.getVerb().ordinal();
+			if (command.getArgumentCount() > 0) {
+				sum += command.getNumber(0);
+			}
+		}
+		blackhole += sum;
+	}
+
+	/**
+	 * Decodes the command lines the way the interpreter did before the
+	 * byte-level decoder, starting from the decoded string of each line
+	 */
+	private static void decodeString(byte[][] lines) {
+		long sum = 0;
+		for (int i = 0; i < COMMANDS_PER_ROUND; i++) {
+			byte[] line = lines[i % lines.length];
+			String input = new String(line, 0, line.length, CHARSET);
+			input = input.replaceAll("[\r\n]+$", "");
+			String[] cmdArgs = input.split(" ", 2);
+			String in = " " + input;
+			sum += cmdArgs[0].toUpperCase().hashCode() + in.length();
+			if (cmdArgs.length > 1) {
+				sum += Integer.parseInt(cmdArgs[1].split(" ")[0]);
+			}
+		}
+		blackhole += sum;
+	}
+
+	/**
+	 * Prints the cost per command of a round
+	 */
+	private static void report(String name, long time, long bytes) {
+		System.out.printf("%s %8.1f ns/command %8.1f bytes/command%n", name,
+				(double) time / COMMANDS_PER_ROUND, (double) bytes
+						/ COMMANDS_PER_ROUND);
+	}
+
+	/**
+	 * Gets the number of bytes allocated by the current thread
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+}
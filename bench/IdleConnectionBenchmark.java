@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IdleConnectionBenchmark {
+	/* Benchmark settings */
+	private static final int PORT = 11110;
+	private static final int TIMEOUT = 3600;
+	private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 20000;
+	private static final String USAGE = "Usage: java IdleConnectionBenchmark platform|virtual count...";
+
+	/**
+	 * Measures the cost of idle sessions. A server is started in-process on an
+	 * in-memory database using the requested thread mode, then for each count
+	 * that many connections are opened and left idle after the greeting. For
+	 * each count the benchmark reports the time to establish the connections,
+	 * the heap and platform threads in use, and the latency of a complete
+	 * USER/PASS/STAT/QUIT session run alongside the idle connections.
+	 *
+	 * Run each thread mode in its own JVM, with a file descriptor limit of at
+	 * least twice the largest count (ulimit -n), for example:
+	 *
+	 * java -cp bin IdleConnectionBenchmark virtual 1000 10000 50000
+	 *
+	 * @param args
+	 *            the thread mode followed by the connection counts
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println(USAGE);
+			System.exit(Pop3Server.ERROR_STATUS);
+		}
+
+		/* Start the server */
+		System.setProperty("pop3.server.mode", "classic");
+		System.setProperty("pop3.server.threads", args[0]);
+		System.setProperty("pop3.limits.maxSessions", "1000000");
+		System.setProperty("pop3.limits.maxPerAddress", "0");
+		System.setProperty("pop3.timeout.firstCommand", String.valueOf(TIMEOUT));
+		final Pop3Server server = new Pop3Server(PORT, TIMEOUT,
+				new InMemoryDatabase(1, 10, 4096));
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		}, "Pop3Server");
+		serverThread.start();
+		Thread.sleep(500);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.out.println("mode\tconnections\tconnect_ms\theap_mb\tplatform_threads\tprobe_ms");
+
+		for (int i = 1; i < args.length; i++) {
+			int count = Integer.parseInt(args[i]);
+			List<Socket> sockets = new ArrayList<>(count);
+
+			/* Open the idle connections and wait for each greeting */
+			long start = System.nanoTime();
+			for (int c = 0; c < count; c++) {
+				Socket socket = new Socket();
+				socket.bind(new InetSocketAddress("127.0.0."
+						+ (2 + c / CONNECTIONS_PER_SOURCE_ADDRESS), 0));
+				socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+				sockets.add(socket);
+				readLine(socket);
+			}
+			long connectTime = (System.nanoTime() - start) / 1000000;
+
+			/* Measure the resources held by the idle sessions */
+			System.gc();
+			Thread.sleep(1000);
+			long heap = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+			int platformThreads = threads.getThreadCount();
+
+			/* Run a complete session alongside the idle ones */
+			start = System.nanoTime();
+			try (Socket probe = new Socket("127.0.0.1", PORT)) {
+				PrintWriter out = new PrintWriter(probe.getOutputStream(), true);
+				readLine(probe);
+				out.print("USER user1\r\nPASS " + InMemoryDatabase.PASSWORD
+						+ "\r\nSTAT\r\nQUIT\r\n");
+				out.flush();
+				for (int r = 0; r < 4; r++) {
+					readLine(probe);
+				}
+			}
+			long probeTime = (System.nanoTime() - start) / 1000;
+
+			System.out.println(args[0] + "\t" + count + "\t" + connectTime
+					+ "\t" + heap + "\t" + platformThreads + "\t"
+					+ (probeTime / 1000.0));
+
+			/* Close the connections and let the sessions end */
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			sockets.clear();
+			Thread.sleep(2000);
+		}
+
+		server.stop();
+		serverThread.join();
+		System.exit(0);
+	}
+
+	/**
+	 * Reads a single response line from a connection, one byte at a time so
+	 * that nothing past the line is consumed
+	 *
+	 * @param socket
+	 *            the connection
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	private static void readLine(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new IOException("Connection closed by the server");
+			}
+		}
+	}
+}
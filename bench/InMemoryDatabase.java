@@ -0,0 +1,275 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class InMemoryDatabase implements IDatabase {
+	/* Password of every generated user */
+	public static final String PASSWORD = "password";
+
+	/* Encoding of message content */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Database members */
+	private Map<String, Maildrop> maildrops;
+	private Map<Integer, Maildrop> maildropsById;
+
+	/**
+	 * A user's maildrop. Messages are kept in storage id order.
+	 */
+	private static class Maildrop {
+		private int id;
+		private boolean locked;
+		private volatile List<Message> messages = new ArrayList<>();
+	}
+
+	/**
+	 * A stored message
+	 */
+	private static class Message {
+		private int id;
+		private String content;
+		private byte[] bytes;
+		private String uidl;
+	}
+
+	/**
+	 * Creates a database of generated users named user1 to userN, each with
+	 * the same number of messages of roughly the specified size
+	 *
+	 * @param users
+	 *            the number of users
+	 * @param messagesPerUser
+	 *            the number of messages in each maildrop
+	 * @param messageSize
+	 *            the approximate size of each message in octets
+	 */
+	public InMemoryDatabase(int users, int messagesPerUser, int messageSize) {
+		maildrops = new ConcurrentHashMap<>();
+		maildropsById = new ConcurrentHashMap<>();
+
+		int mailId = 1;
+		for (int u = 1; u <= users; u++) {
+			Maildrop maildrop = new Maildrop();
+			maildrop.id = u;
+			for (int m = 0; m < messagesPerUser; m++, mailId++) {
+				Message message = new Message();
+				message.id = mailId;
+				message.content = generateMessage(mailId, messageSize);
+				message.bytes = message.content.getBytes(CHARSET);
+				message.uidl = "uidl-" + mailId;
+				maildrop.messages.add(message);
+			}
+			maildrops.put("user" + u, maildrop);
+			maildropsById.put(u, maildrop);
+		}
+	}
+
+	/**
+	 * Generates a message with a few headers and a body of 72 character lines
+	 *
+	 * @param id
+	 *            the storage id of the message
+	 * @param size
+	 *            the approximate size of the message in octets
+	 * @return the message content
+	 */
+	public static String generateMessage(int id, int size) {
+		StringBuilder message = new StringBuilder(size + 128);
+		message.append("From: sender@example.com\n");
+		message.append("To: user@example.com\n");
+		message.append("Subject: Generated message ").append(id).append('\n');
+		message.append("Message-ID: <").append(id).append("@example.com>\n\n");
+
+		int line = 0;
+		while (message.length() < size) {
+			message.append(line % 10 == 0 ? "." : "");
+			message.append("Body line ").append(line++).append(' ');
+			while (message.length() % 72 != 0) {
+				message.append('x');
+			}
+			message.append('\n');
+		}
+		return message.toString();
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		Maildrop maildrop = maildrops.get(username);
+		if (maildrop == null) {
+			return null;
+		}
+		synchronized (maildrop) {
+			return new Account(maildrop.id, PASSWORD, maildrop.locked);
+		}
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		synchronized (maildrop) {
+			if (maildrop.locked) {
+				return false;
+			}
+			maildrop.locked = true;
+			return true;
+		}
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		synchronized (maildrop) {
+			maildrop.locked = false;
+		}
+	}
+
+	@Override
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		Set<Integer> deleted = new HashSet<>();
+		for (int mailId : mailIds) {
+			deleted.add(mailId);
+		}
+
+		synchronized (maildrop) {
+			List<Message> kept = new ArrayList<>();
+			for (Message message : maildrop.messages) {
+				if (!deleted.contains(message.id)) {
+					kept.add(message);
+				}
+			}
+
+			/* Leave the maildrop unchanged unless every message was found */
+			if (maildrop.messages.size() - kept.size() != mailIds.length) {
+				return -1;
+			}
+			maildrop.messages = kept;
+		}
+		return mailIds.length;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		synchronized (maildrop) {
+			return maildrop.messages.size();
+		}
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		int size = 0;
+		synchronized (maildrop) {
+			for (Message message : maildrop.messages) {
+				size += message.content.length();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		if (maildrop == null) {
+			return null;
+		}
+
+		MaildropIndex index = new MaildropIndex(maildrop.id);
+		synchronized (maildrop) {
+			for (Message message : maildrop.messages) {
+				index.add(message.id, message.content.length(), message.uidl);
+			}
+		}
+		return index;
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		Message message = find(maildropId, mailId);
+		return (message == null) ? null : message.content;
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId) {
+		return null;
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId) {
+		return null;
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		Message message = find(maildropId, mailId);
+		if (message == null) {
+			return false;
+		}
+		out.write(message.bytes);
+		return true;
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		Message message = find(maildropId, mailId);
+		if (message == null) {
+			return false;
+		}
+		MessageTop.write(new ByteArrayInputStream(message.bytes), -1, lines,
+				out);
+		return true;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Finds a message by its storage id
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message
+	 * @return the message, null if it doesn't exist
+	 */
+	private Message find(int maildropId, int mailId) {
+		Maildrop maildrop = maildropsById.get(maildropId);
+		if (maildrop == null) {
+			return null;
+		}
+
+		/* Messages are stored in id order */
+		List<Message> messages = maildrop.messages;
+		int low = 0, high = messages.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = messages.get(mid).id;
+			if (id < mailId) {
+				low = mid + 1;
+			} else if (id > mailId) {
+				high = mid - 1;
+			} else {
+				return messages.get(mid);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class InterpreterBenchmark {
+	/* Benchmark parameters */
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final long DEFAULT_ROUND_MILLIS = 1000;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Maildrop sizes for LIST and UIDL, and message sizes for TOP and RETR */
+	private static final int[] MAILDROP_SIZES = { 10, 1000, 50000 };
+	private static final int[] TOP_MESSAGE_SIZES = { 1024, 1024 * 1024,
+			50 * 1024 * 1024 };
+	private static final int[] RETR_MESSAGE_SIZES = { 1024, 64 * 1024,
+			1024 * 1024 };
+	private static final int LIST_MESSAGE_SIZE = 2048;
+	private static final int TOP_LINES = 10;
+
+	/* Commands of a typical session, excluding the large responses */
+	private static final String[] COMMAND_LINES = { "STAT\r\n", "LIST 1\r\n",
+			"UIDL 1\r\n", "NOOP\r\n", "DELE 1\r\n", "RSET\r\n",
+			"list 1\r\n", "RETR 99\r\n", "BOGUS\r\n" };
+
+	/* Benchmark that must report no allocation */
+	private static final String ALLOCATION_FREE = "handleInput";
+
+	/**
+	 * A measured operation
+	 */
+	private interface Operation {
+		public void run() throws IOException;
+	}
+
+	/* Result sink that stops the JIT from removing the work */
+	private static long blackhole;
+
+	/* Number of failed allocation checks */
+	private static int failures;
+
+	/**
+	 * Measures the time, heap allocation and response size per operation of
+	 * the interpreter hot paths: command handling, LIST and UIDL for small to
+	 * very large maildrops, TOP on small to very large messages and RETR. The
+	 * interpreter runs against InMemoryDatabase and writes to a sink that
+	 * discards the response, so only the server's own work is measured.
+	 * Short commands are decoded and answered through the StreamResponseSink
+	 * used by sessions, and must not allocate; the exit status is non-zero
+	 * if they do.
+	 *
+	 * @param args
+	 *            an optional substring selecting the benchmarks to run, and
+	 *            an optional round length in milliseconds
+	 * @throws IOException
+	 *             if a response cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		String filter = (args.length > 0) ? args[0] : "";
+		long roundMillis = (args.length > 1) ? Long.parseLong(args[1])
+				: DEFAULT_ROUND_MILLIS;
+
+		System.out.printf("%-24s %14s %14s %14s%n", "benchmark", "ns/op",
+				"alloc B/op", "response B/op");
+		for (String name : names()) {
+			if (name.contains(filter)) {
+				run(name, roundMillis);
+			}
+		}
+		System.out.println("(checksum " + blackhole + ")");
+		if (failures > 0) {
+			System.exit(Pop3Server.ERROR_STATUS);
+		}
+	}
+
+	/**
+	 * Lists the benchmarks in the order they are run
+	 *
+	 * @return the benchmark names
+	 */
+	private static List<String> names() {
+		List<String> names = new ArrayList<>();
+		names.add("handleInput");
+		for (int size : MAILDROP_SIZES) {
+			names.add("LIST/" + size);
+		}
+		for (int size : MAILDROP_SIZES) {
+			names.add("UIDL/" + size);
+		}
+		for (int size : TOP_MESSAGE_SIZES) {
+			names.add("TOP/" + size);
+		}
+		for (int size : RETR_MESSAGE_SIZES) {
+			names.add("RETR/" + size);
+		}
+		return names;
+	}
+
+	/**
+	 * Sets up and measures a benchmark, printing the median round
+	 *
+	 * @param name
+	 *            the benchmark name
+	 * @param roundMillis
+	 *            the length of each round, in milliseconds
+	 * @throws IOException
+	 *             if a response cannot be written
+	 */
+	private static void run(String name, long roundMillis) throws IOException {
+		final CountingSink sink = new CountingSink();
+		Operation operation = setUp(name, sink);
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			measure(operation, roundMillis);
+		}
+
+		double[] time = new double[ROUNDS];
+		double[] allocated = new double[ROUNDS];
+		double[] written = new double[ROUNDS];
+		for (int i = 0; i < ROUNDS; i++) {
+			long bytes = sink.count;
+			long[] result = measure(operation, roundMillis);
+			time[i] = (double) result[0] / result[1];
+			allocated[i] = (double) result[2] / result[1];
+			written[i] = (double) (sink.count - bytes) / result[1];
+		}
+		System.out.printf("%-24s %14.1f %14.1f %14.1f%n", name, median(time),
+				median(allocated), median(written));
+		blackhole += sink.count;
+
+		/* Anything that rounds to 0 bytes per command is round overhead */
+		if (name.equals(ALLOCATION_FREE) && median(allocated) >= 0.5) {
+			System.out.println("FAILED " + name + " allocates on every command");
+			failures++;
+		}
+	}
+
+	/**
+	 * Creates the operation of a benchmark, with a session logged in to a
+	 * maildrop of the needed size
+	 *
+	 * @param name
+	 *            the benchmark name
+	 * @param sink
+	 *            the sink responses are written to
+	 * @return the operation to measure
+	 * @throws IOException
+	 *             if the session cannot be set up
+	 */
+	private static Operation setUp(String name, final CountingSink sink)
+			throws IOException {
+		int slash = name.indexOf('/');
+		final String verb = (slash < 0) ? name : name.substring(0, slash);
+		int size = (slash < 0) ? 1 : Integer.parseInt(name
+				.substring(slash + 1));
+
+		InMemoryDatabase database;
+		if (verb.equals("LIST") || verb.equals("UIDL")) {
+			database = new InMemoryDatabase(1, size, LIST_MESSAGE_SIZE);
+		} else {
+			database = new InMemoryDatabase(1, 1, size);
+		}
+		final CommandInterpreter interpreter = new CommandInterpreter(
+				database);
+		final Command command = new Command();
+		handle(interpreter, command, "USER user1\r\n", sink);
+		handle(interpreter, command, "PASS " + InMemoryDatabase.PASSWORD
+				+ "\r\n", sink);
+
+		if (verb.equals(ALLOCATION_FREE)) {
+			/* Every command line is decoded again, as it is when received */
+			final byte[][] lines = new byte[COMMAND_LINES.length][];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = COMMAND_LINES[i].getBytes(CHARSET);
+			}
+			final IResponseSink session = new StreamResponseSink(sink);
+			return new Operation() {
+				private int next;
+
+				@Override
+				public void run() throws IOException {
+					byte[] line = lines[next++ % lines.length];
+					command.decode(line, 0, line.length);
+					interpreter.handleInput(command, session);
+				}
+			};
+		}
+
+		/* LIST and UIDL list the whole maildrop, TOP and RETR read message 1 */
+		String request = verb;
+		if (verb.equals("TOP")) {
+			request = "TOP 1 " + TOP_LINES;
+		} else if (verb.equals("RETR")) {
+			request = "RETR 1";
+		}
+		final byte[] line = request.getBytes(CHARSET);
+		return new Operation() {
+			@Override
+			public void run() throws IOException {
+				command.decode(line, 0, line.length);
+				interpreter.handleInput(command, sink);
+			}
+		};
+	}
+
+	/**
+	 * Runs an operation repeatedly for a round
+	 *
+	 * @param operation
+	 *            the operation to run
+	 * @param roundMillis
+	 *            the length of the round, in milliseconds
+	 * @return the elapsed nanoseconds, the number of operations and the bytes
+	 *         allocated
+	 * @throws IOException
+	 *             if a response cannot be written
+	 */
+	private static long[] measure(Operation operation, long roundMillis)
+			throws IOException {
+		long deadline = roundMillis * 1000000L;
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed, n = 0;
+		do {
+			operation.run();
+			n++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < deadline);
+		bytes = allocatedBytes() - bytes;
+		return new long[] { elapsed, n, bytes };
+	}
+
+	/**
+	 * Decodes and handles a command line
+	 */
+	private static void handle(CommandInterpreter interpreter,
+			Command command, String line, IResponseSink sink)
+			throws IOException {
+		byte[] bytes = line.getBytes(CHARSET);
+		command.decode(bytes, 0, bytes.length);
+		interpreter.handleInput(command, sink);
+	}
+
+	/**
+	 * Gets the median of the round results
+	 */
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * Gets the number of bytes allocated by the current thread
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	/**
+	 * Response sink that counts and discards everything written to it
+	 */
+	private static final class CountingSink extends OutputStream implements
+			IResponseSink {
+		private long count;
+
+		@Override
+		public void writeLine(String line) throws IOException {
+			count += line.length() + 2;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this;
+		}
+
+		@Override
+		public void write(ByteBuffer data) {
+			count += data.remaining();
+			data.position(data.limit());
+		}
+
+		@Override
+		public void transferFrom(FileChannel file, long position, long count) {
+			this.count += count;
+		}
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,599 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+public class LoadGenerator {
+	/* System Messages */
+	private static final String USAGE = "Usage: java LoadGenerator mix clients seconds, where mix is poll, download, preview or weights such as poll=80,download=10,preview=10";
+	private static final String ERROR_INVALID_MIX = "An invalid mix was specified: ";
+	private static final String ERROR_INVALID_STORAGE = "An invalid storage was specified. Storage must be memory or server.";
+	private static final String ERROR_INVALID_TLS = "An invalid TLS mode was specified. Mode must be off, implicit or stls.";
+	private static final String ERROR_RESPONSE = "Negative response";
+
+	/* Load settings */
+	private static final int TIMEOUT = 600;
+	private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+	private static final int CLIENT_STACK_SIZE = 256 * 1024;
+	private static final int LINE_BUFFER_SIZE = 128;
+	private static final Charset CHARSET = Charset.forName("US-ASCII");
+	private static final String STORAGE_MEMORY = "memory";
+	private static final String STORAGE_SERVER = "server";
+	private static final String TLS_OFF = "off";
+	private static final String TLS_IMPLICIT = "implicit";
+	private static final String TLS_STLS = "stls";
+
+	/**
+	 * The steps of a session, each timed from sending the command to reading
+	 * the end of its response. CONNECT is timed to the greeting, after the
+	 * handshake with implicit TLS, and STLS to the end of the handshake.
+	 */
+	private enum Step {
+		CONNECT, STLS, USER, PASS, STAT, LIST, UIDL, TOP, RETR, QUIT
+	}
+
+	/**
+	 * The scripted sessions a client chooses between
+	 */
+	private enum Scenario {
+		/* USER, PASS, UIDL, QUIT */
+		POLL,
+		/* USER, PASS, STAT, RETR of every message, QUIT */
+		DOWNLOAD,
+		/* USER, PASS, STAT, TOP 0 of every message, QUIT */
+		PREVIEW
+	}
+
+	/* Results shared by every client */
+	private static final LatencyHistogram[] latency = new LatencyHistogram[Step
+			.values().length];
+	private static final StripedCounter[] errors = new StripedCounter[Step
+			.values().length];
+	private static final StripedCounter sessions = new StripedCounter();
+	private static final StripedCounter failedSessions = new StripedCounter();
+	private static final StripedCounter bytesIn = new StripedCounter();
+
+	static {
+		for (int i = 0; i < latency.length; i++) {
+			latency[i] = new LatencyHistogram();
+			errors[i] = new StripedCounter();
+		}
+	}
+
+	/* Client settings */
+	private static int port;
+	private static String password;
+	private static int users;
+	private static long thinkMillis;
+	private static int[] weights;
+	private static String tls;
+	private static SSLSocketFactory tlsSockets;
+	private static volatile long deadline;
+	private static PrintStream report;
+
+	/**
+	 * Drives a number of concurrent scripted POP3 sessions against a server
+	 * started in-process, over loopback, for a fixed time. Each client runs
+	 * sessions back to back, choosing a scenario at random by the weights of
+	 * the mix and logging in as its own user. While the load runs the session
+	 * and command rates, errors, heap and thread count are printed at each
+	 * report interval, and at the end the throughput, error rate and latency
+	 * quantiles of each command.
+	 *
+	 * Further settings are read from system properties:
+	 *
+	 * load.storage, memory for InMemoryDatabase (the default) or server for
+	 * the storage selected by the pop3.* properties, load.users, the number of
+	 * users (default one per client), load.password, load.messages and
+	 * load.messageSize, the maildrop of each in-memory user, load.think, the
+	 * think time between commands in milliseconds, load.rampUp, the time over
+	 * which the clients are started in milliseconds, load.report, the report
+	 * interval in seconds, load.port, load.serverLog, true to keep the
+	 * server's console messages, which are otherwise discarded, and load.tls,
+	 * off (the default), implicit or stls. With TLS the server needs a key
+	 * store, pop3.tls.keystore; the clients trust any certificate and share a
+	 * session cache, so every session after a client's first can resume.
+	 *
+	 * @param args
+	 *            the mix, the number of clients and the duration in seconds
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println(USAGE);
+			System.exit(Pop3Server.ERROR_STATUS);
+		}
+		weights = parseMix(args[0]);
+		int clients = Integer.parseInt(args[1]);
+		int seconds = Integer.parseInt(args[2]);
+
+		port = Integer.getInteger("load.port", 11120);
+		users = Integer.getInteger("load.users", clients);
+		password = System.getProperty("load.password",
+				InMemoryDatabase.PASSWORD);
+		thinkMillis = Integer.getInteger("load.think", 0);
+		int rampUpMillis = Integer.getInteger("load.rampUp", 1000);
+		int reportSeconds = Integer.getInteger("load.report", 5);
+		tls = System.getProperty("load.tls", TLS_OFF);
+		if (tls.equals(TLS_IMPLICIT)) {
+			setDefault("pop3.tls.mode", TlsContext.MODE_IMPLICIT);
+			tlsSockets = trustingSocketFactory();
+		} else if (tls.equals(TLS_STLS)) {
+			setDefault("pop3.tls.mode", TlsContext.MODE_STARTTLS);
+			tlsSockets = trustingSocketFactory();
+		} else if (!tls.equals(TLS_OFF)) {
+			throw new IllegalArgumentException(ERROR_INVALID_TLS);
+		}
+
+		/* Keep the server's per-session messages out of the report */
+		report = System.out;
+		if (!Boolean.getBoolean("load.serverLog")) {
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+
+		/* Start the server, leaving room for every client and its logins */
+		setDefault("pop3.limits.maxSessions", String.valueOf(clients * 2));
+		setDefault("pop3.limits.maxPerAddress", "0");
+		setDefault("pop3.auth.throttle", "false");
+		IDatabase database;
+		String storage = System.getProperty("load.storage", STORAGE_MEMORY);
+		if (storage.equals(STORAGE_MEMORY)) {
+			database = new InMemoryDatabase(users, Integer.getInteger(
+					"load.messages", 10), Integer.getInteger(
+					"load.messageSize", 4096));
+		} else if (storage.equals(STORAGE_SERVER)) {
+			database = null;
+		} else {
+			throw new IllegalArgumentException(ERROR_INVALID_STORAGE);
+		}
+		final Pop3Server server = new Pop3Server(port, TIMEOUT, database);
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.run();
+			}
+		}, "Pop3Server");
+		serverThread.start();
+		awaitServer();
+
+		/* Start the clients, spread over the ramp-up time */
+		long start = System.nanoTime();
+		deadline = start + seconds * 1000000000L;
+		Thread[] threads = new Thread[clients];
+		for (int c = 0; c < clients; c++) {
+			final int user = 1 + c % users;
+			final long delay = (long) rampUpMillis * c / clients;
+			threads[c] = new Thread(null, new Runnable() {
+				@Override
+				public void run() {
+					runClient(user, delay);
+				}
+			}, "LoadClient-" + c, CLIENT_STACK_SIZE);
+			threads[c].start();
+		}
+
+		/* Report until the deadline */
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		report.println("time_s\tsessions/s\tcommands/s\terrors\theap_mb\tthreads");
+		long lastSessions = 0, lastCommands = 0, lastTime = start;
+		while (System.nanoTime() < deadline) {
+			Thread.sleep(Math.min(reportSeconds * 1000L,
+					Math.max(1, (deadline - System.nanoTime()) / 1000000)));
+			long now = System.nanoTime();
+			long total = sessions.sum();
+			long commands = commands();
+			double interval = (now - lastTime) / 1e9;
+			report.printf(Locale.ROOT, "%.0f\t%.1f\t%.1f\t%d\t%d\t%d%n",
+					(now - start) / 1e9, (total - lastSessions) / interval,
+					(commands - lastCommands) / interval, errors(),
+					memory.getHeapMemoryUsage().getUsed() / (1024 * 1024),
+					threadBean.getThreadCount());
+			lastSessions = total;
+			lastCommands = commands;
+			lastTime = now;
+		}
+
+		/* Let the sessions in progress finish, rates are over the load window */
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double drain = (System.nanoTime() - deadline) / 1e9;
+		report(args[0], clients, seconds, drain);
+
+		server.stop();
+		serverThread.join();
+		System.exit(0);
+	}
+
+	/**
+	 * Parses a mix into cumulative weights indexed by scenario
+	 *
+	 * @param mix
+	 *            a scenario name, or comma separated name=weight pairs
+	 * @return the cumulative weights
+	 */
+	private static int[] parseMix(String mix) {
+		int[] parsed = new int[Scenario.values().length];
+		try {
+			for (String part : mix.split(",")) {
+				int equals = part.indexOf('=');
+				String name = (equals < 0) ? part : part.substring(0, equals);
+				int weight = (equals < 0) ? 1 : Integer.parseInt(part
+						.substring(equals + 1).trim());
+				parsed[Scenario.valueOf(name.trim().toUpperCase(Locale.ROOT))
+						.ordinal()] += weight;
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(ERROR_INVALID_MIX + mix);
+		}
+
+		for (int i = 1; i < parsed.length; i++) {
+			parsed[i] += parsed[i - 1];
+		}
+		if (parsed[parsed.length - 1] <= 0) {
+			throw new IllegalArgumentException(ERROR_INVALID_MIX + mix);
+		}
+		return parsed;
+	}
+
+	/**
+	 * Sets a system property unless it was given on the command line
+	 */
+	private static void setDefault(String key, String value) {
+		if (System.getProperty(key) == null) {
+			System.setProperty(key, value);
+		}
+	}
+
+	/**
+	 * Waits until the server accepts connections, which takes longer when it
+	 * loads a key store
+	 */
+	private static void awaitServer() throws InterruptedException {
+		long limit = System.nanoTime() + SOCKET_TIMEOUT_MILLIS * 1000000L;
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch (IOException e) {
+				if (System.nanoTime() > limit) {
+					return;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Creates a factory of client TLS sockets that accept any certificate, so
+	 * a self-signed test certificate can be used. The sockets share the
+	 * client session cache of the factory.
+	 */
+	private static SSLSocketFactory trustingSocketFactory()
+			throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509TrustManager() {
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain,
+					String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain,
+					String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, null);
+		return context.getSocketFactory();
+	}
+
+	/**
+	 * Runs TLS over a connected socket, completing the handshake
+	 */
+	private static Socket startTls(Socket socket) throws IOException {
+		SSLSocket secure = (SSLSocket) tlsSockets.createSocket(socket,
+				"127.0.0.1", port, true);
+		secure.setUseClientMode(true);
+		secure.startHandshake();
+		return secure;
+	}
+
+	/**
+	 * Runs sessions back to back until the deadline
+	 *
+	 * @param user
+	 *            the number of the user to log in as
+	 * @param delay
+	 *            the time to wait before the first session, in milliseconds
+	 */
+	private static void runClient(int user, long delay) {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		byte[] line = new byte[LINE_BUFFER_SIZE];
+		while (System.nanoTime() < deadline) {
+			int pick = random.nextInt(weights[weights.length - 1]);
+			Scenario scenario = Scenario.values()[0];
+			for (int i = 0; pick >= weights[i]; i++) {
+				scenario = Scenario.values()[i + 1];
+			}
+
+			if (runSession(scenario, user, line)) {
+				sessions.increment();
+			} else {
+				failedSessions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Runs a single scripted session. The session ends at the first error,
+	 * which is counted against the step that failed.
+	 *
+	 * @param scenario
+	 *            the script to run
+	 * @param user
+	 *            the number of the user to log in as
+	 * @param line
+	 *            a buffer for response lines
+	 * @return true if every step succeeded
+	 */
+	private static boolean runSession(Scenario scenario, int user, byte[] line) {
+		Step step = Step.CONNECT;
+		long start = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress("127.0.0.1", port),
+					SOCKET_TIMEOUT_MILLIS);
+			if (tls.equals(TLS_IMPLICIT)) {
+				socket = startTls(socket);
+			}
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			expectOk(in, line);
+			latency[step.ordinal()].record(System.nanoTime() - start);
+
+			if (tls.equals(TLS_STLS)) {
+				step = Step.STLS;
+				start = System.nanoTime();
+				out.write("STLS\r\n".getBytes(CHARSET));
+				out.flush();
+				expectOk(in, line);
+				socket = startTls(socket);
+				in = new BufferedInputStream(socket.getInputStream());
+				out = socket.getOutputStream();
+				latency[step.ordinal()].record(System.nanoTime() - start);
+			}
+
+			step = Step.USER;
+			command(in, out, line, step, "USER user" + user, false);
+			step = Step.PASS;
+			command(in, out, line, step, "PASS " + password, false);
+
+			if (scenario == Scenario.POLL) {
+				step = Step.UIDL;
+				command(in, out, line, step, "UIDL", true);
+			} else {
+				step = Step.STAT;
+				command(in, out, line, step, "STAT", false);
+				int messages = parseCount(line);
+				for (int i = 1; i <= messages; i++) {
+					if (scenario == Scenario.DOWNLOAD) {
+						step = Step.RETR;
+						command(in, out, line, step, "RETR " + i, true);
+					} else {
+						step = Step.TOP;
+						command(in, out, line, step, "TOP " + i + " 0", true);
+					}
+				}
+			}
+
+			step = Step.QUIT;
+			command(in, out, line, step, "QUIT", false);
+			return true;
+		} catch (IOException e) {
+			errors[step.ordinal()].increment();
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				/* The session is over either way */
+			}
+		}
+	}
+
+	/**
+	 * Sends a command after the think time and reads its response, recording
+	 * the latency
+	 *
+	 * @param multiLine
+	 *            true if a positive response is followed by lines ending in a
+	 *            lone "."
+	 * @throws IOException
+	 *             if the response is negative or the connection fails
+	 */
+	private static void command(InputStream in, OutputStream out, byte[] line,
+			Step step, String command, boolean multiLine) throws IOException {
+		if (thinkMillis > 0) {
+			try {
+				Thread.sleep(thinkMillis);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		long start = System.nanoTime();
+		out.write((command + "\r\n").getBytes(CHARSET));
+		out.flush();
+		expectOk(in, line);
+		if (multiLine) {
+			/* Read to the terminating line, which is ".\r\n" */
+			while (readLine(in, line) != 3 || line[0] != '.') {
+			}
+		}
+		latency[step.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Reads a status line and checks that it is positive
+	 *
+	 * @throws IOException
+	 *             if the response is negative or the connection fails
+	 */
+	private static void expectOk(InputStream in, byte[] line)
+			throws IOException {
+		int length = readLine(in, line);
+		if (length < 3 || line[0] != '+') {
+			throw new IOException(ERROR_RESPONSE);
+		}
+	}
+
+	/**
+	 * Reads a line, keeping as much of its start as fits in the buffer
+	 *
+	 * @param in
+	 *            the connection input
+	 * @param line
+	 *            the buffer for the line
+	 * @return the length of the line, including the line ending
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	private static int readLine(InputStream in, byte[] line) throws IOException {
+		int length = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b < 0) {
+				throw new IOException("Connection closed by the server");
+			}
+			if (length < line.length) {
+				line[length] = (byte) b;
+			}
+			length++;
+		} while (b != '\n');
+		bytesIn.add(length);
+		return length;
+	}
+
+	/**
+	 * Parses the message count from a STAT response held in the line buffer,
+	 * "+OK count size"
+	 */
+	private static int parseCount(byte[] line) {
+		int count = 0;
+		for (int i = 4; i < line.length && line[i] >= '0' && line[i] <= '9'; i++) {
+			count = count * 10 + (line[i] - '0');
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of commands answered, including the greetings
+	 */
+	private static long commands() {
+		long count = 0;
+		for (LatencyHistogram histogram : latency) {
+			count += histogram.getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of failed steps
+	 */
+	private static long errors() {
+		long count = 0;
+		for (StripedCounter counter : errors) {
+			count += counter.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Prints the summary of the run and the latency of each step
+	 */
+	private static void report(String mix, int clients, int elapsed,
+			double drain) {
+		long completed = sessions.sum();
+		long failed = failedSessions.sum();
+		report.println();
+		report.printf(Locale.ROOT,
+				"mix %s, %d clients, %d s, think %d ms, drained in %.1f s%n",
+				mix, clients, elapsed, thinkMillis, drain);
+		report.printf(Locale.ROOT,
+				"sessions %d (%.1f/s), failed %d (%.2f%%), received %.1f MB%n",
+				completed, (double) completed / elapsed, failed, percent(failed,
+						completed + failed), bytesIn.sum() / 1e6);
+		report.println("step\tcount\tper_s\terrors\terror_%\tp50_us\tp99_us\tp999_us\tmax_us");
+		for (Step step : Step.values()) {
+			LatencyHistogram histogram = latency[step.ordinal()];
+			long count = histogram.getCount();
+			long failures = errors[step.ordinal()].sum();
+			if (count + failures == 0) {
+				continue;
+			}
+			report.printf(Locale.ROOT,
+					"%s\t%d\t%.1f\t%d\t%.2f\t%.0f\t%.0f\t%.0f\t%.0f%n", step,
+					count, (double) count / elapsed, failures, percent(failures, count
+							+ failures), histogram.getQuantile(0.5) / 1e3,
+					histogram.getQuantile(0.99) / 1e3,
+					histogram.getQuantile(0.999) / 1e3,
+					histogram.getMax() / 1e3);
+		}
+
+		/* Handshakes counted by the server, which runs in this JVM */
+		if (tlsSockets != null) {
+			Metrics metrics = Metrics.getInstance();
+			long full = metrics.getTlsFullHandshakeLatency().getCount();
+			long resumed = metrics.getTlsResumedHandshakeLatency().getCount();
+			report.printf(Locale.ROOT,
+					"tls handshakes %d full, %d resumed (%.1f%%), %d failed%n",
+					full, resumed, percent(resumed, full + resumed),
+					metrics.getTlsFailures());
+		}
+	}
+
+	/**
+	 * Gets a part of a total as a percentage
+	 */
+	private static double percent(long part, long total) {
+		return (total == 0) ? 0 : 100.0 * part / total;
+	}
+}
@@ -0,0 +1,172 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+
+public class ReplicaRoutingCheck {
+	/* Check settings */
+	private static final String USERNAME = "alex";
+	private static final int LAG = 2;
+	private static final int CHECK_INTERVAL = 200;
+	private static final int POOL_SIZE = 4;
+	private static final int POOL_TIMEOUT = 5000;
+	private static final int LEASE_TTL = 30;
+	private static final String UNREACHABLE = "jdbc:mysql://127.0.0.1:1/mail";
+	private static final String QUERY_RESTORE = "UPDATE `m_Mail` SET `markedForDeletion` = 0 WHERE `iMailID` = ?";
+
+	/* Database settings */
+	private static String primaryUrl;
+	private static String replicaUrl;
+	private static String dbUsername;
+	private static String dbPassword;
+
+	/* Number of failed checks */
+	private static int failures;
+
+	/**
+	 * Checks the read routing of ReplicatedDatabase against two local MySQL
+	 * instances, each loaded from sql/mkdb.sql. The second instance need not
+	 * replicate from the first; without replication it stands in for a
+	 * replica that never catches up, which makes stale reads visible. Two
+	 * server nodes are simulated in one JVM, each with its own Database and
+	 * router, and the user alex is used throughout:
+	 *
+	 * 1. node A reads the login and index from the replica
+	 * 2. node A deletes a message and unlocks the maildrop
+	 * 3. node B, which has never written to the maildrop, locks it within
+	 * the replica lag and must read the index from the primary
+	 * 4. once the lag has passed node B reads from the replica again
+	 * 5. a node whose replica is unreachable reads everything from the
+	 * primary
+	 *
+	 * The deleted message is restored on the primary at the end, so the
+	 * check can be run again once the lag has passed. No server may run
+	 * against the primary meanwhile, as its expunger would remove the
+	 * message. Settings are read from system properties:
+	 * check.primary and check.replica, the JDBC urls (default
+	 * jdbc:mysql://localhost/mail and jdbc:mysql://localhost:3307/mail), and
+	 * check.username and check.password, the database login of both.
+	 *
+	 * java -cp bin:lib/mysql-connector-java-5.1.13-bin.jar ReplicaRoutingCheck
+	 *
+	 * @param args
+	 *            unused
+	 */
+	public static void main(String[] args) throws Exception {
+		primaryUrl = System.getProperty("check.primary",
+				"jdbc:mysql://localhost/mail");
+		replicaUrl = System.getProperty("check.replica",
+				"jdbc:mysql://localhost:3307/mail");
+		dbUsername = System.getProperty("check.username", "pop3");
+		dbPassword = System.getProperty("check.password", "");
+
+		ReplicatedDatabase nodeA = openNode("check-node-a", replicaUrl);
+		ReplicatedDatabase nodeB = openNode("check-node-b", replicaUrl);
+		awaitReplica(nodeA);
+		awaitReplica(nodeB);
+
+		/* 1. Reads of an untouched maildrop go to the replica */
+		Account account = nodeA.getAccount(USERNAME);
+		check("account found", account != null);
+		if (account == null) {
+			System.exit(Pop3Server.ERROR_STATUS);
+		}
+		int maildropId = account.getMaildropId();
+		check("node A locks the maildrop", nodeA.lockMaildrop(maildropId));
+		long replicaReads = nodeA.getReplicaReads();
+		MaildropIndex before = nodeA.getMaildropIndex(maildropId);
+		check("node A reads the index from the replica",
+				nodeA.getReplicaReads() > replicaReads);
+		check("the maildrop has messages", before.size() > 0);
+
+		/* 2. Node A deletes the first message and ends its session */
+		int deletedId = before.mailId(1);
+		check("node A deletes a message",
+				nodeA.deleteMessages(maildropId, new int[] { deletedId }) == 1);
+		nodeA.unlockMaildrop(maildropId);
+
+		try {
+			/* 3. Node B must see the delete made through node A */
+			long primaryReads = nodeB.getPrimaryReads();
+			check("node B locks the maildrop", nodeB.lockMaildrop(maildropId));
+			MaildropIndex after = nodeB.getMaildropIndex(maildropId);
+			check("node B reads the index from the primary",
+					nodeB.getPrimaryReads() > primaryReads);
+			check("node B does not see the deleted message",
+					after.size() == before.size() - 1
+							&& after.mailId(1) != deletedId);
+			nodeB.unlockMaildrop(maildropId);
+
+			/* 4. Once the replicas have had time to catch up, reads return */
+			Thread.sleep(LAG * 1000L + 1500);
+			replicaReads = nodeB.getReplicaReads();
+			check("node B locks the maildrop again",
+					nodeB.lockMaildrop(maildropId));
+			nodeB.getMaildropIndex(maildropId);
+			check("node B reads the index from the replica after the lag",
+					nodeB.getReplicaReads() > replicaReads);
+			nodeB.unlockMaildrop(maildropId);
+
+			/* 5. Without a replica every read goes to the primary */
+			ReplicatedDatabase nodeC = openNode("check-node-c", UNREACHABLE);
+			Thread.sleep(CHECK_INTERVAL * 3);
+			check("node C has no replica available",
+					nodeC.getAvailableReplicas() == 0);
+			check("node C reads the login from the primary",
+					nodeC.getAccount(USERNAME) != null
+							&& nodeC.getReplicaReads() == 0);
+			nodeC.close();
+		} finally {
+			restore(deletedId);
+			nodeA.close();
+			nodeB.close();
+		}
+
+		System.out.println(failures == 0 ? "PASS" : failures + " FAILED");
+		System.exit(failures == 0 ? 0 : Pop3Server.ERROR_STATUS);
+	}
+
+	/**
+	 * Opens a simulated server node over the primary and one replica
+	 */
+	private static ReplicatedDatabase openNode(String nodeId, String url) {
+		Database primary = new Database(primaryUrl, dbUsername, dbPassword,
+				POOL_SIZE, POOL_TIMEOUT, nodeId, LEASE_TTL);
+		DatabaseReader replica = new DatabaseReader(new ConnectionPool(url,
+				dbUsername, dbPassword, POOL_SIZE, POOL_TIMEOUT), null);
+		return new ReplicatedDatabase(primary,
+				new IReadOnlyDatabase[] { replica }, LAG, CHECK_INTERVAL);
+	}
+
+	/**
+	 * Waits for the first health check of a node's replica to pass
+	 */
+	private static void awaitReplica(ReplicatedDatabase node)
+			throws InterruptedException {
+		for (int i = 0; i < 50 && node.getAvailableReplicas() == 0; i++) {
+			Thread.sleep(CHECK_INTERVAL / 2);
+		}
+		check("replica available", node.getAvailableReplicas() == 1);
+	}
+
+	/**
+	 * Brings back the message deleted by the check, before it is expunged
+	 */
+	private static void restore(int mailId) throws Exception {
+		try (Connection connection = DriverManager.getConnection(primaryUrl,
+				dbUsername, dbPassword)) {
+			PreparedStatement query = connection.prepareStatement(QUERY_RESTORE);
+			query.setInt(1, mailId);
+			query.executeUpdate();
+		}
+	}
+
+	/**
+	 * Prints the result of a check
+	 */
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+		if (!passed) {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Compiles the server and the benchmarks, then runs InterpreterBenchmark with
+# fixed heap and GC settings so results can be compared between runs.
+# Arguments are passed to the benchmark: [filter] [round milliseconds]
+set -e
+cd "$(dirname "$0")/.."
+mkdir -p bin
+javac -d bin -cp lib/mysql-connector-java-5.1.13-bin.jar src/*.java bench/*.java
+exec java -server -Xms2g -Xmx2g -XX:+UseParallelGC \
+	-cp bin InterpreterBenchmark "$@"
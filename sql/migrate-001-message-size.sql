@@ -0,0 +1,22 @@
+--
+-- Migrates a database created by an earlier mkdb.sql to store message sizes,
+-- so that STAT and LIST never read message bodies. Run once against an
+-- existing database with the server stopped.
+--
+
+ALTER TABLE `m_Mail`
+  ADD COLUMN `iSize` int(11) NOT NULL DEFAULT '0' COMMENT 'Size of txMailContent in octets, set on insert' AFTER `txMailContent`;
+
+--
+-- Backfill message sizes
+--
+UPDATE `m_Mail` SET `iSize` = LENGTH(`txMailContent`);
+
+--
+-- Triggers for table `m_Mail`
+--
+-- New messages record their size.
+--
+DROP TRIGGER IF EXISTS `m_Mail_bi`;
+CREATE TRIGGER `m_Mail_bi` BEFORE INSERT ON `m_Mail`
+  FOR EACH ROW SET NEW.`iSize` = LENGTH(NEW.`txMailContent`);
@@ -0,0 +1,28 @@
+--
+-- Migrates a database created by an earlier mkdb.sql to store the header
+-- length of each message, so that TOP reads only the header and the lines it
+-- needs. Run once against an existing database after
+-- migrate-001-message-size.sql.
+--
+
+ALTER TABLE `m_Mail`
+  ADD COLUMN `iHeaderLength` int(11) NOT NULL DEFAULT '0' COMMENT 'Characters of txMailContent up to and including the blank line after the header, set on insert' AFTER `iSize`;
+
+--
+-- Backfill header lengths
+--
+UPDATE `m_Mail` SET `iHeaderLength` = LEAST(
+    IF(LOCATE('\n\n', `txMailContent`) > 0, LOCATE('\n\n', `txMailContent`) + 1, CHAR_LENGTH(`txMailContent`)),
+    IF(LOCATE('\r\n\r\n', `txMailContent`) > 0, LOCATE('\r\n\r\n', `txMailContent`) + 3, CHAR_LENGTH(`txMailContent`)));
+
+--
+-- Triggers for table `m_Mail`
+--
+-- New messages record their size and header length.
+--
+DROP TRIGGER IF EXISTS `m_Mail_bi`;
+CREATE TRIGGER `m_Mail_bi` BEFORE INSERT ON `m_Mail`
+  FOR EACH ROW SET NEW.`iSize` = LENGTH(NEW.`txMailContent`),
+  NEW.`iHeaderLength` = LEAST(
+    IF(LOCATE('\n\n', NEW.`txMailContent`) > 0, LOCATE('\n\n', NEW.`txMailContent`) + 1, CHAR_LENGTH(NEW.`txMailContent`)),
+    IF(LOCATE('\r\n\r\n', NEW.`txMailContent`) > 0, LOCATE('\r\n\r\n', NEW.`txMailContent`) + 3, CHAR_LENGTH(NEW.`txMailContent`)));
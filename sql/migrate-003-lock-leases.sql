@@ -0,0 +1,13 @@
+--
+-- Migrates a database created by an earlier mkdb.sql from the tiLocked flag
+-- to maildrop lock leases, so that several server nodes can share the
+-- database. A lease names the node holding it and expires unless the node
+-- renews it. Run once against an existing database after
+-- migrate-002-header-length.sql, with every server stopped.
+--
+
+ALTER TABLE `m_Maildrop`
+  ADD COLUMN `vchLockNode` varchar(64) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'Server node holding the lease on the maildrop, NULL = unlocked' AFTER `vchPassword`,
+  ADD COLUMN `dtLockExpiry` datetime DEFAULT NULL COMMENT 'Time the lease expires unless renewed by its node' AFTER `vchLockNode`,
+  ADD KEY `vchLockNode` (`vchLockNode`),
+  DROP COLUMN `tiLocked`;
@@ -0,0 +1,17 @@
+--
+-- Migrates a database created by an earlier mkdb.sql for deferred expunge.
+-- Messages deleted at QUIT are flagged with markedForDeletion and removed
+-- later by the server in small batches, so the flagged rows are indexed.
+-- Run once against an existing database after migrate-003-lock-leases.sql,
+-- with every server stopped.
+--
+-- Earlier servers flagged messages as soon as DELE was sent, and sessions
+-- that ended without QUIT left them flagged. Those deletions were never
+-- committed, so the flags are cleared before the expunger acts on them.
+--
+
+UPDATE `m_Mail` SET `markedForDeletion` = 0 WHERE `markedForDeletion` = 1;
+
+ALTER TABLE `m_Mail`
+  MODIFY COLUMN `markedForDeletion` boolean NOT NULL DEFAULT 0 COMMENT 'Deleted at QUIT, waiting to be removed by the expunger',
+  ADD KEY `markedForDeletion` (`markedForDeletion`);
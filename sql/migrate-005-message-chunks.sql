@@ -0,0 +1,55 @@
+--
+-- Migrates a database created by an earlier mkdb.sql to keep a copy of each
+-- message in 256 KiB chunk rows, so that RETR streams a message with a
+-- single query instead of re-reading the whole content for every part of
+-- it. Run once against an existing database after
+-- migrate-004-deferred-expunge.sql, with every server stopped.
+--
+
+CREATE TABLE IF NOT EXISTS `m_MailChunk` (
+  `iMailID` int(11) NOT NULL,
+  `iSeq` int(11) NOT NULL COMMENT 'Position of the chunk in the message, from 0',
+  `bChunk` mediumblob NOT NULL COMMENT 'Up to 256 KiB of txMailContent, split on octets',
+  PRIMARY KEY (`iMailID`, `iSeq`),
+  CONSTRAINT `m_MailChunk_ibfk_1` FOREIGN KEY (`iMailID`) REFERENCES `m_Mail` (`iMailID`) ON DELETE CASCADE
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
+--
+-- Backfill the chunks of existing messages, one chunk position at a time
+--
+DROP PROCEDURE IF EXISTS `m_MailChunk_backfill`;
+DELIMITER ;;
+CREATE PROCEDURE `m_MailChunk_backfill`()
+BEGIN
+  DECLARE n int DEFAULT 0;
+  DECLARE added int DEFAULT 1;
+  WHILE added > 0 DO
+    INSERT INTO `m_MailChunk` (`iMailID`, `iSeq`, `bChunk`)
+      SELECT `iMailID`, n, SUBSTRING(CAST(`txMailContent` AS BINARY), n * 262144 + 1, 262144)
+      FROM `m_Mail` WHERE LENGTH(`txMailContent`) > n * 262144;
+    SET added = ROW_COUNT();
+    SET n = n + 1;
+  END WHILE;
+END;;
+DELIMITER ;
+CALL `m_MailChunk_backfill`();
+DROP PROCEDURE `m_MailChunk_backfill`;
+
+--
+-- Triggers for table `m_Mail`
+--
+-- New messages have their content copied into chunks as they are inserted.
+--
+DROP TRIGGER IF EXISTS `m_Mail_ai`;
+DELIMITER ;;
+CREATE TRIGGER `m_Mail_ai` AFTER INSERT ON `m_Mail`
+  FOR EACH ROW BEGIN
+    DECLARE content longblob DEFAULT CAST(NEW.`txMailContent` AS BINARY);
+    DECLARE n int DEFAULT 0;
+    WHILE n * 262144 < LENGTH(content) DO
+      INSERT INTO `m_MailChunk` (`iMailID`, `iSeq`, `bChunk`)
+        VALUES (NEW.`iMailID`, n, SUBSTRING(content, n * 262144 + 1, 262144));
+      SET n = n + 1;
+    END WHILE;
+  END;;
+DELIMITER ;
@@ -0,0 +1,11 @@
+--
+-- Migrates a database created by an earlier mkdb.sql to record when each
+-- maildrop was last unlocked or deleted from. A node that locks a maildrop
+-- written to within pop3.db.replicaLag seconds, by itself or by another
+-- node, reads it from the primary rather than from a read replica that may
+-- not have caught up. Run once against an existing database after
+-- migrate-005-message-chunks.sql, with every server stopped.
+--
+
+ALTER TABLE `m_Maildrop`
+  ADD COLUMN `dtLastWrite` datetime DEFAULT NULL COMMENT 'Time a node last unlocked the maildrop or deleted from it' AFTER `dtLockExpiry`;
@@ -16,6 +16,20 @@ SET SQL_MODE="NO_AUTO_VALUE_ON_ZERO";
 /*!40101 SET NAMES utf8 */;
 
 
+-- --------------------------------------------------------
+
+--
+-- Table structure for table `m_MailChunk`
+--
+
+DROP TABLE IF EXISTS `m_MailChunk`;
+CREATE TABLE IF NOT EXISTS `m_MailChunk` (
+  `iMailID` int(11) NOT NULL,
+  `iSeq` int(11) NOT NULL COMMENT 'Position of the chunk in the message, from 0',
+  `bChunk` mediumblob NOT NULL COMMENT 'Up to 256 KiB of txMailContent, split on octets',
+  PRIMARY KEY (`iMailID`, `iSeq`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+
 -- --------------------------------------------------------
 
 --
@@ -27,11 +41,14 @@ CREATE TABLE IF NOT EXISTS `m_Mail` (
   `iMailID` int(11) NOT NULL AUTO_INCREMENT,
   `iMaildropID` int(11) NOT NULL,
   `txMailContent` longtext COLLATE utf8_unicode_ci NOT NULL,
+  `iSize` int(11) NOT NULL DEFAULT '0' COMMENT 'Size of txMailContent in octets, set on insert',
+  `iHeaderLength` int(11) NOT NULL DEFAULT '0' COMMENT 'Characters of txMailContent up to and including the blank line after the header, set on insert',
   `vchUIDL` varchar(70) COLLATE utf8_unicode_ci NOT NULL COMMENT 'These need to be auto-generated beforehand',
-  `markedForDeletion` boolean COLLATE utf8_unicode_ci NOT NULL DEFAULT 0,
+  `markedForDeletion` boolean COLLATE utf8_unicode_ci NOT NULL DEFAULT 0 COMMENT 'Deleted at QUIT, waiting to be removed by the expunger',
   PRIMARY KEY (`iMailID`),
   UNIQUE KEY `vchUIDL` (`vchUIDL`),
-  KEY `iMaildropID` (`iMaildropID`)
+  KEY `iMaildropID` (`iMaildropID`),
+  KEY `markedForDeletion` (`markedForDeletion`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=13 ;
 
 --
@@ -62,19 +79,22 @@ CREATE TABLE IF NOT EXISTS `m_Maildrop` (
   `iMaildropID` int(11) NOT NULL AUTO_INCREMENT,
   `vchUsername` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
   `vchPassword` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
-  `tiLocked` tinyint(4) NOT NULL DEFAULT '0' COMMENT '0 = unlocked, anything else = locked',
+  `vchLockNode` varchar(64) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'Server node holding the lease on the maildrop, NULL = unlocked',
+  `dtLockExpiry` datetime DEFAULT NULL COMMENT 'Time the lease expires unless renewed by its node',
+  `dtLastWrite` datetime DEFAULT NULL COMMENT 'Time a node last unlocked the maildrop or deleted from it',
   PRIMARY KEY (`iMaildropID`),
-  UNIQUE KEY `vchUsername` (`vchUsername`)
+  UNIQUE KEY `vchUsername` (`vchUsername`),
+  KEY `vchLockNode` (`vchLockNode`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=6 ;
 
 --
 -- Dumping data for table `m_Maildrop`
 --
 
-INSERT INTO `m_Maildrop` (`iMaildropID`, `vchUsername`, `vchPassword`, `tiLocked`) VALUES
-(1, 'alex', 'hello123', 0),
-(2, 'bob', 'qwerty', 0),
-(5, 'claire', 'qazwsx', 0);
+INSERT INTO `m_Maildrop` (`iMaildropID`, `vchUsername`, `vchPassword`) VALUES
+(1, 'alex', 'hello123'),
+(2, 'bob', 'qwerty'),
+(5, 'claire', 'qazwsx');
 
 --
 -- Constraints for dumped tables
@@ -85,3 +105,50 @@ INSERT INTO `m_Maildrop` (`iMaildropID`, `vchUsername`, `vchPassword`, `tiLocked
 --
 ALTER TABLE `m_Mail`
   ADD CONSTRAINT `m_Mail_ibfk_1` FOREIGN KEY (`iMaildropID`) REFERENCES `m_Maildrop` (`iMaildropID`);
+
+--
+-- Constraints for table `m_MailChunk`
+--
+ALTER TABLE `m_MailChunk`
+  ADD CONSTRAINT `m_MailChunk_ibfk_1` FOREIGN KEY (`iMailID`) REFERENCES `m_Mail` (`iMailID`) ON DELETE CASCADE;
+
+--
+-- Message sizes and header lengths for the dumped data
+--
+UPDATE `m_Mail` SET `iSize` = LENGTH(`txMailContent`),
+  `iHeaderLength` = LEAST(
+    IF(LOCATE('\n\n', `txMailContent`) > 0, LOCATE('\n\n', `txMailContent`) + 1, CHAR_LENGTH(`txMailContent`)),
+    IF(LOCATE('\r\n\r\n', `txMailContent`) > 0, LOCATE('\r\n\r\n', `txMailContent`) + 3, CHAR_LENGTH(`txMailContent`)));
+
+--
+-- Content chunks for the dumped data, each message fits in one chunk
+--
+INSERT INTO `m_MailChunk` (`iMailID`, `iSeq`, `bChunk`)
+  SELECT `iMailID`, 0, CAST(`txMailContent` AS BINARY) FROM `m_Mail`;
+
+--
+-- Triggers for table `m_Mail`
+--
+-- New messages record their size and header length, and their content is
+-- copied into 256 KiB chunks that RETR streams in order.
+--
+DROP TRIGGER IF EXISTS `m_Mail_bi`;
+CREATE TRIGGER `m_Mail_bi` BEFORE INSERT ON `m_Mail`
+  FOR EACH ROW SET NEW.`iSize` = LENGTH(NEW.`txMailContent`),
+  NEW.`iHeaderLength` = LEAST(
+    IF(LOCATE('\n\n', NEW.`txMailContent`) > 0, LOCATE('\n\n', NEW.`txMailContent`) + 1, CHAR_LENGTH(NEW.`txMailContent`)),
+    IF(LOCATE('\r\n\r\n', NEW.`txMailContent`) > 0, LOCATE('\r\n\r\n', NEW.`txMailContent`) + 3, CHAR_LENGTH(NEW.`txMailContent`)));
+
+DROP TRIGGER IF EXISTS `m_Mail_ai`;
+DELIMITER ;;
+CREATE TRIGGER `m_Mail_ai` AFTER INSERT ON `m_Mail`
+  FOR EACH ROW BEGIN
+    DECLARE content longblob DEFAULT CAST(NEW.`txMailContent` AS BINARY);
+    DECLARE n int DEFAULT 0;
+    WHILE n * 262144 < LENGTH(content) DO
+      INSERT INTO `m_MailChunk` (`iMailID`, `iSeq`, `bChunk`)
+        VALUES (NEW.`iMailID`, n, SUBSTRING(content, n * 262144 + 1, 262144));
+      SET n = n + 1;
+    END WHILE;
+  END;;
+DELIMITER ;
@@ -0,0 +1,388 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class AccessLog {
+	/* System Messages */
+	private static final String ERROR_OPEN = "Unable to open the access log, writing to the console";
+	private static final String ERROR_WRITE = "Unable to write the access log";
+	private static final String ERROR_INVALID_OVERFLOW = "An invalid access log overflow policy was specified, dropping records. Policy must be drop or block.";
+
+	/* Overflow policies */
+	private static final String OVERFLOW_DROP = "drop";
+	private static final String OVERFLOW_BLOCK = "block";
+
+	/* Log defaults */
+	private static final int CAPACITY = 8192;
+	private static final long IDLE_PARK_NANOS = 10000000L;
+	private static final long FLUSH_PARK_NANOS = 100000L;
+	private static final long FULL_WAIT_MILLIS = 10;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Record types */
+	private static final int TYPE_SESSION = 0;
+	private static final int TYPE_ERROR = 1;
+
+	/**
+	 * A slot of the ring buffer. Slots are allocated once and filled in place,
+	 * so logging a record doesn't create any objects.
+	 */
+	private static final class Record {
+		private int type;
+		private long time;
+		private long sessionId;
+		private InetAddress peer;
+		private String user;
+		private int commands;
+		private long bytesIn;
+		private long bytesOut;
+		private long durationNanos;
+		private String text;
+	}
+
+	/* Ring buffer members */
+	private final Record[] records;
+	private final AtomicLongArray published;
+	private final int mask;
+	private final AtomicLong claimed;
+	private volatile long consumed;
+	private final boolean block;
+	private final Object room;
+	private final AtomicInteger waiting;
+
+	/* Log members */
+	private final AtomicLong sessionIds;
+	private final AtomicLong dropped;
+	private final OutputStream out;
+	private final OutputStream err;
+	private final Thread writer;
+	private volatile boolean writerParked;
+
+	/**
+	 * Creates the access log. Records are claimed from a preallocated ring
+	 * buffer and written by a single background thread, which formats every
+	 * record waiting and writes them in one call, so sessions never wait on
+	 * the console or disk. The log file is named by pop3.log.file; without it
+	 * session records go to standard output and errors to standard error.
+	 * The number of records the buffer holds is set by pop3.log.capacity,
+	 * rounded up to a power of two. When the buffer is full a record is
+	 * dropped and counted, or with pop3.log.overflow=block the session waits
+	 * for room. Records still waiting are written when the JVM shuts down.
+	 */
+	private AccessLog() {
+		int n = Math.max(2, ServerConfig.getInt("log.capacity", CAPACITY));
+		int capacity = Integer.highestOneBit(n);
+		if (capacity < n) {
+			capacity <<= 1;
+		}
+		records = new Record[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			records[i] = new Record();
+			published.set(i, -1);
+		}
+		mask = capacity - 1;
+		claimed = new AtomicLong();
+		room = new Object();
+		waiting = new AtomicInteger();
+		sessionIds = new AtomicLong();
+		dropped = new AtomicLong();
+
+		String overflow = ServerConfig.getString("log.overflow", OVERFLOW_DROP);
+		if (!overflow.equals(OVERFLOW_DROP) && !overflow.equals(OVERFLOW_BLOCK)) {
+			System.err.println(ERROR_INVALID_OVERFLOW);
+		}
+		block = overflow.equals(OVERFLOW_BLOCK);
+
+		OutputStream file = null;
+		String path = ServerConfig.getString("log.file", null);
+		if (path != null) {
+			try {
+				file = new FileOutputStream(path, true);
+			} catch (IOException e) {
+				System.err.println(ERROR_OPEN + ": " + e.getMessage());
+			}
+		}
+		out = (file != null) ? file : System.out;
+		err = (file != null) ? file : System.err;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AccessLog");
+		writer.setDaemon(true);
+		writer.start();
+
+		/* Write out what is left when the server is shut down */
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "AccessLogFlush"));
+	}
+
+	/**
+	 * Holds the singleton instance
+	 */
+	private static class Holder {
+		private static final AccessLog INSTANCE = new AccessLog();
+	}
+
+	/**
+	 * Gets the access log of the server
+	 *
+	 * @return the instance of the access log
+	 */
+	public static AccessLog getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Gets an id for a new session, unique while the server runs
+	 *
+	 * @return the session id
+	 */
+	public long nextSessionId() {
+		return sessionIds.incrementAndGet();
+	}
+
+	/**
+	 * Logs a session once it has ended
+	 *
+	 * @param sessionId
+	 *            the id of the session
+	 * @param peer
+	 *            the address of the client
+	 * @param user
+	 *            the user named by the session, null if none was found
+	 * @param commands
+	 *            the number of commands handled
+	 * @param bytesIn
+	 *            the bytes received from the client
+	 * @param bytesOut
+	 *            the bytes sent to the client
+	 * @param durationNanos
+	 *            the time from connecting to closing, in nanoseconds
+	 * @param end
+	 *            how the session ended
+	 */
+	public void session(long sessionId, InetAddress peer, String user,
+			int commands, long bytesIn, long bytesOut, long durationNanos,
+			String end) {
+		long sequence = claim();
+		if (sequence < 0) {
+			return;
+		}
+		Record record = records[(int) sequence & mask];
+		record.type = TYPE_SESSION;
+		record.time = System.currentTimeMillis();
+		record.sessionId = sessionId;
+		record.peer = peer;
+		record.user = user;
+		record.commands = commands;
+		record.bytesIn = bytesIn;
+		record.bytesOut = bytesOut;
+		record.durationNanos = durationNanos;
+		record.text = end;
+		publish(sequence);
+	}
+
+	/**
+	 * Logs an error
+	 *
+	 * @param message
+	 *            the error message
+	 */
+	public void error(String message) {
+		long sequence = claim();
+		if (sequence < 0) {
+			return;
+		}
+		Record record = records[(int) sequence & mask];
+		record.type = TYPE_ERROR;
+		record.time = System.currentTimeMillis();
+		record.peer = null;
+		record.user = null;
+		record.text = message;
+		publish(sequence);
+	}
+
+	/**
+	 * Gets the number of records dropped because the buffer was full
+	 *
+	 * @return the dropped records
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits until every record logged so far has been written
+	 */
+	public void flush() {
+		long target = claimed.get();
+		while (consumed < target && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(FLUSH_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Claims the next slot of the ring buffer. If the buffer is full the
+	 * record is dropped, or with the block policy the caller waits for the
+	 * writer to make room.
+	 *
+	 * @return the sequence of the claimed slot, -1 if the record was dropped
+	 */
+	private long claim() {
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence - consumed >= records.length) {
+				if (!block) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				awaitRoom(sequence);
+			} else if (claimed.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the writer to free a slot, woken by the writer as soon as it
+	 * has taken records from the buffer
+	 *
+	 * @param sequence
+	 *            the sequence that could not be claimed
+	 */
+	private void awaitRoom(long sequence) {
+		waiting.incrementAndGet();
+		try {
+			synchronized (room) {
+				while (sequence - consumed >= records.length) {
+					LockSupport.unpark(writer);
+					room.wait(FULL_WAIT_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Makes a filled slot visible to the writer, waking it if it is idle
+	 *
+	 * @param sequence
+	 *            the sequence of the slot
+	 */
+	private void publish(long sequence) {
+		/* A full write, so the flag is read after the slot is visible */
+		published.set((int) sequence & mask, sequence);
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writes records in order as they are published, formatting every record
+	 * that is ready before writing them out together. Runs on the writer
+	 * thread for the life of the server.
+	 */
+	private void drain() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Date date = new Date();
+		StringBuilder sessions = new StringBuilder();
+		StringBuilder errors = new StringBuilder();
+
+		long next = consumed;
+		while (true) {
+			/* Collect the records published so far, up to a buffer's worth */
+			long last = next + records.length;
+			while (next < last && published.get((int) next & mask) == next) {
+				Record record = records[(int) next & mask];
+				date.setTime(record.time);
+				if (record.type == TYPE_SESSION) {
+					formatSession(sessions, format.format(date), record);
+				} else {
+					errors.append(format.format(date)).append(" error ")
+							.append(record.text).append('\n');
+				}
+				record.peer = null;
+				record.user = null;
+				record.text = null;
+				next++;
+				consumed = next;
+			}
+
+			/* Sessions waiting for room can fill the buffer during the write */
+			if (waiting.get() > 0) {
+				synchronized (room) {
+					room.notifyAll();
+				}
+			}
+
+			if (sessions.length() > 0 || errors.length() > 0) {
+				write(out, sessions);
+				write(err, errors);
+				continue;
+			}
+
+			/* Nothing is waiting, sleep until a record is published */
+			writerParked = true;
+			if (published.get((int) next & mask) != next) {
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+			writerParked = false;
+		}
+	}
+
+	/**
+	 * Formats a session record as space separated key=value pairs
+	 */
+	private static void formatSession(StringBuilder line, String time,
+			Record record) {
+		line.append(time).append(" session=").append(record.sessionId)
+				.append(" peer=").append(record.peer.getHostAddress())
+				.append(" user=")
+				.append((record.user == null) ? "-" : record.user)
+				.append(" commands=").append(record.commands).append(" in=")
+				.append(record.bytesIn).append(" out=")
+				.append(record.bytesOut).append(" duration_ms=")
+				.append(record.durationNanos / 1000000).append(" end=")
+				.append(record.text).append('\n');
+	}
+
+	/**
+	 * Writes out and clears a batch of formatted records
+	 */
+	private static void write(OutputStream stream, StringBuilder batch) {
+		if (batch.length() == 0) {
+			return;
+		}
+		try {
+			stream.write(batch.toString().getBytes(CHARSET));
+			stream.flush();
+		} catch (IOException e) {
+			System.err.println(ERROR_WRITE + ": " + e.getMessage());
+		}
+		batch.setLength(0);
+	}
+}
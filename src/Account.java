@@ -0,0 +1,78 @@
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+public class Account {
+	/* Encoding used to compare passwords */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Account members */
+	private final int maildropId;
+	private final byte[] password;
+	private final boolean locked;
+
+	/**
+	 * Creates the account of a user, as loaded from the database in a single
+	 * lookup when the USER command is received
+	 *
+	 * @param maildropId
+	 *            the id of the user's maildrop
+	 * @param password
+	 *            the password of the user
+	 * @param locked
+	 *            true if the maildrop was locked when the account was loaded
+	 */
+	public Account(int maildropId, String password, boolean locked) {
+		this(maildropId, password.getBytes(CHARSET), locked);
+	}
+
+	private Account(int maildropId, byte[] password, boolean locked) {
+		this.maildropId = maildropId;
+		this.password = password;
+		this.locked = locked;
+	}
+
+	/**
+	 * Gets the id of the user's maildrop, which identifies the maildrop in
+	 * every later database call of the session
+	 *
+	 * @return the maildrop id
+	 */
+	public int getMaildropId() {
+		return maildropId;
+	}
+
+	/**
+	 * Gets the locked status of the maildrop when the account was loaded. The
+	 * lock is only taken by IDatabase.lockMaildrop, so this is a hint used to
+	 * reject a second session early.
+	 *
+	 * @return true if the maildrop was locked
+	 */
+	public boolean isLocked() {
+		return locked;
+	}
+
+	/**
+	 * Checks if the password is correct for the account. The comparison takes
+	 * the same time wherever the passwords differ.
+	 *
+	 * @param password
+	 *            the password to verify
+	 * @return true if the password is correct, false otherwise
+	 */
+	public boolean passwordCorrect(String password) {
+		return MessageDigest.isEqual(this.password, password.getBytes(CHARSET));
+	}
+
+	/**
+	 * Gets a copy of the account with the specified locked status
+	 *
+	 * @param locked
+	 *            true if the maildrop is locked
+	 * @return the account with the locked status
+	 */
+	public Account withLock(boolean locked) {
+		return (locked == this.locked) ? this : new Account(maildropId,
+				password, locked);
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AccountFile {
+	/* System Messages */
+	private static final String ERROR_ACCOUNTS = "Unable to read the account file";
+
+	/* Encoding of the account file */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Account file members */
+	private Map<String, Account> accounts;
+	private List<String> usernames;
+
+	/**
+	 * Reads an account file used by the embedded storage backends. Each line
+	 * holds a username:password pair, blank lines and lines starting with #
+	 * are ignored. Maildrop ids are assigned in the order accounts are
+	 * listed, so accounts should only be added to the end of the file.
+	 *
+	 * @param file
+	 *            the account file
+	 * @throws IOException
+	 *             if the file cannot be read or a line is malformed
+	 */
+	public AccountFile(Path file) throws IOException {
+		accounts = new HashMap<>();
+		usernames = new ArrayList<>();
+		try (BufferedReader in = Files.newBufferedReader(file, CHARSET)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				int separator = line.indexOf(':');
+				if (separator <= 0) {
+					throw new IOException(ERROR_ACCOUNTS + ": " + line);
+				}
+				String username = line.substring(0, separator);
+				usernames.add(username);
+				accounts.put(username, new Account(usernames.size(), line
+						.substring(separator + 1), false));
+			}
+		}
+	}
+
+	/**
+	 * Gets the account of the specified user
+	 *
+	 * @param username
+	 *            the user account
+	 * @return the account, which is never marked as locked, null if the user
+	 *         doesn't exist
+	 */
+	public Account get(String username) {
+		return accounts.get(username);
+	}
+
+	/**
+	 * Gets the user owning the specified maildrop
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the username, null if no user has the maildrop
+	 */
+	public String nameOf(int maildropId) {
+		if (maildropId < 1 || maildropId > usernames.size()) {
+			return null;
+		}
+		return usernames.get(maildropId - 1);
+	}
+
+	/**
+	 * Gets the maildrop id of the specified user
+	 *
+	 * @param username
+	 *            the user account
+	 * @return the maildrop id, 0 if the user doesn't exist
+	 */
+	public int idOf(String username) {
+		Account account = accounts.get(username);
+		return (account == null) ? 0 : account.getMaildropId();
+	}
+}
@@ -0,0 +1,212 @@
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionController {
+	/* Responses sent to rejected clients */
+	public static final String SERVER_BUSY = "-ERR [SYS/TEMP] server busy";
+	public static final String TOO_MANY_CONNECTIONS = "-ERR [SYS/TEMP] too many connections from your address";
+
+	/* Default limits */
+	private static final int DEFAULT_MAX_SESSIONS = 10000;
+	private static final int DEFAULT_MAX_PER_ADDRESS = 100;
+	private static final int DEFAULT_ADDRESS_SLOTS = 65536;
+
+	/* Admission results */
+	public enum Admission {
+		ADMITTED, SERVER_BUSY, ADDRESS_LIMIT
+	};
+
+	/* Limits */
+	private int maxSessions;
+	private int maxPerAddress;
+
+	/* Per-address connection counts, hashed into a fixed table */
+	private AtomicIntegerArray addressSlots;
+	private int slotMask;
+
+	/* Counters */
+	private AtomicInteger active;
+	private AtomicLong accepted;
+	private AtomicLong rejectedBusy;
+	private AtomicLong rejectedAddress;
+
+	/**
+	 * Creates an admission controller configured from the
+	 * pop3.limits.maxSessions and pop3.limits.maxPerAddress properties. A
+	 * limit of zero disables the per-address check.
+	 */
+	public AdmissionController() {
+		this(ServerConfig.getInt("limits.maxSessions", DEFAULT_MAX_SESSIONS),
+				ServerConfig.getInt("limits.maxPerAddress",
+						DEFAULT_MAX_PER_ADDRESS), DEFAULT_ADDRESS_SLOTS);
+	}
+
+	/**
+	 * Creates an admission controller with the specified limits
+	 *
+	 * @param maxSessions
+	 *            the maximum number of concurrent sessions
+	 * @param maxPerAddress
+	 *            the maximum number of concurrent sessions from one address,
+	 *            zero for no limit
+	 * @param addressSlots
+	 *            the number of counters addresses are hashed into, rounded up
+	 *            to a power of two
+	 */
+	public AdmissionController(int maxSessions, int maxPerAddress,
+			int addressSlots) {
+		if (maxSessions <= 0 || maxPerAddress < 0 || addressSlots <= 0) {
+			throw new IllegalArgumentException(
+					"An invalid connection limit was specified.");
+		}
+
+		this.maxSessions = maxSessions;
+		this.maxPerAddress = maxPerAddress;
+		int slots = Integer.highestOneBit(addressSlots);
+		if (slots < addressSlots) {
+			slots <<= 1;
+		}
+		addressSlots = slots;
+		this.addressSlots = new AtomicIntegerArray(slots);
+		slotMask = slots - 1;
+
+		active = new AtomicInteger();
+		accepted = new AtomicLong();
+		rejectedBusy = new AtomicLong();
+		rejectedAddress = new AtomicLong();
+	}
+
+	/**
+	 * Attempts to admit a new connection. Every admitted connection must be
+	 * released when its session ends.
+	 *
+	 * Addresses share counters when they hash to the same slot, which can
+	 * only make the per-address limit stricter, never looser. This keeps the
+	 * table a fixed size no matter how many addresses connect.
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @return the admission decision
+	 */
+	public Admission admit(InetAddress address) {
+		/* Reserve a global session */
+		int current;
+		do {
+			current = active.get();
+			if (current >= maxSessions) {
+				rejectedBusy.incrementAndGet();
+				return Admission.SERVER_BUSY;
+			}
+		} while (!active.compareAndSet(current, current + 1));
+
+		/* Reserve a session for the address */
+		if (maxPerAddress > 0) {
+			int slot = slot(address);
+			if (addressSlots.incrementAndGet(slot) > maxPerAddress) {
+				addressSlots.decrementAndGet(slot);
+				active.decrementAndGet();
+				rejectedAddress.incrementAndGet();
+				return Admission.ADDRESS_LIMIT;
+			}
+		}
+
+		accepted.incrementAndGet();
+		return Admission.ADMITTED;
+	}
+
+	/**
+	 * Releases a connection that was admitted
+	 *
+	 * @param address
+	 *            the address of the client
+	 */
+	public void release(InetAddress address) {
+		if (maxPerAddress > 0) {
+			addressSlots.decrementAndGet(slot(address));
+		}
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Gets the response to send to a rejected client
+	 *
+	 * @param admission
+	 *            the admission decision
+	 * @return the response line
+	 */
+	public static String rejection(Admission admission) {
+		return admission == Admission.ADDRESS_LIMIT ? TOO_MANY_CONNECTIONS
+				: SERVER_BUSY;
+	}
+
+	/**
+	 * Gets the maximum number of concurrent sessions
+	 *
+	 * @return the session limit
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Gets the number of sessions currently admitted
+	 *
+	 * @return the number of active sessions
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Gets the total number of connections admitted
+	 *
+	 * @return the number of admitted connections
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * Gets the number of connections rejected by the session limit
+	 *
+	 * @return the number of connections rejected as busy
+	 */
+	public long getRejectedBusy() {
+		return rejectedBusy.get();
+	}
+
+	/**
+	 * Gets the number of connections rejected by the per-address limit
+	 *
+	 * @return the number of connections rejected for their address
+	 */
+	public long getRejectedAddress() {
+		return rejectedAddress.get();
+	}
+
+	/**
+	 * Counts a connection that was admitted but could not be given a thread
+	 * as rejected
+	 */
+	public void recordRejectedBusy() {
+		rejectedBusy.incrementAndGet();
+		accepted.decrementAndGet();
+	}
+
+	/**
+	 * Maps an address to a slot of the counter table
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @return the slot index
+	 */
+	private int slot(InetAddress address) {
+		int h = address.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & slotMask;
+	}
+}
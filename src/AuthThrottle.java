@@ -0,0 +1,375 @@
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class AuthThrottle {
+	/* Default limits */
+	private static final int DEFAULT_ADDRESS_BURST = 20;
+	private static final int DEFAULT_ADDRESS_RATE = 60;
+	private static final int DEFAULT_USER_BURST = 10;
+	private static final int DEFAULT_USER_RATE = 6;
+	private static final int DEFAULT_BACKOFF = 1000;
+	private static final int DEFAULT_MAX_BACKOFF = 60000;
+	private static final int DEFAULT_MAX_ENTRIES = 100000;
+	private static final int STRIPES = 64;
+	private static final long NANOS_PER_MINUTE = 60000000000L;
+
+	/* Throttle results */
+	public enum Result {
+		ALLOWED, ADDRESS_LIMIT, USER_LIMIT
+	};
+
+	/**
+	 * The token bucket and failure streak of an address or username
+	 */
+	private static final class Bucket {
+		private double tokens;
+		private long refilled;
+		private int failures;
+		private long blockedUntil;
+
+		private Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			refilled = now;
+		}
+	}
+
+	/**
+	 * A bounded map of entries, split into stripes each guarded by its own
+	 * lock. Each stripe drops its least recently used entry when full.
+	 */
+	private static final class Table<K> {
+		private final Stripe<K>[] stripes;
+
+		private Table(int maxEntries) {
+			@SuppressWarnings("unchecked")
+			Stripe<K>[] stripes = (Stripe<K>[]) new Stripe<?>[STRIPES];
+			this.stripes = stripes;
+			int perStripe = Math.max(1, maxEntries / STRIPES);
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new Stripe<>(perStripe);
+			}
+		}
+
+		private Stripe<K> stripe(K key) {
+			int h = key.hashCode();
+			return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+		}
+
+		private int size() {
+			int size = 0;
+			for (Stripe<K> stripe : stripes) {
+				synchronized (stripe) {
+					size += stripe.size();
+				}
+			}
+			return size;
+		}
+	}
+
+	private static final class Stripe<K> extends LinkedHashMap<K, Bucket> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		private Stripe(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Bucket> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	/* Limits, rates in tokens per nanosecond */
+	private final boolean enabled;
+	private final int addressBurst;
+	private final double addressRate;
+	private final int userBurst;
+	private final double userRate;
+	private final long backoff;
+	private final long maxBackoff;
+
+	/* Throttle state */
+	private final Table<InetAddress> addresses;
+	private final Table<String> users;
+
+	/* Counters */
+	private final StripedCounter throttledAddress;
+	private final StripedCounter throttledUser;
+	private final StripedCounter failures;
+
+	/**
+	 * Creates the login throttle from the configuration. Every USER command
+	 * takes a token from the bucket of the client address, which holds
+	 * pop3.auth.addressBurst tokens and refills at pop3.auth.addressRate per
+	 * minute. Every failed login takes a token from the bucket of the
+	 * username, with pop3.auth.userBurst and pop3.auth.userRate. Each failure
+	 * in a row also blocks the address and username for twice as long as the
+	 * last, from pop3.auth.backoff up to pop3.auth.maxBackoff milliseconds.
+	 * Up to pop3.auth.maxEntries addresses and usernames are tracked each.
+	 * Throttling is turned off with pop3.auth.throttle=false.
+	 */
+	private AuthThrottle() {
+		this(ServerConfig.getBoolean("auth.throttle", true), ServerConfig
+				.getInt("auth.addressBurst", DEFAULT_ADDRESS_BURST),
+				ServerConfig.getInt("auth.addressRate", DEFAULT_ADDRESS_RATE),
+				ServerConfig.getInt("auth.userBurst", DEFAULT_USER_BURST),
+				ServerConfig.getInt("auth.userRate", DEFAULT_USER_RATE),
+				ServerConfig.getInt("auth.backoff", DEFAULT_BACKOFF),
+				ServerConfig.getInt("auth.maxBackoff", DEFAULT_MAX_BACKOFF),
+				ServerConfig.getInt("auth.maxEntries", DEFAULT_MAX_ENTRIES));
+	}
+
+	/**
+	 * Creates a login throttle with the specified limits
+	 *
+	 * @param enabled
+	 *            false to allow every attempt
+	 * @param addressBurst
+	 *            the attempts an address can make at once
+	 * @param addressRate
+	 *            the attempts per minute an address regains
+	 * @param userBurst
+	 *            the failures a username can have at once
+	 * @param userRate
+	 *            the failures per minute a username regains
+	 * @param backoff
+	 *            the block after a first failure, in milliseconds
+	 * @param maxBackoff
+	 *            the longest block after repeated failures, in milliseconds
+	 * @param maxEntries
+	 *            the number of addresses, and of usernames, tracked
+	 */
+	public AuthThrottle(boolean enabled, int addressBurst, int addressRate,
+			int userBurst, int userRate, int backoff, int maxBackoff,
+			int maxEntries) {
+		if (addressBurst <= 0 || addressRate <= 0 || userBurst <= 0
+				|| userRate <= 0 || backoff < 0 || maxBackoff < backoff
+				|| maxEntries <= 0) {
+			throw new IllegalArgumentException(
+					"An invalid login throttle limit was specified.");
+		}
+		this.enabled = enabled;
+		this.addressBurst = addressBurst;
+		this.addressRate = (double) addressRate / NANOS_PER_MINUTE;
+		this.userBurst = userBurst;
+		this.userRate = (double) userRate / NANOS_PER_MINUTE;
+		this.backoff = backoff * 1000000L;
+		this.maxBackoff = maxBackoff * 1000000L;
+		addresses = new Table<>(maxEntries);
+		users = new Table<>(maxEntries);
+		throttledAddress = new StripedCounter();
+		throttledUser = new StripedCounter();
+		failures = new StripedCounter();
+	}
+
+	/**
+	 * Holds the singleton instance
+	 */
+	private static class Holder {
+		private static final AuthThrottle INSTANCE = new AuthThrottle();
+	}
+
+	/**
+	 * Gets the login throttle of the server
+	 *
+	 * @return the instance of the throttle
+	 */
+	public static AuthThrottle getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Decides whether a USER command may look up an account, taking a token
+	 * from the bucket of the address
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @param user
+	 *            the username given
+	 * @return ALLOWED, or the limit the attempt was turned away by
+	 */
+	public Result acquire(InetAddress address, String user) {
+		return check(address, user, true);
+	}
+
+	/**
+	 * Decides whether a PASS command may check a password, without taking a
+	 * token
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @param user
+	 *            the username given
+	 * @return ALLOWED, or the limit the attempt was turned away by
+	 */
+	public Result check(InetAddress address, String user) {
+		return check(address, user, false);
+	}
+
+	/**
+	 * Records a failed login, blocking the address and username for longer
+	 * with each failure in a row
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @param user
+	 *            the username given, null if it wasn't found
+	 */
+	public void failed(InetAddress address, String user) {
+		if (!enabled) {
+			return;
+		}
+		failures.increment();
+		long now = System.nanoTime();
+		fail(addresses, address, addressBurst, addressRate, false, now);
+		if (user != null) {
+			fail(users, user, userBurst, userRate, true, now);
+		}
+	}
+
+	/**
+	 * Records a successful login, ending the failure streaks of the address
+	 * and username
+	 *
+	 * @param address
+	 *            the address of the client
+	 * @param user
+	 *            the username logged in as
+	 */
+	public void succeeded(InetAddress address, String user) {
+		if (!enabled) {
+			return;
+		}
+		long now = System.nanoTime();
+		clear(addresses, address, now);
+		clear(users, user, now);
+	}
+
+	/**
+	 * Gets the number of attempts turned away by the limit of an address
+	 *
+	 * @return the throttled attempts
+	 */
+	public long getThrottledAddress() {
+		return throttledAddress.sum();
+	}
+
+	/**
+	 * Gets the number of attempts turned away by the limit of a username
+	 *
+	 * @return the throttled attempts
+	 */
+	public long getThrottledUser() {
+		return throttledUser.sum();
+	}
+
+	/**
+	 * Gets the number of failed logins
+	 *
+	 * @return the failures
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Gets the number of addresses and usernames being tracked
+	 *
+	 * @return the tracked entries
+	 */
+	public int getEntries() {
+		return addresses.size() + users.size();
+	}
+
+	/**
+	 * Checks the limits of an address and username. A username is only
+	 * tracked once it has failed, so unknown usernames can't fill the table.
+	 */
+	private Result check(InetAddress address, String user, boolean consume) {
+		if (!enabled) {
+			return Result.ALLOWED;
+		}
+		long now = System.nanoTime();
+
+		Stripe<String> userStripe = users.stripe(user);
+		synchronized (userStripe) {
+			Bucket entry = userStripe.get(user);
+			if (entry != null
+					&& (now - entry.blockedUntil < 0 || refill(entry,
+							userBurst, userRate, now) < 1)) {
+				throttledUser.increment();
+				return Result.USER_LIMIT;
+			}
+		}
+
+		Stripe<InetAddress> addressStripe = addresses.stripe(address);
+		synchronized (addressStripe) {
+			Bucket entry = addressStripe.get(address);
+			if (entry == null) {
+				entry = new Bucket(addressBurst, now);
+				addressStripe.put(address, entry);
+			}
+			if (now - entry.blockedUntil < 0
+					|| refill(entry, addressBurst, addressRate, now) < 1) {
+				throttledAddress.increment();
+				return Result.ADDRESS_LIMIT;
+			}
+			if (consume) {
+				entry.tokens--;
+			}
+		}
+		return Result.ALLOWED;
+	}
+
+	/**
+	 * Lengthens the failure streak of an entry and blocks it until its
+	 * backoff has passed
+	 */
+	private <K> void fail(Table<K> table, K key, int burst, double rate,
+			boolean consume, long now) {
+		Stripe<K> stripe = table.stripe(key);
+		synchronized (stripe) {
+			Bucket entry = stripe.get(key);
+			if (entry == null) {
+				entry = new Bucket(burst, now);
+				stripe.put(key, entry);
+			}
+			if (consume) {
+				refill(entry, burst, rate, now);
+				entry.tokens = Math.max(0, entry.tokens - 1);
+			}
+			entry.failures++;
+			long delay = backoff << Math.min(entry.failures - 1, 30);
+			entry.blockedUntil = now + Math.min(delay, maxBackoff);
+		}
+	}
+
+	/**
+	 * Ends the failure streak of an entry
+	 */
+	private <K> void clear(Table<K> table, K key, long now) {
+		Stripe<K> stripe = table.stripe(key);
+		synchronized (stripe) {
+			Bucket entry = stripe.get(key);
+			if (entry != null) {
+				entry.failures = 0;
+				entry.blockedUntil = now;
+			}
+		}
+	}
+
+	/**
+	 * Adds the tokens regained since the bucket was last refilled
+	 *
+	 * @return the tokens in the bucket
+	 */
+	private static double refill(Bucket entry, int burst, double rate, long now) {
+		entry.tokens = Math.min(burst, entry.tokens + (now - entry.refilled)
+				* rate);
+		entry.refilled = now;
+		return entry.tokens;
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+public class CachingDatabase implements IDatabase {
+	/* Encoding of cached content returned as a string */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Database members */
+	private IDatabase database;
+	private MessageCache<Key> cache;
+
+	/**
+	 * Wraps a database with a cache of message content shared by every
+	 * session. Cached content is keyed by maildrop and message id, so the
+	 * backend must not reuse the id of a deleted message. The content of
+	 * deleted messages is removed from the cache.
+	 *
+	 * @param database
+	 *            the database to wrap
+	 * @param cache
+	 *            the cache holding message content
+	 */
+	public CachingDatabase(IDatabase database, MessageCache<Key> cache) {
+		this.database = database;
+		this.cache = cache;
+	}
+
+	/**
+	 * Gets the cache of message content, which counts hits, misses and
+	 * evictions
+	 *
+	 * @return the message cache
+	 */
+	public MessageCache<Key> getCache() {
+		return cache;
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		return database.getAccount(username);
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		return database.lockMaildrop(maildropId);
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		database.unlockMaildrop(maildropId);
+	}
+
+	@Override
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		int deleted = database.deleteMessages(maildropId, mailIds);
+
+		if (deleted > 0) {
+			for (int mailId : mailIds) {
+				cache.remove(new Key(maildropId, mailId));
+			}
+		}
+		return deleted;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		return database.numMessages(maildropId);
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		return database.sizeOfMaildrop(maildropId);
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		return database.getMaildropIndex(maildropId);
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		Key key = new Key(maildropId, mailId);
+		byte[] content = cache.get(key);
+		if (content != null) {
+			return new String(content, CHARSET);
+		}
+
+		String message = database.getMessage(maildropId, mailId);
+		if (message != null) {
+			cache.put(key, message.getBytes(CHARSET));
+		}
+		return message;
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		Key key = new Key(maildropId, mailId);
+		byte[] content = cache.get(key);
+		if (content != null) {
+			out.write(content);
+			return true;
+		}
+
+		/* Keep a copy of the message as it is streamed, if it is small enough */
+		CapturingOutputStream capture = new CapturingOutputStream(out,
+				cache.getMaxEntryBytes());
+		if (!database.writeMessage(maildropId, mailId, capture)) {
+			return false;
+		}
+		content = capture.getCaptured();
+		if (content != null) {
+			cache.put(key, content);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		/* Only whole messages are cached, the backend reads partial ones */
+		byte[] content = cache.get(new Key(maildropId, mailId));
+		if (content != null) {
+			MessageTop.write(new ByteArrayInputStream(content), -1, lines, out);
+			return true;
+		}
+		return database.writeMessageTop(maildropId, mailId, lines, out);
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId)
+			throws IOException {
+		return database.openWireMessage(maildropId, mailId);
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId)
+			throws IOException {
+		return database.mapWireMessage(maildropId, mailId);
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return database.isAvailable();
+	}
+
+	@Override
+	public void close() {
+		database.close();
+	}
+
+	/**
+	 * The cache key of a message
+	 */
+	public static final class Key {
+		private final int maildropId;
+		private final int mailId;
+
+		private Key(int maildropId, int mailId) {
+			this.maildropId = maildropId;
+			this.mailId = mailId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return maildropId == key.maildropId && mailId == key.mailId;
+		}
+
+		@Override
+		public int hashCode() {
+			return maildropId * 0x9E3779B1 + mailId;
+		}
+	}
+
+	/**
+	 * Stream that passes data through while keeping a copy, giving up on the
+	 * copy once it grows past a limit
+	 */
+	private static final class CapturingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final int limit;
+		private ByteArrayOutputStream copy;
+
+		private CapturingOutputStream(OutputStream out, int limit) {
+			this.out = out;
+			this.limit = limit;
+			copy = new ByteArrayOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (copy != null) {
+				copy.write(b);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (copy != null) {
+				copy.write(b, off, len);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		private void checkLimit() {
+			if (copy.size() > limit) {
+				copy = null;
+			}
+		}
+
+		private byte[] getCaptured() {
+			return (copy == null) ? null : copy.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+import java.nio.charset.Charset;
+
+public class Command {
+	/* System Messages */
+	private static final String ERROR_NOT_A_NUMBER = "The argument is not a number";
+
+	/* Decoder limits */
+	private static final int INITIAL_LINE_SIZE = 256;
+	private static final int MAX_ARGUMENTS = 2;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Command members */
+	private byte[] line;
+	private int length;
+	private Verb verb;
+	private int argumentCount;
+	private int[] argumentStart;
+	private int[] argumentEnd;
+
+	/**
+	 * Creates an empty command. A command is decoded from the bytes of a
+	 * command line and can be reused for the next line, so reading and
+	 * parsing commands creates no objects. Arguments are only turned into
+	 * strings when a handler asks for them.
+	 */
+	public Command() {
+		line = new byte[INITIAL_LINE_SIZE];
+		argumentStart = new int[MAX_ARGUMENTS];
+		argumentEnd = new int[MAX_ARGUMENTS];
+		verb = Verb.UNKNOWN;
+	}
+
+	/**
+	 * Decodes a command line, replacing the previous command. The bytes are
+	 * copied, so the buffer may be reused once this returns.
+	 *
+	 * @param b
+	 *            the buffer holding the command line
+	 * @param off
+	 *            the position of the line in the buffer
+	 * @param len
+	 *            the length of the line, trailing line terminators are
+	 *            ignored
+	 */
+	public void decode(byte[] b, int off, int len) {
+		while (len > 0 && (b[off + len - 1] == '\r' || b[off + len - 1] == '\n')) {
+			len--;
+		}
+		if (len > line.length) {
+			line = new byte[Math.max(len, line.length * 2)];
+		}
+		System.arraycopy(b, off, line, 0, len);
+		length = len;
+
+		/* The verb and arguments are separated by single spaces */
+		int end = indexOf(' ', 0);
+		verb = Verb.decode(line, 0, end);
+		argumentCount = 0;
+		while (end < length) {
+			int start = end + 1;
+			end = indexOf(' ', start);
+			if (argumentCount < MAX_ARGUMENTS) {
+				argumentStart[argumentCount] = start;
+				argumentEnd[argumentCount] = end;
+			}
+			argumentCount++;
+		}
+	}
+
+	/**
+	 * Decodes a command line held in a string
+	 *
+	 * @param input
+	 *            the command line
+	 */
+	public void decode(String input) {
+		byte[] b = input.getBytes(CHARSET);
+		decode(b, 0, b.length);
+	}
+
+	/**
+	 * Gets the verb of the command
+	 *
+	 * @return the verb, UNKNOWN if it isn't a POP3 command
+	 */
+	public Verb getVerb() {
+		return verb;
+	}
+
+	/**
+	 * Gets the number of space separated arguments following the verb
+	 *
+	 * @return the number of arguments
+	 */
+	public int getArgumentCount() {
+		return argumentCount;
+	}
+
+	/**
+	 * Parses an argument as a decimal integer, accepting the same forms as
+	 * Integer.parseInt without creating a substring
+	 *
+	 * @param i
+	 *            the index of the argument, starting at 0
+	 * @return the value of the argument
+	 * @throws NumberFormatException
+	 *             if the argument is missing or isn't a valid integer
+	 */
+	public int getNumber(int i) {
+		if (i >= Math.min(argumentCount, MAX_ARGUMENTS)) {
+			throw new NumberFormatException(ERROR_NOT_A_NUMBER);
+		}
+
+		int pos = argumentStart[i];
+		int end = argumentEnd[i];
+		boolean negative = false;
+		if (pos < end && (line[pos] == '-' || line[pos] == '+')) {
+			negative = (line[pos] == '-');
+			pos++;
+		}
+		if (pos == end) {
+			throw new NumberFormatException(ERROR_NOT_A_NUMBER);
+		}
+
+		/* Accumulate negatively so that Integer.MIN_VALUE can be parsed */
+		long value = 0;
+		for (; pos < end; pos++) {
+			int digit = line[pos] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(ERROR_NOT_A_NUMBER);
+			}
+			value = value * 10 - digit;
+			if (value < Integer.MIN_VALUE) {
+				throw new NumberFormatException(ERROR_NOT_A_NUMBER);
+			}
+		}
+		if (!negative && value == Integer.MIN_VALUE) {
+			throw new NumberFormatException(ERROR_NOT_A_NUMBER);
+		}
+		return (int) (negative ? value : -value);
+	}
+
+	/**
+	 * Gets an argument as a string
+	 *
+	 * @param i
+	 *            the index of the argument, starting at 0
+	 * @return the argument, null if it is missing
+	 */
+	public String getArgument(int i) {
+		if (i >= Math.min(argumentCount, MAX_ARGUMENTS)) {
+			return null;
+		}
+		return new String(line, argumentStart[i], argumentEnd[i]
+				- argumentStart[i], CHARSET);
+	}
+
+	/**
+	 * Gets everything following the verb, for arguments such as passwords
+	 * that may contain spaces
+	 *
+	 * @return the text after the verb, null if there are no arguments
+	 */
+	public String getRemainder() {
+		if (argumentCount == 0) {
+			return null;
+		}
+		int start = argumentStart[0];
+		return new String(line, start, length - start, CHARSET);
+	}
+
+	/**
+	 * Appends the command line as it was received, without line terminators,
+	 * to a response that echoes it
+	 *
+	 * @param response
+	 *            the response line to append to
+	 */
+	public void appendTo(ResponseLine response) {
+		response.append(line, 0, length);
+	}
+
+	/**
+	 * Gets the command line as it was received, without line terminators
+	 *
+	 * @return the command line
+	 */
+	@Override
+	public String toString() {
+		return new String(line, 0, length, CHARSET);
+	}
+
+	/**
+	 * Finds the next occurrence of a byte in the command line
+	 *
+	 * @param c
+	 *            the byte to find
+	 * @param from
+	 *            the position to start searching from
+	 * @return the position of the byte, the length of the line if it isn't
+	 *         found
+	 */
+	private int indexOf(char c, int from) {
+		for (int i = from; i < length; i++) {
+			if (line[i] == c) {
+				return i;
+			}
+		}
+		return length;
+	}
+}
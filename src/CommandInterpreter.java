@@ -1,3 +1,8 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 public class CommandInterpreter implements ICommandInterpreter {
 	/* Interpreter messages */
 	private static final String INVALID_IN_STATE = "-ERR command invalid in the current state";
@@ -14,16 +19,38 @@ public class CommandInterpreter implements ICommandInterpreter {
 	private static final String PASSWORD_INCORRECT = "-ERR password incorrect";
 	private static final String QUIT_OK = "+OK quitting";
 	private static final String NOOP_OK = "+OK no operation";
+	private static final String CAPA_OK = "+OK capability list follows";
 	private static final String MESSAGE_NOT_FOUND = "-ERR message not found";
 	private static final String MESSAGE_ALREADY_DELETED = "-ERR message already deleted";
+	private static final String MESSAGE_UNAVAILABLE = "-ERR unable to read the message";
+	private static final String TOP_OK = "+OK top of message follows";
 	private static final String MESSAGE_MARKED = "+OK message marked as deleted";
 	private static final String RESET_OK = "+OK deleted messages restored";
 	private static final String INVALID_ARG_VAL = "-ERR invalid argument value";
 	private static final String QUIT_ERROR = "-ERR some messages were not deleted";
+	private static final String MAILDROP_ERROR = "-ERR unable to open the maildrop";
+	private static final String STLS_OK = "+OK begin TLS negotiation";
+	private static final String STLS_UNAVAILABLE = "-ERR TLS is not available";
+	private static final String AUTH_THROTTLED = "-ERR [AUTH] too many login attempts, try again later";
+	private static final String ERROR_MESSAGE_READ = "The message could not be read from the database";
+
+	/* Capabilities advertised by CAPA (RFC 2449) */
+	private static final String[] CAPABILITIES = { "TOP", "UIDL", "USER",
+			"PIPELINING" };
+	private static final String CAPABILITY_STLS = "STLS";
 
 	private State state;
 	private IDatabase database;
-	private String username;
+	private Account account;
+	private volatile String username;
+	private boolean locked;
+	private MaildropIndex index;
+	private Metrics metrics;
+	private boolean tlsAvailable;
+	private boolean startingTls;
+	private InetAddress peer;
+	private AuthThrottle throttle;
+	private ResponseLine response;
 
 	private enum State {
 		AUTHORIZATION, TRANSACTION, UPDATE
@@ -33,41 +60,97 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * Default constructor
 	 */
 	public CommandInterpreter() {
+		this(Database.getInstance());
+	}
+
+	/**
+	 * Creates an interpreter using the specified database
+	 * 
+	 * @param database
+	 *            the database holding the maildrops
+	 */
+	public CommandInterpreter(IDatabase database) {
+		this(database, null);
+	}
+
+	/**
+	 * Creates an interpreter for a client connection. Logins from the client
+	 * are throttled by its address and the usernames it tries, so that
+	 * guessing passwords is turned away before the database is used.
+	 * 
+	 * @param database
+	 *            the database holding the maildrops
+	 * @param peer
+	 *            the address of the client, null to not throttle logins
+	 */
+	public CommandInterpreter(IDatabase database, InetAddress peer) {
 		state = State.AUTHORIZATION;
-		database = Database.getInstance();
-		username = "";
+		this.database = database;
+		this.peer = peer;
+		metrics = Metrics.getInstance();
+		response = new ResponseLine();
+		if (peer != null) {
+			throttle = AuthThrottle.getInstance();
+		}
+	}
+
+	@Override
+	public void handleInput(Command command, IResponseSink out)
+			throws IOException {
+		long start = System.nanoTime();
+		startingTls = false;
+		try {
+			String response = execute(command, out);
+			if (response != null) {
+				out.writeLine(response);
+			}
+		} finally {
+			metrics.recordCommand(command.getVerb(), System.nanoTime() - start);
+		}
 	}
 
-	public String handleInput(String input) {
-		input = input.replaceAll("[\r\n]+$", "");
-		String[] cmdArgs = input.split(" ", 2);
-		String in = " " + input;
-		
-		switch (cmdArgs[0].toUpperCase()) {
-		case "USER":
-			return commandUSER(in, cmdArgs);
-		case "PASS":
-			return commandPASS(in, cmdArgs);
-		case "QUIT":
-			return commandQUIT(in, cmdArgs);
-		case "STAT":
-			return commandSTAT(in, cmdArgs);
-		case "LIST":
-			return commandLIST(in, cmdArgs);
-		case "RETR":
-			return commandRETR(in, cmdArgs);
-		case "DELE":
-			return commandDELE(in, cmdArgs);
-		case "NOOP":
-			return commandNOOP(in, cmdArgs);
-		case "RSET":
-			return commandRSET(in, cmdArgs);
-		case "TOP":
-			return commandTOP(in, cmdArgs);
-		case "UIDL":
-			return commandUIDL(in, cmdArgs);
+	/**
+	 * Executes a decoded POP3 command
+	 * 
+	 * @param cmd
+	 *            the command, along with its arguments
+	 * @param out
+	 *            the sink streamed responses are written to
+	 * @return the server response, or null if the response was written to
+	 *         the sink
+	 * @throws IOException
+	 *             if a streamed response cannot be written
+	 */
+	private String execute(Command cmd, IResponseSink out) throws IOException {
+		switch (cmd.getVerb()) {
+		case USER:
+			return commandUSER(cmd, out);
+		case PASS:
+			return commandPASS(cmd, out);
+		case QUIT:
+			return commandQUIT(cmd, out);
+		case STAT:
+			return commandSTAT(cmd, out);
+		case LIST:
+			return commandLIST(cmd, out);
+		case RETR:
+			return commandRETR(cmd, out);
+		case DELE:
+			return commandDELE(cmd, out);
+		case NOOP:
+			return commandNOOP(cmd, out);
+		case RSET:
+			return commandRSET(cmd, out);
+		case TOP:
+			return commandTOP(cmd, out);
+		case UIDL:
+			return commandUIDL(cmd, out);
+		case CAPA:
+			return commandCAPA(cmd, out);
+		case STLS:
+			return commandSTLS(cmd, out);
 		default:
-			return INVALID_COMMAND + in;
+			return echo(INVALID_COMMAND, cmd, out);
 		}
 	}
 
@@ -79,25 +162,42 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * allow spaces in it).
 	 * 
 	 * @param cmd
-	 *            the command, split into the identifier and arguments
-	 * @return the server response for the command
+	 *            the command, along with arguments
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandUSER(String input, String[] cmd) {
+	private String commandUSER(Command cmd, IResponseSink out)
+			throws IOException {
 		if (state != State.AUTHORIZATION) {
-			return INVALID_IN_STATE + input;
-		} else if ((cmd.length != 2) || (cmd[1].split(" ").length != 1)) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 1) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
-		if (database.userExists(cmd[1])) {
-			if (!database.getMaildropLocked(cmd[1])) {
-				username = cmd[1];
-				return USER_OK + input;
-			} else {
-				return USER_LOCKED + input;
+		/* Throttled clients are turned away before the account is looked up */
+		String name = cmd.getArgument(0);
+		if (throttle != null
+				&& throttle.acquire(peer, name) != AuthThrottle.Result.ALLOWED) {
+			return echo(AUTH_THROTTLED, cmd, out);
+		}
+
+		/* The account is loaded once and kept for the PASS command */
+		Account found = database.getAccount(name);
+		if (found == null) {
+			if (throttle != null) {
+				throttle.failed(peer, null);
 			}
+			return echo(USER_NOT_FOUND, cmd, out);
+		} else if (found.isLocked()) {
+			return echo(USER_LOCKED, cmd, out);
 		} else {
-			return USER_NOT_FOUND + input;
+			account = found;
+			username = name;
+			return echo(USER_OK, cmd, out);
 		}
 	}
 
@@ -111,25 +211,51 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 'USER' command has not been executed successfully.
 	 * 
 	 * @param cmd
-	 *            the command, split into the identifier and arguments
-	 * @return the server response for the command
+	 *            the command, along with arguments
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandPASS(String input, String[] cmd) {
+	private String commandPASS(Command cmd, IResponseSink out)
+			throws IOException {
 		if (state != State.AUTHORIZATION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 2) {
-			return INCORRECT_NUM_ARGS + input;
-		} else if (username.equals("")) {
-			return USER_COMMAND_NOT_SENT + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() == 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
+		} else if (account == null) {
+			return echo(USER_COMMAND_NOT_SENT, cmd, out);
+		} else if (throttle != null
+				&& throttle.check(peer, username) != AuthThrottle.Result.ALLOWED) {
+			return echo(AUTH_THROTTLED, cmd, out);
+		} else if (!account.passwordCorrect(cmd.getRemainder())) {
+			if (throttle != null) {
+				throttle.failed(peer, username);
+			}
+			return echo(PASSWORD_INCORRECT, cmd, out);
 		}
 
-		if (database.passwordCorrect(username, cmd[1])) {
-			state = State.TRANSACTION;
-			database.setMaildropLocked(username, true);
-			return PASSWORD_OK + input;
-		} else {
-			return PASSWORD_INCORRECT + input;
+		/* Another session may have taken the lock since the USER command */
+		if (!database.lockMaildrop(account.getMaildropId())) {
+			return echo(USER_LOCKED, cmd, out);
 		}
+		locked = true;
+
+		/* Load the maildrop index used by every transaction command */
+		index = database.getMaildropIndex(account.getMaildropId());
+		if (index == null) {
+			database.unlockMaildrop(account.getMaildropId());
+			locked = false;
+			return echo(MAILDROP_ERROR, cmd, out);
+		}
+
+		if (throttle != null) {
+			throttle.succeeded(peer, username);
+		}
+		state = State.TRANSACTION;
+		return echo(PASSWORD_OK, cmd, out);
 	}
 
 	/**
@@ -141,18 +267,24 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command, no arguments are expected
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandQUIT(String input, String[] cmd) {
-		if (cmd.length != 1) {
-			return INCORRECT_NUM_ARGS + input;
+	private String commandQUIT(Command cmd, IResponseSink out)
+			throws IOException {
+		if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
 		if (state == State.AUTHORIZATION) {
-			return QUIT_OK + input;
+			return echo(QUIT_OK, cmd, out);
 		} else {
 			state = State.UPDATE;
-			return performUpdate() + input;
+			return echo(performUpdate(), cmd, out);
 		}
 	}
 
@@ -162,17 +294,90 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * or has arguments.
 	 * 
 	 * @param cmd
-	 *            the command, split into the identifier and arguments
-	 * @return the server response for the command
+	 *            the command, along with arguments
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandNOOP(String input, String[] cmd) {
+	private String commandNOOP(Command cmd, IResponseSink out)
+			throws IOException {
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 1) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		} else {
-			return NOOP_OK + input;
+			return echo(NOOP_OK, cmd, out);
+		}
+	}
+
+	/**
+	 * Handles the CAPA command from RFC 2449, which is valid in every state
+	 * before the Update state. The response lists the optional commands and
+	 * extensions supported by the server as a multiline response, terminated
+	 * by a full-stop. PIPELINING tells the client that it may send several
+	 * commands without waiting for each response. STLS is listed while the
+	 * session can still be upgraded to TLS.
+	 * 
+	 * @param cmd
+	 *            the command, no arguments are expected
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private String commandCAPA(Command cmd, IResponseSink out)
+			throws IOException {
+		if (state == State.UPDATE) {
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
+		}
+
+		StringBuilder list = new StringBuilder(CAPA_OK).append("\r\n");
+		for (String capability : CAPABILITIES) {
+			list.append(capability).append("\r\n");
+		}
+		if (tlsAvailable) {
+			list.append(CAPABILITY_STLS).append("\r\n");
+		}
+		return list.append('.').toString();
+	}
+
+	/**
+	 * Handles the STLS command from RFC 2595 in the Authorization state. Once
+	 * the positive response has been sent the session starts the TLS
+	 * handshake. Any user named before the command is forgotten, and STLS
+	 * cannot be used again.
+	 * 
+	 * @param cmd
+	 *            the command, no arguments are expected
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private String commandSTLS(Command cmd, IResponseSink out)
+			throws IOException {
+		if (state != State.AUTHORIZATION) {
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
+		} else if (!tlsAvailable) {
+			return echo(STLS_UNAVAILABLE, cmd, out);
 		}
+
+		account = null;
+		username = null;
+		tlsAvailable = false;
+		startingTls = true;
+		return echo(STLS_OK, cmd, out);
 	}
 
 	/**
@@ -186,17 +391,24 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command, no arguments are expected
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandSTAT(String input, String[] cmd) {
+	private String commandSTAT(Command cmd, IResponseSink out)
+			throws IOException {
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 1) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
-		return "+OK " + database.numMessages(username, false) + " "
-				+ database.sizeOfMaildrop(username);
+		response.clear().append("+OK ").append(index.numUnmarked()).append(' ')
+				.append(index.sizeUnmarked()).writeTo(out);
+		return null;
 	}
 
 	/**
@@ -211,38 +423,47 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command with arguments
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandLIST(String input, String[] cmd) {
+	private String commandLIST(Command cmd, IResponseSink out)
+			throws IOException {
 		int id;
 
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length > 2) {
-			return TOO_MANY_ARGS + input;
-		}
-
-		if (cmd.length == 1) {
-			int numMessages = database.numMessages(username, true);
-			String out = "+OK " + database.numMessages(username, false) + " ("
-					+ database.sizeOfMaildrop(username) + ")\r\n";
-			for (int i = 1; i <= numMessages; i++) {
-				if (!database.messageMarked(username, i)) {
-					out += i + " " + database.sizeOfMessage(username, i) + "\r\n";
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() > 1) {
+			return echo(TOO_MANY_ARGS, cmd, out);
+		}
+
+		if (cmd.getArgumentCount() == 0) {
+			StringBuilder list = new StringBuilder("+OK ");
+			list.append(index.numUnmarked()).append(" (")
+					.append(index.sizeUnmarked()).append(")\r\n");
+			for (int i = 1; i <= index.size(); i++) {
+				if (!index.isMarked(i)) {
+					list.append(i).append(' ').append(index.sizeOf(i))
+							.append("\r\n");
 				}
 			}
-			return out + ".";
+			return list.append('.').toString();
 		} else {
 			try {
-				id = Integer.parseInt(cmd[1]);
+				id = cmd.getNumber(0);
 			} catch (Exception ex) {
-				return INVALID_ARG_TYPE + input;
+				return echo(INVALID_ARG_TYPE, cmd, out);
 			}
 
-			if (database.messageExists(username, id) && !database.messageMarked(username, id)) {
-				return "+OK " + id + " " + database.sizeOfMessage(username, id);
+			if (index.exists(id) && !index.isMarked(id)) {
+				response.clear().append("+OK ").append(id).append(' ')
+						.append(index.sizeOf(id)).writeTo(out);
+				return null;
 			} else {
-				return MESSAGE_NOT_FOUND + input;
+				return echo(MESSAGE_NOT_FOUND, cmd, out);
 			}
 		}
 	}
@@ -254,33 +475,75 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * message could not be found.
 	 * 
 	 * The argument paired with the command represents the message to retrieve.
+	 * The message is streamed from the database straight to the client, so
+	 * the response is written to the sink rather than returned.
 	 * 
 	 * @param cmd
 	 *            the command with arguments
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the message is written to
+	 * @return the server response for the command, null if the message was
+	 *         written to the sink
+	 * @throws IOException
+	 *             if the message cannot be sent
 	 */
-	private String commandRETR(String input, String[] cmd) {
+	private String commandRETR(Command cmd, IResponseSink out)
+			throws IOException {
 		int id;
 
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 2) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 1) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
 		try {
-			id = Integer.parseInt(cmd[1]);
+			id = cmd.getNumber(0);
 		} catch (NumberFormatException ex) {
-			return INVALID_ARG_TYPE + input;
+			return echo(INVALID_ARG_TYPE, cmd, out);
+		}
+
+		if (!index.exists(id)) {
+			return echo(MESSAGE_NOT_FOUND, cmd, out);
+		} else if (index.isMarked(id)) {
+			return echo(MESSAGE_ALREADY_DELETED, cmd, out);
 		}
 
-		if (!database.messageExists(username, id)) {
-			return MESSAGE_NOT_FOUND + input;
-		} else if (database.messageMarked(username, id)) {
-			return MESSAGE_ALREADY_DELETED + input;
+		/* Messages stored in wire form are sent without processing */
+		ByteBuffer mapped;
+		FileChannel wire;
+		try {
+			mapped = database.mapWireMessage(index.getMaildropId(),
+					index.mailId(id));
+			wire = (mapped != null) ? null : database.openWireMessage(
+					index.getMaildropId(), index.mailId(id));
+		} catch (IOException e) {
+			return echo(MESSAGE_UNAVAILABLE, cmd, out);
+		}
+		if (mapped != null) {
+			writeOctets(index.sizeOf(id), out);
+			out.write(mapped);
+			return null;
+		} else if (wire != null) {
+			try {
+				writeOctets(index.sizeOf(id), out);
+				out.transferFrom(wire, 0, wire.size());
+			} finally {
+				wire.close();
+			}
+			return null;
 		} else {
-			return "+OK " + database.sizeOfMessage(username, id) + " octets\r\n"
-					+ database.getMessage(username, id) + "\r\n.";
+			writeOctets(index.sizeOf(id), out);
+			DotStuffingOutputStream body = new DotStuffingOutputStream(
+					out.getOutputStream());
+
+			/* The +OK has been sent, so a failure can only end the session */
+			if (!database.writeMessage(index.getMaildropId(),
+					index.mailId(id), body)) {
+				throw new IOException(ERROR_MESSAGE_READ);
+			}
+			body.finish();
+			return null;
 		}
 	}
 
@@ -294,30 +557,36 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command, with the id of the message to be deleted
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandDELE(String input, String[] cmd) {
+	private String commandDELE(Command cmd, IResponseSink out)
+			throws IOException {
 		int id;
 
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 2) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 1) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
 		try {
-			id = Integer.parseInt(cmd[1]);
+			id = cmd.getNumber(0);
 		} catch (NumberFormatException ex) {
-			return INVALID_ARG_TYPE + input;
+			return echo(INVALID_ARG_TYPE, cmd, out);
 		}
 
-		if (!database.messageExists(username, id)) {
-			return MESSAGE_NOT_FOUND + input;
-		} else if (database.messageMarked(username, id)) {
-			return MESSAGE_ALREADY_DELETED + input;
+		if (!index.exists(id)) {
+			return echo(MESSAGE_NOT_FOUND, cmd, out);
+		} else if (index.isMarked(id)) {
+			return echo(MESSAGE_ALREADY_DELETED, cmd, out);
 		} else {
-			database.setMark(username, id, true);
-			return MESSAGE_MARKED + input;
+			index.setMarked(id, true);
+			return echo(MESSAGE_MARKED, cmd, out);
 		}
 	}
 
@@ -328,16 +597,22 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command, no arguments are expected
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandRSET(String input, String[] cmd) {
+	private String commandRSET(Command cmd, IResponseSink out)
+			throws IOException {
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length != 1) {
-			return INCORRECT_NUM_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() != 0) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		} else {
-			database.restoreMarked(username);
-			return RESET_OK + input;
+			index.clearMarks();
+			return echo(RESET_OK, cmd, out);
 		}
 	}
 
@@ -345,65 +620,55 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * Handles the TOP command in the transaction state. An error status is
 	 * returned if the command is called in an invalid state, an incorrect
 	 * number of arguments are provided, the arguments have an incorrect type or
-	 * the message couldn't be found.
+	 * the message couldn't be found. Only the header and the requested lines
+	 * of the body are read from the database.
 	 * 
 	 * @param cmd
 	 *            the command, along with arguments
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the message is written to
+	 * @return the server response for the command, null if the message was
+	 *         written to the sink
+	 * @throws IOException
+	 *             if the message cannot be sent
 	 */
-	private String commandTOP(String input, String[] cmd) {
+	private String commandTOP(Command cmd, IResponseSink out)
+			throws IOException {
 		int id, n;
-		String[] args;
 
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length < 2) {
-			return TOO_FEW_ARGS + input;
-		} else {
-			args = cmd[1].split(" ");
-			if (args.length != 2) {
-				return INCORRECT_NUM_ARGS + input;
-			}
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() < 1) {
+			return echo(TOO_FEW_ARGS, cmd, out);
+		} else if (cmd.getArgumentCount() != 2) {
+			return echo(INCORRECT_NUM_ARGS, cmd, out);
 		}
 
 		try {
-			id = Integer.parseInt(args[0]);
-			n = Integer.parseInt(args[1]);
+			id = cmd.getNumber(0);
+			n = cmd.getNumber(1);
 		} catch (NumberFormatException ex) {
-			return INVALID_ARG_TYPE + input;
+			return echo(INVALID_ARG_TYPE, cmd, out);
 		}
 
-		if (!database.messageExists(username, id)) {
-			return MESSAGE_NOT_FOUND + input;
-		} else if (database.messageMarked(username, id)) {
-			return MESSAGE_ALREADY_DELETED + input;
+		if (!index.exists(id)) {
+			return echo(MESSAGE_NOT_FOUND, cmd, out);
+		} else if (index.isMarked(id)) {
+			return echo(MESSAGE_ALREADY_DELETED, cmd, out);
 		} else if (n < 0) {
-			return INVALID_ARG_VAL + input;
+			return echo(INVALID_ARG_VAL, cmd, out);
 		} else {
-			String message = database.getMessage(username, id);
-			
-			/* Check for an empty message */
-			if (message.equals(null)) {
-				return "+OK\r\n.";
-			}
-			
-			/* Split the full message into header and body components */
-			String[] tmp = message.split("\n\n", 2);
-			String header = tmp[0];
-			String body = tmp[1];
-			
-			/* Split the body into lines */
-			tmp = body.split("\n");
-			body = "";
-			
-			/* Reconstruct the body for n lines */
-			for (int i = 0; i < tmp.length - 1; i++) {
-				if (n == i) break;
-				body += "\n" + tmp[i];
+			response.clear().append(TOP_OK).writeTo(out);
+			DotStuffingOutputStream body = new DotStuffingOutputStream(
+					out.getOutputStream());
+
+			/* The +OK has been sent, so a failure can only end the session */
+			if (!database.writeMessageTop(index.getMaildropId(),
+					index.mailId(id), n, body)) {
+				throw new IOException(ERROR_MESSAGE_READ);
 			}
-			
-			/* Return the requested lines */
-			return "+OK \r\n" + header + "\r\n" + body + "\r\n.";
+			body.finish();
+			return null;
 		}
 	}
 
@@ -415,43 +680,92 @@ public class CommandInterpreter implements ICommandInterpreter {
 	 * 
 	 * @param cmd
 	 *            the command, along with arguments
-	 * @return the server response for the command
+	 * @param out
+	 *            the sink the response is written to
+	 * @return the server response for the command, null if it was written
+	 *         to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
 	 */
-	private String commandUIDL(String input, String[] cmd) {
+	private String commandUIDL(Command cmd, IResponseSink out)
+			throws IOException {
 		int id;
 
 		if (state != State.TRANSACTION) {
-			return INVALID_IN_STATE + input;
-		} else if (cmd.length > 2) {
-			return TOO_MANY_ARGS + input;
+			return echo(INVALID_IN_STATE, cmd, out);
+		} else if (cmd.getArgumentCount() > 1) {
+			return echo(TOO_MANY_ARGS, cmd, out);
 		}
 
-		if (cmd.length == 1) {
-			int numMessages = database.numMessages(username, false);
-			String out = "+OK " + numMessages + " ("
-					+ database.sizeOfMaildrop(username) + ")\r\n";
-			for (int i = 1; i <= numMessages; i++) {
-				out += i + " " + database.messageUIDL(username, i) + "\r\n";
+		if (cmd.getArgumentCount() == 0) {
+			StringBuilder list = new StringBuilder("+OK ");
+			list.append(index.numUnmarked()).append(" (")
+					.append(index.sizeUnmarked()).append(")\r\n");
+			for (int i = 1; i <= index.size(); i++) {
+				if (!index.isMarked(i)) {
+					list.append(i).append(' ').append(index.uidl(i))
+							.append("\r\n");
+				}
 			}
-			return out + ".";
+			return list.append('.').toString();
 		} else {
 			try {
-				id = Integer.parseInt(cmd[1]);
+				id = cmd.getNumber(0);
 			} catch (NumberFormatException ex) {
-				return INVALID_ARG_TYPE + input;
+				return echo(INVALID_ARG_TYPE, cmd, out);
 			}
 
-			if (database.messageExists(username, id) && !database.messageMarked(username, id)) {
-				return "+OK " + id + " " + database.messageUIDL(username, id);
+			if (index.exists(id) && !index.isMarked(id)) {
+				response.clear().append("+OK ").append(id).append(' ')
+						.append(index.uidl(id)).writeTo(out);
+				return null;
 			} else {
-				return MESSAGE_NOT_FOUND + input;
+				return echo(MESSAGE_NOT_FOUND, cmd, out);
 			}
 		}
 	}
 
+	/**
+	 * Writes a status response followed by the command it answers, which is
+	 * copied from the bytes it was received as
+	 * 
+	 * @param status
+	 *            the status of the response
+	 * @param cmd
+	 *            the command to echo
+	 * @param out
+	 *            the sink the response is written to
+	 * @return null, as the response has been written to the sink
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private String echo(String status, Command cmd, IResponseSink out)
+			throws IOException {
+		response.clear().append(status).append(' ');
+		cmd.appendTo(response);
+		response.writeTo(out);
+		return null;
+	}
+
+	/**
+	 * Writes the positive response that precedes the content of a message
+	 * 
+	 * @param size
+	 *            the size of the message, in octets
+	 * @param out
+	 *            the sink the response is written to
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private void writeOctets(int size, IResponseSink out) throws IOException {
+		response.clear().append("+OK ").append(size).append(" octets")
+				.writeTo(out);
+	}
+
 	/**
 	 * Deletes any messages marked to be deleted and returns the result from the
-	 * operation
+	 * operation. Marks are only held by the session until now, and every
+	 * marked message is deleted in a single operation, or none are.
 	 * 
 	 * @return +OK if all messages were deleted, -ERR otherwise
 	 */
@@ -461,21 +775,48 @@ public class CommandInterpreter implements ICommandInterpreter {
 		}
 
 		/* Delete marked messages */
-		int numMessagesBeforeDelete = database.numMessages(username, true);
-		int n = database.deleteMarkedMessages(username);
-		
-		/* Check how many messages were deleted */
-		if (n == (numMessagesBeforeDelete - database.numMessages(username, true))) {
-			database.setMaildropLocked(username, false);
+		int maildropId = index.getMaildropId();
+		int[] mailIds = index.markedMailIds();
+		int n = database.deleteMessages(maildropId, mailIds);
+
+		/* The session ends either way, so the maildrop is released */
+		database.unlockMaildrop(maildropId);
+		locked = false;
+
+		/* Check every message was deleted */
+		if (n == mailIds.length) {
 			return "+OK " + n + " messages deleted";
 		} else {
 			return QUIT_ERROR;
 		}
 	}
 	
+	@Override
+	public void setTlsAvailable(boolean available) {
+		tlsAvailable = available;
+	}
+
+	@Override
+	public boolean isStartingTls() {
+		return startingTls;
+	}
+
+	@Override
+	public boolean isAuthorised() {
+		return state != State.AUTHORIZATION;
+	}
+
+	@Override
+	public String getUsername() {
+		return username;
+	}
+
 	@Override
 	public void close() {
-		database.restoreMarked(username);
-		database.setMaildropLocked(username, false);
+		/* Only a maildrop locked by this session is released, marks are dropped */
+		if (locked) {
+			database.unlockMaildrop(index.getMaildropId());
+			locked = false;
+		}
 	}
 }
@@ -0,0 +1,248 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionPool {
+	/* System Messages */
+	private static final String ERROR_POOL_EXHAUSTED = "Timed out waiting for a database connection";
+	private static final String ERROR_POOL_CLOSED = "The connection pool has been closed";
+
+	/* Connection settings */
+	private String url;
+	private String username;
+	private String password;
+	private int maxSize;
+	private long waitTimeout;
+
+	/* Pool members */
+	private BlockingQueue<PooledConnection> idle;
+	private AtomicInteger size;
+	private volatile boolean closed;
+
+	/* Pool metrics */
+	private AtomicInteger active;
+	private AtomicLong checkouts;
+	private AtomicLong timeouts;
+	private AtomicLong totalWaitTime;
+	private AtomicLong maxWaitTime;
+	private AtomicLong totalCheckoutTime;
+
+	/**
+	 * Creates a pool of connections to the specified database. Connections are
+	 * opened lazily, up to the maximum size of the pool.
+	 *
+	 * @param url
+	 *            the JDBC url of the database
+	 * @param username
+	 *            the database username
+	 * @param password
+	 *            the database password
+	 * @param maxSize
+	 *            the maximum number of open connections
+	 * @param waitTimeout
+	 *            the maximum time to wait for a free connection, in
+	 *            milliseconds
+	 */
+	public ConnectionPool(String url, String username, String password,
+			int maxSize, long waitTimeout) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException(
+					"The connection pool size must be greater than zero.");
+		}
+
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.waitTimeout = waitTimeout;
+
+		idle = new LinkedBlockingQueue<>();
+		size = new AtomicInteger();
+		active = new AtomicInteger();
+		checkouts = new AtomicLong();
+		timeouts = new AtomicLong();
+		totalWaitTime = new AtomicLong();
+		maxWaitTime = new AtomicLong();
+		totalCheckoutTime = new AtomicLong();
+	}
+
+	/**
+	 * Checks a connection out of the pool. An idle connection is reused if
+	 * one is available, otherwise a new connection is opened if the pool is
+	 * below its maximum size. If neither is possible the caller waits for a
+	 * connection to be released.
+	 *
+	 * @return a connection for the exclusive use of the caller
+	 * @throws SQLException
+	 *             if a connection cannot be opened or the wait times out
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if (closed) {
+			throw new SQLException(ERROR_POOL_CLOSED);
+		}
+
+		long start = System.nanoTime();
+		PooledConnection connection = idle.poll();
+
+		/* Open a new connection if the pool has room for one */
+		if (connection == null) {
+			int current;
+			while ((current = size.get()) < maxSize) {
+				if (size.compareAndSet(current, current + 1)) {
+					try {
+						connection = new PooledConnection(
+								DriverManager.getConnection(url, username,
+										password));
+					} catch (SQLException e) {
+						size.decrementAndGet();
+						throw e;
+					}
+					break;
+				}
+			}
+		}
+
+		/* Otherwise wait for another caller to release one */
+		if (connection == null) {
+			try {
+				connection = idle.poll(waitTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (connection == null) {
+				timeouts.incrementAndGet();
+				throw new SQLTimeoutException(ERROR_POOL_EXHAUSTED);
+			}
+		}
+
+		/* Record the wait */
+		long now = System.nanoTime();
+		long wait = now - start;
+		totalWaitTime.addAndGet(wait);
+		long max;
+		while (wait > (max = maxWaitTime.get())) {
+			if (maxWaitTime.compareAndSet(max, wait)) {
+				break;
+			}
+		}
+		checkouts.incrementAndGet();
+		active.incrementAndGet();
+		connection.setCheckoutTime(now);
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to the pool. Connections that are no longer usable
+	 * are discarded so that a fresh one can be opened in their place.
+	 *
+	 * @param connection
+	 *            the connection to release, may be null
+	 */
+	public void release(PooledConnection connection) {
+		if (connection == null) {
+			return;
+		}
+
+		totalCheckoutTime.addAndGet(System.nanoTime()
+				- connection.getCheckoutTime());
+		active.decrementAndGet();
+
+		if (closed || !connection.reset()) {
+			connection.close();
+			size.decrementAndGet();
+		} else {
+			idle.offer(connection);
+		}
+	}
+
+	/**
+	 * Closes every idle connection and prevents new checkouts. Connections
+	 * that are checked out are closed when they are released.
+	 */
+	public void close() {
+		closed = true;
+
+		PooledConnection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of connections in the pool
+	 *
+	 * @return the maximum pool size
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of open connections
+	 *
+	 * @return the number of open connections
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the number of connections currently checked out
+	 *
+	 * @return the number of active connections
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Gets the total number of successful checkouts
+	 *
+	 * @return the number of checkouts
+	 */
+	public long getCheckouts() {
+		return checkouts.get();
+	}
+
+	/**
+	 * Gets the number of checkouts that timed out waiting for a connection
+	 *
+	 * @return the number of timeouts
+	 */
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Gets the total time callers spent waiting for a connection
+	 *
+	 * @return the total wait time, in nanoseconds
+	 */
+	public long getTotalWaitTime() {
+		return totalWaitTime.get();
+	}
+
+	/**
+	 * Gets the longest time a caller waited for a connection
+	 *
+	 * @return the maximum wait time, in nanoseconds
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * Gets the total time connections were held by callers
+	 *
+	 * @return the total checkout time, in nanoseconds
+	 */
+	public long getTotalCheckoutTime() {
+		return totalCheckoutTime.get();
+	}
+}
@@ -1,349 +1,376 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.sql.*;
 
-public class Database implements IDatabase {
+public class Database extends DatabaseReader implements IDatabase {
 	/* Database members */
-	private ResultSet result;
-	private Connection connection;
-	private PreparedStatement query;
-	private static Database instance = null;
+	private LeaseManager leases;
+	private Expunger expunger;
+	private AccessLog log;
 
 	/* Connection settings */
 	private static final String DB_USERNAME = "xxxxxxx";
 	private static final String DB_PASSWORD = "xxxxxxx";
 	private static final String DB_URL = "jdbc:mysql://localhost/xxxxxx";
+	private static final int DB_POOL_SIZE = 16;
+	private static final int DB_POOL_TIMEOUT = 5000;
+	private static final int DB_UNKNOWN_USER_TTL = 60;
+	private static final int DB_UNKNOWN_USER_ENTRIES = 10000;
+	private static final int LOCK_LEASE_TTL = 60;
+	private static final int EXPUNGE_BATCH_SIZE = 100;
+	private static final int EXPUNGE_INTERVAL = 1000;
+
+	/* Number of messages deleted by each statement at QUIT */
+	private static final int DELETE_BATCH_SIZE = 100;
 
 	/* System Messages */
 	private static final String ERROR_CONNECTION = "Database connection error.";
 	private static final String ERROR_TIMEOUT = "The database connection timed out.";
 	private static final String ERROR_QUERY = "Error while querying the database";
-	private static final String ERROR_CLOSE = "An error occurred while closing the database connection.";
+	private static final String ERROR_LEASE_LOST = "Messages were not deleted as the maildrop lease was lost";
 
 	/* SQL Queries */
-	private static final String QUERY_USER_EXISTS = "SELECT `vchUsername` FROM `m_Maildrop` WHERE `vchUsername` = ?";
-	private static final String QUERY_PASSWORD = "SELECT `vchPassword` FROM `m_Maildrop` WHERE `vchUsername` = ? AND `vchPassword` = ?";
-	private static final String QUERY_UPDATE_LOCK = "UPDATE `m_Maildrop` SET `tiLocked` = ? WHERE `vchUsername` = ?";
-	private static final String QUERY_MAILDROP_LOCKED = "SELECT `tiLocked` FROM `m_Maildrop` WHERE `vchUsername` = ? AND `tiLocked` = 1";
-	private static final String QUERY_DELETE_MARKED = "DELETE `mail` FROM `m_Mail` AS `mail` NATURAL JOIN `m_Maildrop` AS `maildrop` WHERE `vchUsername` = ? AND `markedForDeletion` = 1";
-	private static final String QUERY_NUM_MARKED_UNMARKED = "SELECT COUNT(*) AS 'numMsg' FROM `m_Mail` NATURAL JOIN `m_Maildrop` WHERE `vchUsername` = ?";
-	private static final String QUERY_NUM_UNMARKED = "SELECT COUNT(*) AS 'numMsg' FROM `m_Mail` NATURAL JOIN `m_Maildrop` WHERE `vchUsername` = ? AND `markedForDeletion` = 0";
-	private static final String QUERY_MAILDROP_SIZE = "SELECT SUM(LENGTH(txMailContent)) AS 'maildropSize' FROM `m_Mail` NATURAL JOIN `m_Maildrop` WHERE `vchUsername` = ? AND `markedForDeletion` = 0";
-	private static final String QUERY_MESSAGE_SIZE = "SELECT LENGTH(txMailContent) AS 'messageSize' FROM (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable WHERE `rowNum` = ?";
-	private static final String QUERY_MESSAGE_EXISTS = "SELECT `rowNum` FROM (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable WHERE `rowNum` = ? AND `markedForDeletion` = 0";
-	private static final String QUERY_UPDATE_MARK = "UPDATE `m_Mail` NATURAL JOIN (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable SET `markedForDeletion` = ? WHERE `rowNum` = ?";
-	private static final String QUERY_MESSAGE_MARKED = "SELECT `markedForDeletion` FROM (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable WHERE `rowNum` = ? AND `markedForDeletion` = 1";
-	private static final String QUERY_MESSAGE_CONTENT = "SELECT `txMailContent` FROM (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable WHERE `rowNum` = ?";
-	private static final String QUERY_MESSAGE_UIDL = "SELECT `vchUIDL` FROM (SELECT *, @rowNum := @rowNum + 1 rowNum FROM `m_Mail` NATURAL JOIN `m_Maildrop`, (SELECT @rowNum := 0) AS m WHERE `vchUsername` = ? ORDER BY iMailID) AS idTable WHERE `rowNum` = ?";
-	private static final String QUERY_UPDATE_RESTORE = "UPDATE `m_Mail` NATURAL JOIN `m_Maildrop` SET `markedForDeletion` = 0 WHERE `vchUsername` = ? AND `markedForDeletion` = 1";
-	private static final String QUERY_UPDATE_ALL_MAILDROP = "UPDATE `m_Maildrop` SET `tiLocked` = 0";
+	private static final String QUERY_LAST_WRITE = "SELECT TIMESTAMPDIFF(SECOND, `dtLastWrite`, NOW()) AS 'age' FROM `m_Maildrop` WHERE `iMaildropID` = ?";
+	private static final String QUERY_TOUCH = "UPDATE `m_Maildrop` SET `dtLastWrite` = NOW() WHERE `iMaildropID` = ?";
+	private static final String QUERY_HIDE_MESSAGES = "UPDATE `m_Mail` SET `markedForDeletion` = 1 WHERE `iMaildropID` = ? AND `markedForDeletion` = 0 AND `iMailID` IN (" + parameters(DELETE_BATCH_SIZE) + ")";
 
 	/**
-	 * Default constructor
+	 * Default constructor. Connection settings can be overridden with the
+	 * pop3.db.url, pop3.db.username, pop3.db.password, pop3.db.poolSize and
+	 * pop3.db.poolTimeout (milliseconds) properties. Unknown usernames are
+	 * remembered for pop3.db.unknownUserTtl seconds, 0 to disable, up to
+	 * pop3.db.unknownUserEntries usernames. Maildrop locks are leased to this
+	 * server node, named by pop3.node.id (the host name by default), for
+	 * pop3.lock.leaseTtl seconds at a time. Deleted messages are removed in
+	 * the background, up to pop3.expunge.batchSize messages, 0 to disable,
+	 * every pop3.expunge.interval milliseconds while no more than
+	 * pop3.expunge.maxActive connections are in use.
 	 */
 	private Database() {
-		try {
-			DriverManager.registerDriver(new org.gjt.mm.mysql.Driver());
-			connection = DriverManager.getConnection(DB_URL, DB_USERNAME,
-					DB_PASSWORD);
-			unlockUsers();
-		} catch (SQLException e) {
-			System.err.println(ERROR_CONNECTION);
-			System.exit(Pop3Server.ERROR_STATUS);
+		this(ServerConfig.getString("db.url", DB_URL), ServerConfig.getString(
+				"db.username", DB_USERNAME), ServerConfig.getString(
+				"db.password", DB_PASSWORD), ServerConfig.getInt("db.poolSize",
+				DB_POOL_SIZE), ServerConfig.getInt("db.poolTimeout",
+				DB_POOL_TIMEOUT), ServerConfig.getString("node.id",
+				defaultNodeId()), ServerConfig.getInt("lock.leaseTtl",
+				LOCK_LEASE_TTL), unknownUsersFromConfig());
+		int batchSize = ServerConfig.getInt("expunge.batchSize",
+				EXPUNGE_BATCH_SIZE);
+		if (batchSize > 0) {
+			expunger = new Expunger(getPool(), batchSize, ServerConfig.getInt(
+					"expunge.interval", EXPUNGE_INTERVAL),
+					ServerConfig.getInt("expunge.maxActive",
+							getPool().getMaxSize() / 2));
 		}
 	}
 
 	/**
-	 * Gets the singleton instance of the database
+	 * Creates a database backed by a pool of connections to the specified
+	 * server
 	 * 
-	 * @return the instance of the database
+	 * @param url
+	 *            the JDBC url of the database
+	 * @param username
+	 *            the database username
+	 * @param password
+	 *            the database password
+	 * @param poolSize
+	 *            the maximum number of open connections
+	 * @param poolTimeout
+	 *            the maximum time to wait for a free connection, in
+	 *            milliseconds
+	 * @param nodeId
+	 *            the id of this server node, which must differ between
+	 *            nodes sharing the database
+	 * @param leaseTtl
+	 *            the number of seconds a maildrop lock lasts unless this node
+	 *            renews it
 	 */
-	public static synchronized Database getInstance() {
-		if (instance == null) {
-			instance = new Database();
-		}
-		return instance;
+	public Database(String url, String username, String password,
+			int poolSize, int poolTimeout, String nodeId, int leaseTtl) {
+		this(url, username, password, poolSize, poolTimeout, nodeId,
+				leaseTtl, null);
 	}
 
 	/**
-	 * Unlocks all maildrops in the database. This is used when the server first
-	 * starts to clean any incomplete sessions.
+	 * Creates a database backed by a pool of connections to the specified
+	 * server, remembering usernames found not to exist
+	 * 
+	 * @param url
+	 *            the JDBC url of the database
+	 * @param username
+	 *            the database username
+	 * @param password
+	 *            the database password
+	 * @param poolSize
+	 *            the maximum number of open connections
+	 * @param poolTimeout
+	 *            the maximum time to wait for a free connection, in
+	 *            milliseconds
+	 * @param nodeId
+	 *            the id of this server node, which must differ between
+	 *            nodes sharing the database
+	 * @param leaseTtl
+	 *            the number of seconds a maildrop lock lasts unless this node
+	 *            renews it
+	 * @param unknownUsers
+	 *            the cache of usernames found not to exist, null to always
+	 *            query
 	 */
-	private void unlockUsers() {
+	private Database(String url, String username, String password,
+			int poolSize, int poolTimeout, String nodeId, int leaseTtl,
+			NegativeCache unknownUsers) {
+		super(new ConnectionPool(url, username, password, poolSize,
+				poolTimeout), unknownUsers);
+		log = AccessLog.getInstance();
+		ConnectionPool pool = getPool();
 		try {
-			query = connection.prepareStatement(QUERY_UPDATE_ALL_MAILDROP);
-			query.executeUpdate();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
+			DriverManager.registerDriver(new org.gjt.mm.mysql.Driver());
+
+			/* Open the first connection up front to fail fast */
+			pool.release(pool.acquire());
+
+			/* Only the locks of this node are released, never another's */
+			leases = new LeaseManager(pool, nodeId, leaseTtl);
 		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+			System.err.println(ERROR_CONNECTION);
+			System.exit(Pop3Server.ERROR_STATUS);
 		}
 	}
 
-	@Override
-	public boolean userExists(String username) {
-		try {
-			/* Attempt to find the username in the database */
-			query = connection.prepareStatement(QUERY_USER_EXISTS);
-			query.setString(1, username);
-			return query.executeQuery().next();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+	/**
+	 * Opens the read replicas listed by pop3.db.replicas, a comma separated
+	 * list of JDBC urls. The replicas are logged in to with
+	 * pop3.db.replicaUsername and pop3.db.replicaPassword, which default to
+	 * the primary's, and each has a pool of pop3.db.replicaPoolSize
+	 * connections, by default the size of the primary's pool.
+	 * 
+	 * @return the replicas, empty if there are none
+	 */
+	public static DatabaseReader[] openReplicas() {
+		String urls = ServerConfig.getString("db.replicas", "").trim();
+		if (urls.isEmpty()) {
+			return new DatabaseReader[0];
 		}
-		return false;
-	}
 
-	@Override
-	public boolean passwordCorrect(String username, String password) {
-		try {
-			/* Attempt to get the password from the database */
-			query = connection.prepareStatement(QUERY_PASSWORD);
-			query.setString(1, username);
-			query.setString(2, password);
-			return query.executeQuery().next();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+		String username = ServerConfig.getString("db.replicaUsername",
+				ServerConfig.getString("db.username", DB_USERNAME));
+		String password = ServerConfig.getString("db.replicaPassword",
+				ServerConfig.getString("db.password", DB_PASSWORD));
+		int poolSize = ServerConfig.getInt("db.replicaPoolSize",
+				ServerConfig.getInt("db.poolSize", DB_POOL_SIZE));
+		int poolTimeout = ServerConfig.getInt("db.poolTimeout",
+				DB_POOL_TIMEOUT);
+
+		String[] list = urls.split(",");
+		DatabaseReader[] replicas = new DatabaseReader[list.length];
+		for (int i = 0; i < list.length; i++) {
+			replicas[i] = new DatabaseReader(new ConnectionPool(
+					list[i].trim(), username, password, poolSize,
+					poolTimeout), unknownUsersFromConfig());
 		}
-		return false;
+		return replicas;
 	}
 
-	@Override
-	public boolean getMaildropLocked(String username) {
-		try {
-			/* Check if the user's maildrop is locked */
-			query = connection.prepareStatement(QUERY_MAILDROP_LOCKED);
-			query.setString(1, username);
-			return query.executeQuery().next();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+	/**
+	 * Creates the cache of unknown usernames from the configuration
+	 * 
+	 * @return the cache, null if unknown usernames aren't remembered
+	 */
+	private static NegativeCache unknownUsersFromConfig() {
+		int ttl = ServerConfig.getInt("db.unknownUserTtl",
+				DB_UNKNOWN_USER_TTL);
+		if (ttl <= 0) {
+			return null;
 		}
-		return true;
+		return new NegativeCache(ttl * 1000L, ServerConfig.getInt(
+				"db.unknownUserEntries", DB_UNKNOWN_USER_ENTRIES));
 	}
 
-	@Override
-	public void setMaildropLocked(String username, boolean locked) {
-		try {
-			/* Update the lock on the user's maildrop */
-			query = connection.prepareStatement(QUERY_UPDATE_LOCK);
-			query.setInt(1, locked ? 1 : 0);
-			query.setString(2, username);
-			query.executeUpdate();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		}
+	/**
+	 * Holds the singleton instance, which the JVM creates on first use without
+	 * a lock that could pin a virtual thread during the connection setup
+	 */
+	private static class Holder {
+		private static final Database INSTANCE = new Database();
 	}
 
-	@Override
-	public int deleteMarkedMessages(String username) {
-		int numDeleted = 0;
+	/**
+	 * Gets the singleton instance of the database
+	 * 
+	 * @return the instance of the database
+	 */
+	public static Database getInstance() {
+		return Holder.INSTANCE;
+	}
 
-		try {
-			/* Delete messages marked for the specified user */
-			query = connection.prepareStatement(QUERY_DELETE_MARKED);
-			query.setString(1, username);
-			query.executeUpdate();
+	/**
+	 * Gets the manager of the maildrop locks held by this node, for
+	 * monitoring
+	 * 
+	 * @return the lease manager
+	 */
+	public LeaseManager getLeases() {
+		return leases;
+	}
 
-			/* Get the number of messages deleted */
-			numDeleted = query.getUpdateCount();
-			return (numDeleted != -1) ? numDeleted : 0;
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		}
-		return numDeleted;
+	/**
+	 * Gets the worker removing deleted messages, for monitoring
+	 * 
+	 * @return the expunger, null if messages are not expunged by this node
+	 */
+	public Expunger getExpunger() {
+		return expunger;
 	}
 
-	@Override
-	public int numMessages(String username, boolean deleted) {
+	/**
+	 * Gets the default id of this server node, its host name
+	 * 
+	 * @return the host name, or localhost if it cannot be determined
+	 */
+	private static String defaultNodeId() {
 		try {
-			/* Get the number of messages in the user's maildrop */
-			query = connection
-					.prepareStatement(deleted ? QUERY_NUM_MARKED_UNMARKED
-							: QUERY_NUM_UNMARKED);
-			query.setString(1, username);
-			result = query.executeQuery();
-			if (!result.next()) {
-				return 0;
-			}
-
-			/* Parse the result */
-			return Integer.parseInt(result.getString("numMsg"));
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		} catch (NumberFormatException e) {
-			return 0;
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
 		}
-		return 0;
 	}
 
 	@Override
-	public int sizeOfMaildrop(String username) {
-		try {
-			/* Get the size of the user's maildrop, excluding deleted */
-			query = connection.prepareStatement(QUERY_MAILDROP_SIZE);
-			query.setString(1, username);
-			result = query.executeQuery();
-			if (!result.next()) {
-				return 0;
-			}
-
-			/* Parse the result */
-			return Integer.parseInt(result.getString("maildropSize"));
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		} catch (NumberFormatException e) {
-			return 0;
-		}
-		return 0;
+	public boolean lockMaildrop(int maildropId) {
+		return leases.acquire(maildropId);
 	}
 
-	@Override
-	public int sizeOfMessage(String username, int id) {
+	/**
+	 * Gets the time since any node last unlocked a maildrop or deleted
+	 * messages from it, as measured by the database clock
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the number of seconds since the last write, Integer.MAX_VALUE
+	 *         if the maildrop was never written to, 0 if it couldn't be read
+	 */
+	public int secondsSinceWrite(int maildropId) {
+		PooledConnection connection = null;
 		try {
-			/* Get the size of the specified message */
-			query = connection.prepareStatement(QUERY_MESSAGE_SIZE);
-			query.setString(1, username);
-			query.setInt(2, id);
-			result = query.executeQuery();
-			if (!result.next()) {
-				return 0;
+			connection = getPool().acquire();
+			PreparedStatement query = connection.prepare(QUERY_LAST_WRITE);
+			query.setInt(1, maildropId);
+			try (ResultSet result = query.executeQuery()) {
+				if (!result.next()) {
+					return Integer.MAX_VALUE;
+				}
+				int age = result.getInt("age");
+				return result.wasNull() ? Integer.MAX_VALUE : Math.max(0, age);
 			}
-
-			/* Parse the result */
-			return Integer.parseInt(result.getString("messageSize"));
 		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
+			log.error(ERROR_TIMEOUT);
 		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		} catch (NumberFormatException e) {
-			return 0;
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			getPool().release(connection);
 		}
 		return 0;
 	}
 
 	@Override
-	public boolean messageExists(String username, int id) {
-		try {
-			/* Checks if a message exists and is not marked for deletion */
-			query = connection.prepareStatement(QUERY_MESSAGE_EXISTS);
-			query.setString(1, username);
-			query.setInt(2, id);
-			return query.executeQuery().next();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
-		}
-		return false;
+	public void unlockMaildrop(int maildropId) {
+		leases.release(maildropId);
 	}
 
 	@Override
-	public void setMark(String username, int id, boolean marked) {
-		try {
-			/* Set the marked for deletion state of the message */
-			query = connection.prepareStatement(QUERY_UPDATE_MARK);
-			query.setString(1, username);
-			query.setInt(2, marked ? 1 : 0);
-			query.setInt(3, id);
-			query.executeUpdate();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		if (mailIds.length == 0) {
+			return 0;
 		}
-	}
 
-	@Override
-	public boolean messageMarked(String username, int id) {
-		try {
-			/* Get the marked status of the message */
-			query = connection.prepareStatement(QUERY_MESSAGE_MARKED);
-			query.setString(1, username);
-			query.setInt(2, id);
-			return query.executeQuery().next();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+		/* A lease lost to another node must not be written through */
+		if (!leases.isHeld(maildropId)) {
+			log.error(ERROR_LEASE_LOST);
+			return -1;
 		}
-		return false;
-	}
 
-	@Override
-	public String getMessage(String username, int id) {
+		PooledConnection connection = null;
 		try {
-			/* Get the message content from the database */
-			query = connection.prepareStatement(QUERY_MESSAGE_CONTENT);
-			query.setString(1, username);
-			query.setInt(2, id);
+			/* Hide the messages in batches, all within one transaction */
+			connection = getPool().acquire();
+			connection.begin();
+			int numDeleted = 0;
+			for (int i = 0; i < mailIds.length; i += DELETE_BATCH_SIZE) {
+				PreparedStatement query = connection
+						.prepare(QUERY_HIDE_MESSAGES);
+				query.setInt(1, maildropId);
+				setBatch(query, 2, mailIds, i);
+				numDeleted += query.executeUpdate();
+			}
 
-			/* Result the result */
-			ResultSet result = query.executeQuery();
-			if (result.next()) {
-				return result.getString("txMailContent");
+			/* Keep every message if any of them was already gone */
+			if (numDeleted != mailIds.length) {
+				connection.rollback();
+				return -1;
 			}
+
+			/* Tell every node the replicas may not have seen this yet */
+			PreparedStatement query = connection.prepare(QUERY_TOUCH);
+			query.setInt(1, maildropId);
+			query.executeUpdate();
+			connection.commit();
+			return numDeleted;
 		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
+			log.error(ERROR_TIMEOUT);
 		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			getPool().release(connection);
 		}
-		return null;
+		return -1;
 	}
 
 	@Override
-	public String messageUIDL(String username, int id) {
-		try {
-			/* Get the message content from the database */
-			query = connection.prepareStatement(QUERY_MESSAGE_UIDL);
-			query.setString(1, username);
-			query.setInt(2, id);
-
-			/* Result the result */
-			ResultSet result = query.executeQuery();
-			if (result.next()) {
-				return result.getString("vchUIDL");
-			}
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+	public void close() {
+		if (expunger != null) {
+			expunger.close();
 		}
-		return null;
+		leases.close();
+		super.close();
 	}
 
-	@Override
-	public void restoreMarked(String username) {
-		try {
-			/* Set the marked for deletion state of the message */
-			query = connection.prepareStatement(QUERY_UPDATE_RESTORE);
-			query.setString(1, username);
-			query.executeUpdate();
-		} catch (SQLTimeoutException e) {
-			System.err.println(ERROR_TIMEOUT);
-		} catch (SQLException e) {
-			System.err.println(ERROR_QUERY + ": " + e.getMessage());
+	/**
+	 * Builds the parameter list of an IN clause
+	 * 
+	 * @param n
+	 *            the number of parameters
+	 * @return the parameters, separated by commas
+	 */
+	private static String parameters(int n) {
+		StringBuilder list = new StringBuilder("?");
+		for (int i = 1; i < n; i++) {
+			list.append(", ?");
 		}
+		return list.toString();
 	}
 
-	@Override
-	public void close() {
-		try {
-			query = null;
-			result = null;
-			connection.close();
-		} catch (SQLException e) {
-			System.err.println(ERROR_CLOSE);
+	/**
+	 * Sets the parameters of an IN clause to a batch of message ids. A batch
+	 * shorter than the clause repeats its last id, so every batch uses the
+	 * same prepared statement.
+	 * 
+	 * @param query
+	 *            the statement holding the IN clause
+	 * @param first
+	 *            the index of the first parameter of the clause
+	 * @param mailIds
+	 *            the message ids
+	 * @param start
+	 *            the position of the batch in the message ids
+	 * @throws SQLException
+	 *             if a parameter cannot be set
+	 */
+	private static void setBatch(PreparedStatement query, int first,
+			int[] mailIds, int start) throws SQLException {
+		int end = Math.min(start + DELETE_BATCH_SIZE, mailIds.length);
+		for (int i = 0; i < DELETE_BATCH_SIZE; i++) {
+			query.setInt(first + i, mailIds[Math.min(start + i, end - 1)]);
 		}
 	}
 }
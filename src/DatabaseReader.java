@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+public class DatabaseReader implements IReadOnlyDatabase {
+	/* Database members */
+	private ConnectionPool pool;
+	private NegativeCache unknownUsers;
+	private AccessLog log;
+
+	/* Number of characters of body read at a time by TOP */
+	private static final int TOP_CHUNK_SIZE = 8192;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* System Messages */
+	private static final String ERROR_TIMEOUT = "The database connection timed out.";
+	private static final String ERROR_QUERY = "Error while querying the database";
+
+	/* SQL Queries */
+	private static final String QUERY_PING = "SELECT 1";
+	private static final String QUERY_ACCOUNT = "SELECT `iMaildropID`, `vchPassword`, `vchLockNode` IS NOT NULL AND `dtLockExpiry` >= NOW() AS 'locked' FROM `m_Maildrop` WHERE `vchUsername` = ?";
+	private static final String QUERY_NUM_MESSAGES = "SELECT COUNT(*) AS 'numMsg' FROM `m_Mail` WHERE `iMaildropID` = ? AND `markedForDeletion` = 0";
+	private static final String QUERY_MAILDROP_SIZE = "SELECT COALESCE(SUM(`iSize`), 0) AS 'maildropSize' FROM `m_Mail` WHERE `iMaildropID` = ? AND `markedForDeletion` = 0";
+	private static final String QUERY_MAILDROP_INDEX = "SELECT `iMailID`, `iSize` AS 'messageSize', `vchUIDL` FROM `m_Mail` WHERE `iMaildropID` = ? AND `markedForDeletion` = 0 ORDER BY `iMailID`";
+	private static final String QUERY_MESSAGE_CONTENT = "SELECT `txMailContent` FROM `m_Mail` WHERE `iMailID` = ? AND `iMaildropID` = ?";
+	private static final String QUERY_MESSAGE_TOP = "SELECT `iHeaderLength`, SUBSTRING(`txMailContent`, 1, `iHeaderLength` + ?) AS 'content' FROM `m_Mail` WHERE `iMailID` = ? AND `iMaildropID` = ?";
+	private static final String QUERY_MESSAGE_CHUNKS = "SELECT `bChunk` FROM `m_Mail` LEFT JOIN `m_MailChunk` USING (`iMailID`) WHERE `iMailID` = ? AND `iMaildropID` = ? ORDER BY `iSeq`";
+	private static final String QUERY_MESSAGE_RANGE = "SELECT SUBSTRING(`txMailContent`, ?, ?) AS 'content' FROM `m_Mail` WHERE `iMailID` = ? AND `iMaildropID` = ?";
+
+	/**
+	 * Creates a reader of the maildrops in a MySQL database. The reader only
+	 * runs queries, so it can be pointed at a read replica; Database adds the
+	 * locks and deletes that must go to the primary. Connections are opened
+	 * when the reader is first used.
+	 * 
+	 * @param pool
+	 *            the pool of connections to the database
+	 * @param unknownUsers
+	 *            the cache of usernames found not to exist, null to always
+	 *            query
+	 */
+	public DatabaseReader(ConnectionPool pool, NegativeCache unknownUsers) {
+		this.pool = pool;
+		this.unknownUsers = unknownUsers;
+		log = AccessLog.getInstance();
+	}
+
+	/**
+	 * Gets the connection pool used by the database, for monitoring
+	 * 
+	 * @return the connection pool
+	 */
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		/* Usernames recently found not to exist never reach the database */
+		if (unknownUsers != null && unknownUsers.contains(username)) {
+			return null;
+		}
+
+		PooledConnection connection = null;
+		try {
+			/* Fetch the maildrop id, password and lock in a single query */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_ACCOUNT);
+			query.setString(1, username);
+			try (ResultSet result = query.executeQuery()) {
+				if (result.next()) {
+					return new Account(result.getInt("iMaildropID"),
+							result.getString("vchPassword"),
+							result.getBoolean("locked"));
+				}
+			}
+			if (unknownUsers != null) {
+				unknownUsers.add(username);
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return null;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		PooledConnection connection = null;
+		try {
+			/* Get the number of messages in the user's maildrop */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_NUM_MESSAGES);
+			query.setInt(1, maildropId);
+			try (ResultSet result = query.executeQuery()) {
+				return result.next() ? result.getInt("numMsg") : 0;
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return 0;
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		PooledConnection connection = null;
+		try {
+			/* Get the size of the user's maildrop */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_MAILDROP_SIZE);
+			query.setInt(1, maildropId);
+			try (ResultSet result = query.executeQuery()) {
+				return result.next() ? (int) Math.min(
+						result.getLong("maildropSize"), Integer.MAX_VALUE) : 0;
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return 0;
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		PooledConnection connection = null;
+		try {
+			/* Load every message in the user's maildrop in a single query */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_MAILDROP_INDEX);
+			query.setInt(1, maildropId);
+
+			/* Build the index, message numbers follow the storage order */
+			MaildropIndex index = new MaildropIndex(maildropId);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					index.add(result.getInt("iMailID"),
+							result.getInt("messageSize"),
+							result.getString("vchUIDL"));
+				}
+			}
+			return index;
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return null;
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		PooledConnection connection = null;
+		try {
+			/* Get the message content from the database */
+			connection = pool.acquire();
+			PreparedStatement query = connection
+					.prepare(QUERY_MESSAGE_CONTENT);
+			query.setInt(1, mailId);
+			query.setInt(2, maildropId);
+
+			/* Result the result */
+			try (ResultSet result = query.executeQuery()) {
+				if (result.next()) {
+					return result.getString("txMailContent");
+				}
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		PooledConnection connection = null;
+		try {
+			/*
+			 * The content is stored in chunk rows, which the driver streams
+			 * one row at a time so a session holds a single chunk
+			 */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_MESSAGE_CHUNKS);
+			query.setFetchSize(Integer.MIN_VALUE);
+			query.setInt(1, mailId);
+			query.setInt(2, maildropId);
+			try (ResultSet result = query.executeQuery()) {
+				if (!result.next()) {
+					return false;
+				}
+
+				/* An empty message has no chunks */
+				do {
+					byte[] chunk = result.getBytes("bChunk");
+					if (chunk != null) {
+						out.write(chunk);
+					}
+				} while (result.next());
+			}
+			return true;
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return false;
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		int chunk = (lines == 0) ? 0 : TOP_CHUNK_SIZE;
+		PooledConnection connection = null;
+		try {
+			/* Get the header, along with the start of the body if needed */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_MESSAGE_TOP);
+			query.setInt(1, chunk);
+			query.setInt(2, mailId);
+			query.setInt(3, maildropId);
+
+			long position;
+			String content;
+			try (ResultSet result = query.executeQuery()) {
+				if (!result.next()) {
+					return false;
+				}
+				int headerLength = result.getInt("iHeaderLength");
+				content = result.getString("content");
+				int split = Math.min(headerLength, content.length());
+				out.write(content.substring(0, split).getBytes(CHARSET));
+				content = content.substring(split);
+				position = headerLength + 1;
+			}
+
+			/* Read further chunks of the body until enough lines are sent */
+			query = connection.prepare(QUERY_MESSAGE_RANGE);
+			while (lines > 0) {
+				lines = writeLines(content, lines, out);
+				if (lines == 0 || content.length() < chunk) {
+					break;
+				}
+
+				position += content.length();
+				query.setLong(1, position);
+				query.setInt(2, chunk);
+				query.setInt(3, mailId);
+				query.setInt(4, maildropId);
+				try (ResultSet result = query.executeQuery()) {
+					content = result.next() ? result.getString("content") : "";
+				}
+			}
+			return true;
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		return false;
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId) {
+		/* Message content is only held in the database */
+		return null;
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId) {
+		/* Message content is only held in the database */
+		return null;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		PooledConnection connection = null;
+		try {
+			connection = pool.acquire();
+			try (ResultSet result = connection.prepare(QUERY_PING)
+					.executeQuery()) {
+				return result.next();
+			}
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	@Override
+	public void close() {
+		pool.close();
+	}
+
+	/**
+	 * Writes lines from part of a message, stopping once the requested number
+	 * of lines have been written
+	 * 
+	 * @param content
+	 *            the part of the message
+	 * @param lines
+	 *            the number of lines to write
+	 * @param out
+	 *            the stream to write to
+	 * @return the number of lines still to be written
+	 * @throws IOException
+	 *             if the stream cannot be written to
+	 */
+	private static int writeLines(String content, int lines, OutputStream out)
+			throws IOException {
+		int end = 0;
+		while (lines > 0 && end < content.length()) {
+			int newline = content.indexOf('\n', end);
+			if (newline < 0) {
+				end = content.length();
+			} else {
+				end = newline + 1;
+				lines--;
+			}
+		}
+		out.write(content.substring(0, end).getBytes(CHARSET));
+		return lines;
+	}
+}
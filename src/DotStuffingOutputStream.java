@@ -0,0 +1,143 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class DotStuffingOutputStream extends FilterOutputStream {
+	/* Size of the output buffer */
+	private static final int BUFFER_SIZE = 8192;
+
+	/* Stream members */
+	private byte[] buffer;
+	private int count;
+	private boolean lineStart;
+	private boolean lastWasCR;
+	private long contentLength;
+	private long headerLength = -1;
+	private int lineLength;
+
+	/**
+	 * Creates a stream that encodes message content for a POP3 multi-line
+	 * response. Line endings are converted to CRLF and lines starting with a
+	 * termination octet are byte-stuffed as described in RFC 1939. Content is
+	 * processed through a fixed size buffer so any amount of data can be sent
+	 * in constant memory.
+	 *
+	 * @param out
+	 *            the stream to write the encoded content to
+	 */
+	public DotStuffingOutputStream(OutputStream out) {
+		super(out);
+		buffer = new byte[BUFFER_SIZE];
+		lineStart = true;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (b == '\n' && !lastWasCR) {
+			put('\r');
+			contentLength++;
+		} else if (b == '.' && lineStart) {
+			put('.');
+		}
+		put(b);
+		contentLength++;
+
+		/* The header ends at the first empty line */
+		if (b == '\n') {
+			if (headerLength < 0
+					&& (lineLength == 0 || (lineLength == 1 && lastWasCR))) {
+				headerLength = contentLength;
+			}
+			lineLength = 0;
+		} else {
+			lineLength++;
+		}
+
+		lastWasCR = (b == '\r');
+		lineStart = (b == '\n');
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Gets the number of message octets written so far, with line endings
+	 * converted to CRLF but without byte-stuffing
+	 *
+	 * @return the length of the message content
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Gets the length of the message header written so far, including the
+	 * empty line that ends it, with line endings converted to CRLF
+	 *
+	 * @return the length of the header, -1 if the end of the header hasn't
+	 *         been written
+	 */
+	public long getHeaderLength() {
+		return headerLength;
+	}
+
+	/**
+	 * Ends the multi-line response. The last line is terminated if the content
+	 * did not end with a line break, and the termination octet is written.
+	 * The underlying stream is not closed.
+	 *
+	 * @throws IOException
+	 *             if the response cannot be written
+	 */
+	public void finish() throws IOException {
+		if (!lineStart) {
+			put('\r');
+			put('\n');
+		}
+		put('.');
+		put('\r');
+		put('\n');
+		lineStart = true;
+
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+
+	/**
+	 * Closing the stream only flushes it, as the session owns the underlying
+	 * stream
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Adds a byte to the output buffer
+	 *
+	 * @param b
+	 *            the byte to add
+	 * @throws IOException
+	 *             if the buffer cannot be written out
+	 */
+	private void put(int b) throws IOException {
+		if (count == buffer.length) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+		buffer[count++] = (byte) b;
+	}
+}
@@ -0,0 +1,81 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DotUnstuffingInputStream extends FilterInputStream {
+	/* Stream members */
+	private boolean lineStart;
+	private boolean ended;
+
+	/**
+	 * Creates a stream that decodes a message stored in the wire form of a
+	 * POP3 multi-line response. Byte-stuffing is removed and the stream ends
+	 * at the termination line. The underlying stream should be buffered, as
+	 * it is read a byte at a time.
+	 *
+	 * @param in
+	 *            the stream holding the wire form of the message
+	 */
+	public DotUnstuffingInputStream(InputStream in) {
+		super(in);
+		lineStart = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (ended) {
+			return -1;
+		}
+
+		int b = in.read();
+		if (lineStart && b == '.') {
+			b = in.read();
+			if (b != '.') {
+				/* The termination line */
+				ended = true;
+				return -1;
+			}
+		}
+		if (b == -1) {
+			ended = true;
+		}
+		lineStart = (b == '\n');
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		int n = 0;
+		while (n < len) {
+			int c = read();
+			if (c == -1) {
+				break;
+			}
+			b[off + n++] = (byte) c;
+		}
+		return (n == 0) ? -1 : n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && read() != -1) {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return 0;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
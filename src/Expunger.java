@@ -0,0 +1,165 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Expunger {
+	/* System Messages */
+	private static final String ERROR_TIMEOUT = "The database connection timed out.";
+	private static final String ERROR_QUERY = "Error while querying the database";
+
+	/* SQL Queries */
+	private static final String QUERY_EXPUNGE = "DELETE FROM `m_Mail` WHERE `markedForDeletion` = 1 LIMIT ?";
+	private static final String QUERY_BACKLOG = "SELECT COUNT(*) AS 'backlog' FROM `m_Mail` WHERE `markedForDeletion` = 1";
+
+	/* Expunger members */
+	private AccessLog log;
+	private ConnectionPool pool;
+	private int batchSize;
+	private int maxActive;
+	private ScheduledExecutorService worker;
+
+	/* Expunge metrics */
+	private AtomicLong backlog;
+	private AtomicLong expunged;
+	private AtomicLong batches;
+	private AtomicLong skipped;
+	private AtomicLong totalExpungeTime;
+
+	/**
+	 * Creates a worker that physically removes messages deleted at QUIT.
+	 * Deleted messages are only flagged when the session ends, so the client
+	 * doesn't wait for large rows to be purged, and are never listed again.
+	 * The worker then deletes the flagged rows a batch at a time, at most one
+	 * batch per interval, and skips a turn while the connection pool is busy
+	 * with sessions.
+	 *
+	 * @param pool
+	 *            the connection pool of the database
+	 * @param batchSize
+	 *            the maximum number of messages removed per batch
+	 * @param interval
+	 *            the time between batches, in milliseconds
+	 * @param maxActive
+	 *            the number of connections in use above which a batch is
+	 *            skipped
+	 */
+	public Expunger(ConnectionPool pool, int batchSize, long interval,
+			int maxActive) {
+		this.pool = pool;
+		log = AccessLog.getInstance();
+		this.batchSize = batchSize;
+		this.maxActive = maxActive;
+		backlog = new AtomicLong();
+		expunged = new AtomicLong();
+		batches = new AtomicLong();
+		skipped = new AtomicLong();
+		totalExpungeTime = new AtomicLong();
+
+		worker = Executors.newSingleThreadScheduledExecutor(SessionExecutors
+				.newThreadFactory("Expunger", true));
+		worker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expunge();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops removing messages. Messages still flagged are removed when the
+	 * server next starts.
+	 */
+	public void close() {
+		worker.shutdownNow();
+	}
+
+	/**
+	 * Gets the number of deleted messages waiting to be removed, as last
+	 * counted by the worker
+	 *
+	 * @return the expunge backlog
+	 */
+	public long getBacklog() {
+		return backlog.get();
+	}
+
+	/**
+	 * Gets the total number of messages removed
+	 *
+	 * @return the number of messages expunged
+	 */
+	public long getExpunged() {
+		return expunged.get();
+	}
+
+	/**
+	 * Gets the number of batches run
+	 *
+	 * @return the number of batches
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Gets the number of batches skipped because the pool was busy
+	 *
+	 * @return the number of skipped batches
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Gets the total time spent removing messages, which with the number of
+	 * messages expunged gives the expunge throughput
+	 *
+	 * @return the total expunge time, in nanoseconds
+	 */
+	public long getTotalExpungeTime() {
+		return totalExpungeTime.get();
+	}
+
+	/**
+	 * Removes a batch of deleted messages, unless the pool is busy, and
+	 * counts the messages left
+	 */
+	private void expunge() {
+		if (pool.getActive() > maxActive) {
+			skipped.incrementAndGet();
+			return;
+		}
+
+		PooledConnection connection = null;
+		try {
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_BACKLOG);
+			long remaining;
+			try (ResultSet result = query.executeQuery()) {
+				remaining = result.next() ? result.getLong("backlog") : 0;
+			}
+			if (remaining > 0) {
+				long start = System.nanoTime();
+				query = connection.prepare(QUERY_EXPUNGE);
+				query.setInt(1, batchSize);
+				int n = query.executeUpdate();
+				totalExpungeTime.addAndGet(System.nanoTime() - start);
+				expunged.addAndGet(n);
+				batches.incrementAndGet();
+				remaining -= n;
+			}
+			backlog.set(Math.max(remaining, 0));
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+	}
+}
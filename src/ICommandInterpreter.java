@@ -1,12 +1,52 @@
+import java.io.IOException;
+
 public interface ICommandInterpreter {
 	/**
-	 * Parses and executes a POP3 command
+	 * Executes a POP3 command, writing the server response to the specified
+	 * sink. Large responses such as message content are streamed to the sink
+	 * rather than built in memory.
+	 * 
+	 * @param command
+	 *            the decoded command, along with arguments
+	 * @param out
+	 *            the sink the server response is written to
+	 * @throws IOException
+	 *             if the response cannot be written, after which the session
+	 *             should be closed
+	 */
+	public void handleInput(Command command, IResponseSink out)
+			throws IOException;
+
+	/**
+	 * Sets whether the session can be upgraded to TLS with the STLS command,
+	 * which is then advertised by CAPA
+	 * 
+	 * @param available
+	 *            true if STLS is offered
+	 */
+	public void setTlsAvailable(boolean available);
+
+	/**
+	 * Checks if the last command was an accepted STLS. The session must then
+	 * start the TLS handshake before reading any more input.
+	 * 
+	 * @return true if the session is to be upgraded to TLS
+	 */
+	public boolean isStartingTls();
+
+	/**
+	 * Checks if the session has logged in, leaving the Authorization state
+	 * 
+	 * @return true in the Transaction and Update states
+	 */
+	public boolean isAuthorised();
+
+	/**
+	 * Gets the name of the user the session has identified as with USER
 	 * 
-	 * @param input
-	 *            the command, along with arguments as a string
-	 * @return the message returned from the server
+	 * @return the username, null if no user has been found
 	 */
-	public String handleInput(String input);
+	public String getUsername();
 
 	/**
 	 * Closes the database connection and releases the maildrop lock for the
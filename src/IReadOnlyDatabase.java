@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public interface IReadOnlyDatabase {
+	/**
+	 * Looks up the account of the specified user, with the id, credential and
+	 * lock status of the maildrop, in a single query
+	 * 
+	 * @param username
+	 *            the username to look up
+	 * @return the account, null if the user doesn't exist
+	 */
+	public Account getAccount(String username);
+
+	/**
+	 * Gets the number of messages in the maildrop
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the number of messages in the maildrop
+	 */
+	public int numMessages(int maildropId);
+
+	/**
+	 * Gets the size of the entire maildrop
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the size of the maildrop in octets
+	 */
+	public int sizeOfMaildrop(int maildropId);
+
+	/**
+	 * Loads the index of the maildrop. The index maps each message number to
+	 * the storage id, size and UIDL of the message, in the order messages are
+	 * presented to the client.
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the index of the maildrop, null if it couldn't be loaded
+	 */
+	public MaildropIndex getMaildropIndex(int maildropId);
+
+	/**
+	 * Returns the specified message as a string, potentially containing
+	 * multiple lines
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message to retrieve
+	 * @return a string representation of the message, null if a message with
+	 *         the specified id doesn't exist
+	 */
+	public String getMessage(int maildropId, int mailId);
+
+	/**
+	 * Writes the content of the specified message to a stream, without
+	 * holding the whole message in memory as a string
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message to retrieve
+	 * @param out
+	 *            the stream to write the message content to
+	 * @return true if the message was written, false if a message with the
+	 *         specified id doesn't exist or couldn't be read
+	 * @throws IOException
+	 *             if the stream cannot be written to
+	 */
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException;
+
+	/**
+	 * Writes the header of the specified message and the first lines of its
+	 * body to a stream, reading no more of the message than is needed
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message to retrieve
+	 * @param lines
+	 *            the number of body lines to write
+	 * @param out
+	 *            the stream to write the message content to
+	 * @return true if the message was written, false if a message with the
+	 *         specified id doesn't exist or couldn't be read
+	 * @throws IOException
+	 *             if the stream cannot be written to
+	 */
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException;
+
+	/**
+	 * Opens the stored wire form of the specified message, with CRLF line
+	 * endings, byte-stuffing and the termination line, so it can be sent to
+	 * the client without processing
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message to retrieve
+	 * @return a channel reading the message, null if messages aren't stored
+	 *         in wire form or the message doesn't exist
+	 * @throws IOException
+	 *             if the message cannot be opened
+	 */
+	public FileChannel openWireMessage(int maildropId, int mailId)
+			throws IOException;
+
+	/**
+	 * Gets a read-only view of the stored wire form of the specified message,
+	 * for backends that keep messages in memory-mapped files
+	 * 
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message to retrieve
+	 * @return a buffer holding the message, null if messages aren't mapped or
+	 *         the message doesn't exist
+	 * @throws IOException
+	 *             if the message cannot be mapped
+	 */
+	public ByteBuffer mapWireMessage(int maildropId, int mailId)
+			throws IOException;
+
+	/**
+	 * Checks that the storage can be reached, for health checks
+	 * 
+	 * @return true if the storage can serve requests
+	 */
+	public boolean isAvailable();
+
+	/**
+	 * Closes the database connection
+	 */
+	public void close();
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public interface IResponseSink {
+	/**
+	 * Writes a response, adding the CRLF line terminator. The response may
+	 * itself contain several CRLF separated lines.
+	 *
+	 * @param line
+	 *            the response, without the final line terminator
+	 * @throws IOException
+	 *             if the response cannot be sent to the client
+	 */
+	public void writeLine(String line) throws IOException;
+
+	/**
+	 * Gets the stream that raw response data, such as message content, is
+	 * written to. Data written to the stream is sent to the client unchanged.
+	 *
+	 * @return the output stream of the sink
+	 */
+	public OutputStream getOutputStream();
+
+	/**
+	 * Sends the content of a buffer to the client unchanged. A direct or
+	 * mapped buffer is written straight to the socket channel of the sink
+	 * when there is one.
+	 *
+	 * @param data
+	 *            the data to send
+	 * @throws IOException
+	 *             if the data cannot be sent to the client
+	 */
+	public void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * Sends part of a file to the client unchanged. When the sink writes to a
+	 * socket channel the file is sent with FileChannel.transferTo, so the
+	 * data doesn't pass through the Java heap.
+	 *
+	 * @param file
+	 *            the file to send
+	 * @param position
+	 *            the position in the file to start from
+	 * @param count
+	 *            the number of bytes to send
+	 * @throws IOException
+	 *             if the file cannot be read or sent to the client
+	 */
+	public void transferFrom(FileChannel file, long position, long count)
+			throws IOException;
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+	/* Linear sub-buckets per power of two, bounding the error to 1/16 */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/* Largest value recorded exactly, about 18 minutes in nanoseconds */
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+	/* Histogram members */
+	private final AtomicLongArray counts;
+	private final StripedCounter sum;
+	private final AtomicLong max;
+
+	/**
+	 * Creates a histogram of durations in nanoseconds. Buckets are linear
+	 * within each power of two, in the manner of an HDR histogram, so every
+	 * value is held to within about 6% with a fixed, small number of buckets.
+	 * Recording a value never takes a lock.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+		sum = new StripedCounter();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a duration
+	 *
+	 * @param nanos
+	 *            the duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of durations recorded
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the total of the durations recorded
+	 *
+	 * @return the sum, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Gets the longest duration recorded
+	 *
+	 * @return the maximum, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the duration below which the specified fraction of the recorded
+	 * durations fall
+	 *
+	 * @param quantile
+	 *            the fraction, between 0 and 1
+	 * @return the upper bound of the bucket holding the quantile, in
+	 *         nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getQuantile(double quantile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(valueOf(i + 1) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Maps a value to its bucket
+	 *
+	 * @param value
+	 *            the value, at most MAX_VALUE
+	 * @return the index of the bucket
+	 */
+	private static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * Gets the lowest value held by a bucket
+	 *
+	 * @param index
+	 *            the index of the bucket
+	 * @return the lowest value of the bucket
+	 */
+	private static long valueOf(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+}
@@ -0,0 +1,92 @@
+public class LatencySummary {
+	/* Quantiles reported for every histogram */
+	public static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/* Summary members, in microseconds */
+	private final long count;
+	private final double mean;
+	private final double p50;
+	private final double p90;
+	private final double p99;
+	private final double p999;
+	private final double max;
+
+	/**
+	 * Takes a summary of a histogram, in microseconds, as shown over JMX
+	 *
+	 * @param histogram
+	 *            the histogram to summarise
+	 */
+	public LatencySummary(LatencyHistogram histogram) {
+		count = histogram.getCount();
+		mean = (count == 0) ? 0 : histogram.getSum() / 1000.0 / count;
+		p50 = histogram.getQuantile(QUANTILES[0]) / 1000.0;
+		p90 = histogram.getQuantile(QUANTILES[1]) / 1000.0;
+		p99 = histogram.getQuantile(QUANTILES[2]) / 1000.0;
+		p999 = histogram.getQuantile(QUANTILES[3]) / 1000.0;
+		max = histogram.getMax() / 1000.0;
+	}
+
+	/**
+	 * Gets the number of durations recorded
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the mean duration
+	 *
+	 * @return the mean, in microseconds
+	 */
+	public double getMeanMicros() {
+		return mean;
+	}
+
+	/**
+	 * Gets the median duration
+	 *
+	 * @return the 50th percentile, in microseconds
+	 */
+	public double getP50Micros() {
+		return p50;
+	}
+
+	/**
+	 * Gets the 90th percentile duration
+	 *
+	 * @return the 90th percentile, in microseconds
+	 */
+	public double getP90Micros() {
+		return p90;
+	}
+
+	/**
+	 * Gets the 99th percentile duration
+	 *
+	 * @return the 99th percentile, in microseconds
+	 */
+	public double getP99Micros() {
+		return p99;
+	}
+
+	/**
+	 * Gets the 99.9th percentile duration
+	 *
+	 * @return the 99.9th percentile, in microseconds
+	 */
+	public double getP999Micros() {
+		return p999;
+	}
+
+	/**
+	 * Gets the longest duration
+	 *
+	 * @return the maximum, in microseconds
+	 */
+	public double getMaxMicros() {
+		return max;
+	}
+}
@@ -0,0 +1,250 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.ResultSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class LeaseManager {
+	/* System Messages */
+	private static final String ERROR_TIMEOUT = "The database connection timed out.";
+	private static final String ERROR_QUERY = "Error while querying the database";
+	private static final String ERROR_LEASE_LOST = "The lease on a maildrop expired and was taken by another node";
+
+	/* SQL Queries */
+	private static final String QUERY_ACQUIRE = "UPDATE `m_Maildrop` SET `vchLockNode` = ?, `dtLockExpiry` = NOW() + INTERVAL ? SECOND WHERE `iMaildropID` = ? AND (`vchLockNode` IS NULL OR `vchLockNode` = ? OR `dtLockExpiry` < NOW())";
+	private static final String QUERY_RELEASE = "UPDATE `m_Maildrop` SET `vchLockNode` = NULL, `dtLockExpiry` = NULL, `dtLastWrite` = NOW() WHERE `iMaildropID` = ? AND `vchLockNode` = ?";
+	private static final String QUERY_RENEW = "UPDATE `m_Maildrop` SET `dtLockExpiry` = NOW() + INTERVAL ? SECOND WHERE `vchLockNode` = ?";
+	private static final String QUERY_OWNED = "SELECT `iMaildropID` FROM `m_Maildrop` WHERE `vchLockNode` = ?";
+	private static final String QUERY_RELEASE_NODE = "UPDATE `m_Maildrop` SET `vchLockNode` = NULL, `dtLockExpiry` = NULL, `dtLastWrite` = NOW() WHERE `vchLockNode` = ?";
+
+	/* Time a lease is taken, while the update is in progress */
+	private static final long PENDING = Long.MAX_VALUE;
+
+	/* Lease manager members */
+	private AccessLog log;
+	private ConnectionPool pool;
+	private String nodeId;
+	private int leaseTtl;
+	private Map<Integer, Long> held;
+	private ScheduledExecutorService heartbeat;
+
+	/**
+	 * Creates a manager of the maildrop locks held by this server node.
+	 * Sessions on the same node are kept apart by an in-memory table, so a
+	 * maildrop that is already open on this node is refused without a
+	 * query. Other nodes are kept apart by a lease on the maildrop row,
+	 * naming the node and the time it expires. A heartbeat renews every
+	 * lease held by the node with a single update, so the leases of a node
+	 * that crashes expire on their own and no node ever clears the locks of
+	 * another.
+	 *
+	 * Leases left behind by an earlier run of this node are released when
+	 * the manager is created, so every node must have its own id.
+	 *
+	 * @param pool
+	 *            the connection pool of the database
+	 * @param nodeId
+	 *            the id of this server node
+	 * @param leaseTtl
+	 *            the number of seconds a lease lasts unless it is renewed
+	 */
+	public LeaseManager(ConnectionPool pool, String nodeId, int leaseTtl) {
+		this.pool = pool;
+		log = AccessLog.getInstance();
+		this.nodeId = nodeId;
+		this.leaseTtl = leaseTtl;
+		held = new ConcurrentHashMap<>();
+		releaseAll();
+
+		/* Renew well before the leases expire */
+		int interval = Math.max(1, leaseTtl / 3);
+		heartbeat = Executors.newSingleThreadScheduledExecutor(SessionExecutors
+				.newThreadFactory("LeaseHeartbeat", true));
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				renew();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Gets the id of this server node
+	 *
+	 * @return the node id
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Gets the number of maildrops locked by this node
+	 *
+	 * @return the number of leases held
+	 */
+	public int getHeld() {
+		return held.size();
+	}
+
+	/**
+	 * Locks a maildrop for a session on this node
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return true if the lock was acquired, false if the maildrop is locked
+	 *         by another session on this or another node
+	 */
+	public boolean acquire(int maildropId) {
+		if (held.putIfAbsent(maildropId, PENDING) != null) {
+			return false;
+		}
+
+		PooledConnection connection = null;
+		try {
+			/* Take the lease if it is free, expired or left by this node */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_ACQUIRE);
+			query.setString(1, nodeId);
+			query.setInt(2, leaseTtl);
+			query.setInt(3, maildropId);
+			query.setString(4, nodeId);
+			if (query.executeUpdate() == 1) {
+				held.put(maildropId, System.nanoTime());
+				return true;
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+		held.remove(maildropId);
+		return false;
+	}
+
+	/**
+	 * Checks that this node still holds the lease on a maildrop
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return true if the lease is held, false if it was never taken or has
+	 *         been lost to another node
+	 */
+	public boolean isHeld(int maildropId) {
+		Long taken = held.get(maildropId);
+		return taken != null && taken.longValue() != PENDING;
+	}
+
+	/**
+	 * Unlocks a maildrop locked by this node
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 */
+	public void release(int maildropId) {
+		if (!held.containsKey(maildropId)) {
+			return;
+		}
+
+		PooledConnection connection = null;
+		try {
+			/* Clear the lease first, so a new session can't take it and lose it */
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_RELEASE);
+			query.setInt(1, maildropId);
+			query.setString(2, nodeId);
+			query.executeUpdate();
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+			held.remove(maildropId);
+		}
+	}
+
+	/**
+	 * Stops renewing leases and releases every lease held by this node
+	 */
+	public void close() {
+		heartbeat.shutdownNow();
+		releaseAll();
+		held.clear();
+	}
+
+	/**
+	 * Extends every lease held by this node in a single update. If fewer
+	 * leases were renewed than are held, some expired while the database
+	 * couldn't be reached and were taken by another node; those are dropped
+	 * so the sessions holding them can no longer change the maildrops.
+	 */
+	private void renew() {
+		if (held.isEmpty()) {
+			return;
+		}
+
+		PooledConnection connection = null;
+		try {
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_RENEW);
+			query.setInt(1, leaseTtl);
+			query.setString(2, nodeId);
+			if (query.executeUpdate() >= held.size()) {
+				return;
+			}
+
+			/* Leases taken after the check started are left alone */
+			long checked = System.nanoTime();
+			Set<Integer> owned = new HashSet<>();
+			query = connection.prepare(QUERY_OWNED);
+			query.setString(1, nodeId);
+			try (ResultSet result = query.executeQuery()) {
+				while (result.next()) {
+					owned.add(result.getInt("iMaildropID"));
+				}
+			}
+			for (Map.Entry<Integer, Long> lease : held.entrySet()) {
+				long taken = lease.getValue();
+				if (!owned.contains(lease.getKey()) && taken != PENDING
+						&& taken - checked < 0
+						&& held.remove(lease.getKey(), lease.getValue())) {
+					log.error(ERROR_LEASE_LOST + ": "
+							+ lease.getKey());
+				}
+			}
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	/**
+	 * Releases every lease held by this node in the database
+	 */
+	private void releaseAll() {
+		PooledConnection connection = null;
+		try {
+			connection = pool.acquire();
+			PreparedStatement query = connection.prepare(QUERY_RELEASE_NODE);
+			query.setString(1, nodeId);
+			query.executeUpdate();
+		} catch (SQLTimeoutException e) {
+			log.error(ERROR_TIMEOUT);
+		} catch (SQLException e) {
+			log.error(ERROR_QUERY + ": " + e.getMessage());
+		} finally {
+			pool.release(connection);
+		}
+	}
+}
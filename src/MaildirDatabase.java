@@ -0,0 +1,527 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MaildirDatabase implements IDatabase {
+	/* System Messages */
+	private static final String ERROR_MAILDROP = "Unable to read the maildrop";
+	private static final String ERROR_DELETE = "Unable to delete a message";
+
+	/* Maildir layout */
+	private static final String ACCOUNT_FILE = "passwd";
+	private static final String DIR_NEW = "new";
+	private static final String DIR_CUR = "cur";
+	private static final String DIR_TMP = "tmp";
+	private static final String SIZE_FIELD = ",S=";
+	private static final String HEADER_FIELD = ",H=";
+	private static final String INFO_SUFFIX = ":2,";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Database members */
+	private AccessLog log;
+	private Path root;
+	private AccountFile accounts;
+	private Set<Integer> locked;
+	private Map<Integer, Maildrop> maildrops;
+	private Map<Integer, Map<String, Integer>> messageIds;
+	private AtomicInteger lastMessageId;
+
+	/**
+	 * Creates a database storing each maildrop as a Maildir under the
+	 * specified directory. Accounts are read from the passwd file in the
+	 * directory, one username:password pair per line. The maildrop of a user
+	 * is the directory named after the user.
+	 *
+	 * Messages delivered to the new directory are converted to their wire
+	 * form, with CRLF line endings, byte-stuffing and the termination line,
+	 * when they are first seen and moved to the cur directory. A message can
+	 * then be sent straight from its file with no further processing.
+	 *
+	 * Each message keeps the id it was first given for as long as its file
+	 * stays in the maildrop, so ids aren't reused by other messages when
+	 * messages are deleted.
+	 *
+	 * @param root
+	 *            the directory holding the account file and maildrops
+	 * @throws IOException
+	 *             if the account file cannot be read
+	 */
+	public MaildirDatabase(Path root) throws IOException {
+		this.root = root;
+		log = AccessLog.getInstance();
+		accounts = new AccountFile(root.resolve(ACCOUNT_FILE));
+		locked = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		maildrops = new ConcurrentHashMap<>();
+		messageIds = new ConcurrentHashMap<>();
+		lastMessageId = new AtomicInteger();
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		Account account = accounts.get(username);
+		if (account == null) {
+			return null;
+		}
+		return account.withLock(locked.contains(account.getMaildropId()));
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		return locked.add(maildropId);
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		/* The maildrop is reloaded by the next session */
+		maildrops.remove(maildropId);
+		locked.remove(maildropId);
+	}
+
+	@Override
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		Maildrop maildrop = maildrops.get(maildropId);
+		if (maildrop == null) {
+			return -1;
+		}
+
+		/* Move the messages out of cur first, so a failure can be undone */
+		int[] positions = new int[mailIds.length];
+		Path[] removed = new Path[mailIds.length];
+		int n = 0;
+		try {
+			for (; n < mailIds.length; n++) {
+				positions[n] = positionOf(maildrop, mailIds[n]);
+				Path file = (positions[n] < 0) ? null
+						: maildrop.files[positions[n]];
+				if (file == null) {
+					throw new IOException(ERROR_DELETE + ": " + mailIds[n]);
+				}
+				removed[n] = Files.move(file, file.getParent().getParent()
+						.resolve(DIR_TMP).resolve(file.getFileName()),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			log.error(ERROR_DELETE + ": " + e.getMessage());
+			restore(maildrop, positions, removed, n);
+			return -1;
+		}
+
+		/* The messages are gone from the maildrop, now free the space */
+		for (int i = 0; i < mailIds.length; i++) {
+			maildrop.files[positions[i]] = null;
+			try {
+				Files.deleteIfExists(removed[i]);
+			} catch (IOException e) {
+				log.error(ERROR_DELETE + ": " + e.getMessage());
+			}
+		}
+		return mailIds.length;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		Maildrop maildrop = maildrops.get(maildropId);
+		if (maildrop == null) {
+			return 0;
+		}
+
+		int count = 0;
+		for (int i = 0; i < maildrop.files.length; i++) {
+			if (maildrop.files[i] != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		Maildrop maildrop = maildrops.get(maildropId);
+		if (maildrop == null) {
+			return 0;
+		}
+
+		long size = 0;
+		for (int i = 0; i < maildrop.files.length; i++) {
+			if (maildrop.files[i] != null) {
+				size += maildrop.sizes[i];
+			}
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		String username = accounts.nameOf(maildropId);
+		if (username == null) {
+			return null;
+		}
+
+		Maildrop maildrop;
+		try {
+			maildrop = loadMaildrop(root.resolve(username));
+		} catch (IOException e) {
+			log.error(ERROR_MAILDROP + ": " + e.getMessage());
+			return null;
+		}
+
+		/* Messages seen before keep their ids, new messages get fresh ones */
+		Map<String, Integer> previous = messageIds.get(maildropId);
+		Map<String, Integer> ids = new HashMap<>();
+		for (int i = 0; i < maildrop.files.length; i++) {
+			Integer id = (previous == null) ? null : previous
+					.get(maildrop.uidls[i]);
+			if (id == null) {
+				id = lastMessageId.incrementAndGet();
+			}
+			ids.put(maildrop.uidls[i], id);
+			maildrop.ids[i] = id;
+			maildrop.positions.put(id, i);
+		}
+		messageIds.put(maildropId, ids);
+		maildrops.put(maildropId, maildrop);
+
+		MaildropIndex index = new MaildropIndex(maildropId);
+		for (int i = 0; i < maildrop.files.length; i++) {
+			index.add(maildrop.ids[i], maildrop.sizes[i], maildrop.uidls[i]);
+		}
+		return index;
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!writeMessage(maildropId, mailId, out)) {
+				return null;
+			}
+		} catch (IOException e) {
+			log.error(ERROR_MAILDROP + ": " + e.getMessage());
+			return null;
+		}
+
+		/* Present LF line endings, as messages are stored in the MySQL database */
+		return new String(out.toByteArray(), CHARSET).replace("\r\n", "\n");
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		Path file = fileOf(maildropId, mailId);
+		if (file == null) {
+			return false;
+		}
+
+		try (InputStream in = new DotUnstuffingInputStream(
+				new BufferedInputStream(Files.newInputStream(file)))) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		Path file = fileOf(maildropId, mailId);
+		if (file == null) {
+			return false;
+		}
+
+		/* Only the header and the requested lines are read from the file */
+		Maildrop maildrop = maildrops.get(maildropId);
+		long headerLength = maildrop.headerLengths[positionOf(maildrop, mailId)];
+		try (InputStream in = new DotUnstuffingInputStream(
+				new BufferedInputStream(Files.newInputStream(file)))) {
+			MessageTop.write(in, headerLength, lines, out);
+		}
+		return true;
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId)
+			throws IOException {
+		Path file = fileOf(maildropId, mailId);
+		if (file == null) {
+			return null;
+		}
+		return FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId) {
+		/* Messages are sent from their files with transferTo */
+		return null;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return Files.isDirectory(root);
+	}
+
+	@Override
+	public void close() {
+		maildrops.clear();
+		messageIds.clear();
+		locked.clear();
+	}
+
+	/**
+	 * Gets the file holding the specified message
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message
+	 * @return the path of the message, null if it doesn't exist or has been
+	 *         deleted
+	 */
+	private Path fileOf(int maildropId, int mailId) {
+		Maildrop maildrop = maildrops.get(maildropId);
+		if (maildrop == null) {
+			return null;
+		}
+		int position = positionOf(maildrop, mailId);
+		return (position < 0) ? null : maildrop.files[position];
+	}
+
+	/**
+	 * Gets the position of a message in a loaded maildrop
+	 *
+	 * @param maildrop
+	 *            the maildrop containing the message
+	 * @param mailId
+	 *            the storage id of the message
+	 * @return the position of the message, -1 if it isn't in the maildrop
+	 */
+	private static int positionOf(Maildrop maildrop, int mailId) {
+		Integer position = maildrop.positions.get(mailId);
+		return (position == null) ? -1 : position;
+	}
+
+	/**
+	 * Moves messages taken out of a maildrop back to the cur directory, when
+	 * a deletion fails part way through
+	 *
+	 * @param maildrop
+	 *            the maildrop the messages were taken from
+	 * @param positions
+	 *            the positions of the messages in the maildrop
+	 * @param removed
+	 *            the paths the messages were moved to
+	 * @param n
+	 *            the number of messages that were moved
+	 */
+	private void restore(Maildrop maildrop, int[] positions,
+			Path[] removed, int n) {
+		for (int i = 0; i < n; i++) {
+			try {
+				Files.move(removed[i], maildrop.files[positions[i]],
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				log.error(ERROR_DELETE + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lists the messages of a maildrop, in delivery order. Newly delivered
+	 * messages are converted to wire form and moved to the cur directory
+	 * first.
+	 *
+	 * @param dir
+	 *            the Maildir of the user
+	 * @return the messages of the maildrop
+	 * @throws IOException
+	 *             if the maildrop cannot be read
+	 */
+	private static Maildrop loadMaildrop(Path dir) throws IOException {
+		Path cur = dir.resolve(DIR_CUR);
+		Path tmp = dir.resolve(DIR_TMP);
+		Path incoming = dir.resolve(DIR_NEW);
+		Files.createDirectories(cur);
+		Files.createDirectories(tmp);
+		Files.createDirectories(incoming);
+
+		/* Accept new deliveries */
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(incoming)) {
+			for (Path file : files) {
+				deliver(file, tmp, cur);
+			}
+		}
+
+		/* Order messages by name, which starts with the delivery time */
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(cur)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		Collections.sort(files);
+
+		Maildrop maildrop = new Maildrop(files.size());
+		for (int i = 0; i < files.size(); i++) {
+			Path file = files.get(i);
+			String name = file.getFileName().toString();
+			maildrop.files[i] = file;
+			maildrop.uidls[i] = uidlOf(name);
+			maildrop.sizes[i] = sizeOf(file, name);
+			maildrop.headerLengths[i] = fieldOf(name, HEADER_FIELD);
+		}
+		return maildrop;
+	}
+
+	/**
+	 * Converts a newly delivered message to wire form. The message is written
+	 * to the tmp directory and then renamed into cur, with its size and
+	 * header length recorded in the file name, before the delivered file is
+	 * removed.
+	 *
+	 * @param file
+	 *            the delivered message
+	 * @param tmp
+	 *            the tmp directory of the maildrop
+	 * @param cur
+	 *            the cur directory of the maildrop
+	 * @throws IOException
+	 *             if the message cannot be converted
+	 */
+	private static void deliver(Path file, Path tmp, Path cur)
+			throws IOException {
+		String unique = uidlOf(file.getFileName().toString());
+		Path converted = tmp.resolve(unique);
+
+		long size, headerLength;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+				OutputStream out = new BufferedOutputStream(
+						Files.newOutputStream(converted))) {
+			DotStuffingOutputStream wire = new DotStuffingOutputStream(out);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				wire.write(buffer, 0, n);
+			}
+			size = wire.getContentLength();
+			headerLength = wire.getHeaderLength();
+			wire.finish();
+		}
+
+		/* A message without a blank line is all header */
+		if (headerLength < 0) {
+			headerLength = size;
+		}
+		Files.move(converted, cur.resolve(unique + SIZE_FIELD + size
+				+ HEADER_FIELD + headerLength + INFO_SUFFIX),
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(file);
+	}
+
+	/**
+	 * Gets the unique part of a Maildir file name, which is used as the UIDL
+	 * of the message
+	 *
+	 * @param name
+	 *            the file name
+	 * @return the unique name of the message
+	 */
+	private static String uidlOf(String name) {
+		int end = name.length();
+		int comma = name.indexOf(',');
+		int colon = name.indexOf(':');
+		if (comma >= 0) {
+			end = comma;
+		}
+		if (colon >= 0 && colon < end) {
+			end = colon;
+		}
+		return name.substring(0, end);
+	}
+
+	/**
+	 * Gets the size of a message from the S= field of its file name, falling
+	 * back to the size of the file
+	 *
+	 * @param file
+	 *            the message file
+	 * @param name
+	 *            the file name
+	 * @return the size of the message in octets
+	 * @throws IOException
+	 *             if the size of the file cannot be read
+	 */
+	private static int sizeOf(Path file, String name) throws IOException {
+		long size = fieldOf(name, SIZE_FIELD);
+		if (size < 0) {
+			size = Files.size(file);
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Gets a numeric field of a Maildir file name
+	 *
+	 * @param name
+	 *            the file name
+	 * @param field
+	 *            the field, including the leading comma and equals sign
+	 * @return the value of the field, -1 if the name doesn't have the field
+	 */
+	private static long fieldOf(String name, String field) {
+		int start = name.indexOf(field);
+		if (start < 0) {
+			return -1;
+		}
+
+		start += field.length();
+		int end = start;
+		while (end < name.length() && Character.isDigit(name.charAt(end))) {
+			end++;
+		}
+		return (end > start) ? Long.parseLong(name.substring(start, end)) : -1;
+	}
+
+	/**
+	 * The messages of a maildrop while it is locked by a session. The file of
+	 * a deleted message is cleared, so message ids stay the same.
+	 */
+	private static final class Maildrop {
+		private final Path[] files;
+		private final int[] sizes;
+		private final long[] headerLengths;
+		private final String[] uidls;
+		private final int[] ids;
+		private final Map<Integer, Integer> positions;
+
+		private Maildrop(int size) {
+			files = new Path[size];
+			sizes = new int[size];
+			headerLengths = new long[size];
+			uidls = new String[size];
+			ids = new int[size];
+			positions = new HashMap<>();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class MaildropIndex {
+	/* Initial capacity of the index arrays */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/* Index members */
+	private int maildropId;
+	private int count;
+	private int[] mailIds;
+	private int[] sizes;
+	private String[] uidls;
+	private BitSet marked;
+	private int numUnmarked;
+	private long sizeUnmarked;
+
+	/**
+	 * Creates an empty index for the specified maildrop
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop the index describes
+	 */
+	public MaildropIndex(int maildropId) {
+		this.maildropId = maildropId;
+		mailIds = new int[INITIAL_CAPACITY];
+		sizes = new int[INITIAL_CAPACITY];
+		uidls = new String[INITIAL_CAPACITY];
+		marked = new BitSet();
+	}
+
+	/**
+	 * Appends a message to the index. Messages must be added in ascending
+	 * order of their storage id, the first message added is message 1.
+	 *
+	 * @param mailId
+	 *            the storage id of the message
+	 * @param size
+	 *            the size of the message in octets
+	 * @param uidl
+	 *            the unique id of the message
+	 */
+	public void add(int mailId, int size, String uidl) {
+		if (count == mailIds.length) {
+			int capacity = count * 2;
+			mailIds = Arrays.copyOf(mailIds, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			uidls = Arrays.copyOf(uidls, capacity);
+		}
+
+		mailIds[count] = mailId;
+		sizes[count] = size;
+		uidls[count] = uidl;
+		count++;
+		numUnmarked++;
+		sizeUnmarked += size;
+	}
+
+	/**
+	 * Gets the id of the maildrop this index describes
+	 *
+	 * @return the maildrop id
+	 */
+	public int getMaildropId() {
+		return maildropId;
+	}
+
+	/**
+	 * Gets the number of messages in the index, including messages marked as
+	 * deleted
+	 *
+	 * @return the number of messages in the index
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the number of messages not marked as deleted
+	 *
+	 * @return the number of unmarked messages
+	 */
+	public int numUnmarked() {
+		return numUnmarked;
+	}
+
+	/**
+	 * Gets the total size of the messages not marked as deleted
+	 *
+	 * @return the size of the unmarked messages in octets
+	 */
+	public long sizeUnmarked() {
+		return sizeUnmarked;
+	}
+
+	/**
+	 * Checks if the specified message number is within the index
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @return true if the message exists, false otherwise
+	 */
+	public boolean exists(int msg) {
+		return msg >= 1 && msg <= count;
+	}
+
+	/**
+	 * Gets the storage id of the specified message
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @return the storage id of the message
+	 */
+	public int mailId(int msg) {
+		return mailIds[msg - 1];
+	}
+
+	/**
+	 * Gets the size of the specified message
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @return the size of the message in octets
+	 */
+	public int sizeOf(int msg) {
+		return sizes[msg - 1];
+	}
+
+	/**
+	 * Gets the unique id of the specified message
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @return the unique id of the message
+	 */
+	public String uidl(int msg) {
+		return uidls[msg - 1];
+	}
+
+	/**
+	 * Checks if the specified message is marked to be deleted
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @return true if the message is marked
+	 */
+	public boolean isMarked(int msg) {
+		return marked.get(msg - 1);
+	}
+
+	/**
+	 * Sets the marked for deletion status of the specified message. Marks
+	 * belong to the session and are only applied to the maildrop when the
+	 * session ends with QUIT.
+	 *
+	 * @param msg
+	 *            the message number, starting from 1
+	 * @param mark
+	 *            the marked for deletion state of the message
+	 */
+	public void setMarked(int msg, boolean mark) {
+		if (marked.get(msg - 1) == mark) {
+			return;
+		}
+
+		marked.set(msg - 1, mark);
+		numUnmarked += mark ? -1 : 1;
+		sizeUnmarked += mark ? -sizes[msg - 1] : sizes[msg - 1];
+	}
+
+	/**
+	 * Clears the marked for deletion status of every message
+	 */
+	public void clearMarks() {
+		marked.clear();
+		numUnmarked = count;
+		sizeUnmarked = 0;
+		for (int i = 0; i < count; i++) {
+			sizeUnmarked += sizes[i];
+		}
+	}
+
+	/**
+	 * Gets the storage ids of the messages marked to be deleted
+	 *
+	 * @return the storage ids, in ascending order of message number
+	 */
+	public int[] markedMailIds() {
+		int[] ids = new int[count - numUnmarked];
+		int n = 0;
+		for (int i = marked.nextSetBit(0); i >= 0; i = marked
+				.nextSetBit(i + 1)) {
+			ids[n++] = mailIds[i];
+		}
+		return ids;
+	}
+}
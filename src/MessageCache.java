@@ -0,0 +1,268 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageCache<K> {
+	/* Number of independently locked shards */
+	private static final int SHARDS = 16;
+
+	/* Share of each shard reserved for entries that have been hit */
+	private static final int PROTECTED_PERCENT = 80;
+
+	/* Cache members */
+	private Shard<K>[] shards;
+	private int maxEntryBytes;
+
+	/* Statistics */
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+
+	/**
+	 * Creates a cache of message content bounded by the total size of the
+	 * content it holds. Each shard uses segmented LRU eviction: new entries
+	 * enter a probationary segment and are promoted to a protected segment
+	 * when they are read again, so a burst of messages read only once cannot
+	 * flush out messages that are read repeatedly.
+	 *
+	 * @param maxBytes
+	 *            the maximum total size of cached content
+	 * @param maxEntryBytes
+	 *            the size above which messages are not cached
+	 */
+	public MessageCache(long maxBytes, int maxEntryBytes) {
+		this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes / SHARDS);
+		@SuppressWarnings("unchecked")
+		Shard<K>[] shards = (Shard<K>[]) new Shard<?>[SHARDS];
+		this.shards = shards;
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new Shard<>(maxBytes / SHARDS);
+		}
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Gets cached content
+	 *
+	 * @param key
+	 *            the key of the content
+	 * @return the content, null if it isn't cached
+	 */
+	public byte[] get(K key) {
+		byte[] content = shardOf(key).get(key);
+		if (content == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return content;
+	}
+
+	/**
+	 * Adds content to the cache, evicting other content if the cache is full.
+	 * Content larger than the entry limit is ignored.
+	 *
+	 * @param key
+	 *            the key of the content
+	 * @param content
+	 *            the content, which must not be modified afterwards
+	 */
+	public void put(K key, byte[] content) {
+		if (content.length <= maxEntryBytes) {
+			evictions.addAndGet(shardOf(key).put(key, content));
+		}
+	}
+
+	/**
+	 * Removes content from the cache, such as that of a deleted message
+	 *
+	 * @param key
+	 *            the key of the content
+	 */
+	public void remove(K key) {
+		shardOf(key).remove(key);
+	}
+
+	/**
+	 * Gets the size above which messages are not cached
+	 *
+	 * @return the maximum entry size, in bytes
+	 */
+	public int getMaxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	/**
+	 * Gets the number of lookups that found cached content
+	 *
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that didn't find cached content
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of entries removed to make room for new content
+	 *
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the total size of cached content
+	 *
+	 * @return the number of cached bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Shard<K> shard : shards) {
+			bytes += shard.getBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of cached entries
+	 *
+	 * @return the number of entries
+	 */
+	public int getEntries() {
+		int entries = 0;
+		for (Shard<K> shard : shards) {
+			entries += shard.getEntries();
+		}
+		return entries;
+	}
+
+	/**
+	 * Gets the shard holding the specified key
+	 *
+	 * @param key
+	 *            the key of the content
+	 * @return the shard for the key
+	 */
+	private Shard<K> shardOf(K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return shards[(hash & 0x7FFFFFFF) % SHARDS];
+	}
+
+	/**
+	 * A part of the cache with its own lock and byte budget
+	 */
+	private static final class Shard<K> {
+		private final LinkedHashMap<K, byte[]> probation;
+		private final LinkedHashMap<K, byte[]> protect;
+		private final long maxBytes;
+		private final long maxProtectedBytes;
+		private long probationBytes;
+		private long protectedBytes;
+
+		private Shard(long maxBytes) {
+			this.maxBytes = maxBytes;
+			maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
+			probation = new LinkedHashMap<>(16, 0.75f, true);
+			protect = new LinkedHashMap<>(16, 0.75f, true);
+		}
+
+		private synchronized byte[] get(K key) {
+			byte[] content = protect.get(key);
+			if (content != null) {
+				return content;
+			}
+
+			/* A second read promotes the entry to the protected segment */
+			content = probation.remove(key);
+			if (content != null) {
+				probationBytes -= content.length;
+				protect.put(key, content);
+				protectedBytes += content.length;
+				demote();
+			}
+			return content;
+		}
+
+		private synchronized int put(K key, byte[] content) {
+			if (protect.containsKey(key) || probation.containsKey(key)) {
+				return 0;
+			}
+			probation.put(key, content);
+			probationBytes += content.length;
+			return evict();
+		}
+
+		private synchronized void remove(K key) {
+			byte[] content = probation.remove(key);
+			if (content != null) {
+				probationBytes -= content.length;
+			}
+			content = protect.remove(key);
+			if (content != null) {
+				protectedBytes -= content.length;
+			}
+		}
+
+		private synchronized long getBytes() {
+			return probationBytes + protectedBytes;
+		}
+
+		private synchronized int getEntries() {
+			return probation.size() + protect.size();
+		}
+
+		/**
+		 * Moves the least recently used protected entries back to probation
+		 * while the protected segment is over its budget
+		 */
+		private void demote() {
+			Iterator<Map.Entry<K, byte[]>> it = protect.entrySet()
+					.iterator();
+			while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+				Map.Entry<K, byte[]> entry = it.next();
+				it.remove();
+				protectedBytes -= entry.getValue().length;
+				probation.put(entry.getKey(), entry.getValue());
+				probationBytes += entry.getValue().length;
+			}
+		}
+
+		/**
+		 * Removes the least recently used probationary entries, then
+		 * protected entries, until the shard is within its budget
+		 *
+		 * @return the number of entries removed
+		 */
+		private int evict() {
+			int evicted = 0;
+			Iterator<Map.Entry<K, byte[]>> it = probation.entrySet()
+					.iterator();
+			while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+				probationBytes -= it.next().getValue().length;
+				it.remove();
+				evicted++;
+			}
+
+			it = protect.entrySet().iterator();
+			while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+				protectedBytes -= it.next().getValue().length;
+				it.remove();
+				evicted++;
+			}
+			return evicted;
+		}
+	}
+}
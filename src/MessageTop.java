@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class MessageTop {
+	/* Size of the copy buffer */
+	private static final int BUFFER_SIZE = 8192;
+
+	private MessageTop() {
+	}
+
+	/**
+	 * Copies the header of a message and the first lines of its body, as
+	 * returned by the TOP command. Reading stops as soon as the requested
+	 * lines have been copied, so the rest of the body is never read.
+	 *
+	 * @param in
+	 *            the content of the message
+	 * @param headerLength
+	 *            the length of the header including the empty line that ends
+	 *            it, or -1 if it isn't known and the header must be scanned
+	 *            for
+	 * @param lines
+	 *            the number of body lines to copy
+	 * @param out
+	 *            the stream to copy to
+	 * @throws IOException
+	 *             if the message cannot be read or the stream written to
+	 */
+	public static void write(InputStream in, long headerLength, int lines,
+			OutputStream out) throws IOException {
+		if (headerLength >= 0) {
+			copy(in, headerLength, out);
+		} else {
+			copyHeader(in, out);
+		}
+
+		/* Copy body lines until enough line ends have been seen */
+		int b;
+		while (lines > 0 && (b = in.read()) != -1) {
+			out.write(b);
+			if (b == '\n') {
+				lines--;
+			}
+		}
+	}
+
+	/**
+	 * Copies an exact number of bytes, or up to the end of the input
+	 *
+	 * @param in
+	 *            the stream to copy from
+	 * @param length
+	 *            the number of bytes to copy
+	 * @param out
+	 *            the stream to copy to
+	 * @throws IOException
+	 *             if a stream cannot be read or written
+	 */
+	private static void copy(InputStream in, long length, OutputStream out)
+			throws IOException {
+		byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+		while (length > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (n == -1) {
+				return;
+			}
+			out.write(buffer, 0, n);
+			length -= n;
+		}
+	}
+
+	/**
+	 * Copies lines up to and including the first empty line
+	 *
+	 * @param in
+	 *            the stream to copy from
+	 * @param out
+	 *            the stream to copy to
+	 * @throws IOException
+	 *             if a stream cannot be read or written
+	 */
+	private static void copyHeader(InputStream in, OutputStream out)
+			throws IOException {
+		int lineLength = 0;
+		boolean lastWasCR = false;
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+			if (b == '\n') {
+				if (lineLength == 0 || (lineLength == 1 && lastWasCR)) {
+					return;
+				}
+				lineLength = 0;
+			} else {
+				lineLength++;
+			}
+			lastWasCR = (b == '\r');
+		}
+	}
+}
@@ -0,0 +1,234 @@
+public class Metrics {
+	/* Database calls that are timed */
+	public enum DatabaseCall {
+		GET_ACCOUNT("getAccount"),
+		LOCK_MAILDROP("lockMaildrop"),
+		UNLOCK_MAILDROP("unlockMaildrop"),
+		DELETE_MESSAGES("deleteMessages"),
+		NUM_MESSAGES("numMessages"),
+		SIZE_OF_MAILDROP("sizeOfMaildrop"),
+		GET_MAILDROP_INDEX("getMaildropIndex"),
+		GET_MESSAGE("getMessage"),
+		WRITE_MESSAGE("writeMessage"),
+		WRITE_MESSAGE_TOP("writeMessageTop"),
+		OPEN_WIRE_MESSAGE("openWireMessage"),
+		MAP_WIRE_MESSAGE("mapWireMessage");
+
+		private final String method;
+
+		private DatabaseCall(String method) {
+			this.method = method;
+		}
+
+		/**
+		 * Gets the name of the IDatabase method
+		 *
+		 * @return the method name
+		 */
+		public String getMethod() {
+			return method;
+		}
+	};
+
+	/* Metrics members */
+	private final LatencyHistogram[] commands;
+	private final LatencyHistogram[] databaseCalls;
+	private final StripedCounter[] databaseErrors;
+	private final StripedCounter bytesIn;
+	private final StripedCounter bytesOut;
+	private final LatencyHistogram tlsFullHandshakes;
+	private final LatencyHistogram tlsResumedHandshakes;
+	private final StripedCounter tlsFailures;
+
+	/**
+	 * Creates the recorders of every metric. Recording never takes a lock, so
+	 * sessions can record on every command without contending with each
+	 * other.
+	 */
+	private Metrics() {
+		commands = new LatencyHistogram[Verb.values().length];
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = new LatencyHistogram();
+		}
+		databaseCalls = new LatencyHistogram[DatabaseCall.values().length];
+		databaseErrors = new StripedCounter[databaseCalls.length];
+		for (int i = 0; i < databaseCalls.length; i++) {
+			databaseCalls[i] = new LatencyHistogram();
+			databaseErrors[i] = new StripedCounter();
+		}
+		bytesIn = new StripedCounter();
+		bytesOut = new StripedCounter();
+		tlsFullHandshakes = new LatencyHistogram();
+		tlsResumedHandshakes = new LatencyHistogram();
+		tlsFailures = new StripedCounter();
+	}
+
+	/**
+	 * Holds the singleton instance
+	 */
+	private static class Holder {
+		private static final Metrics INSTANCE = new Metrics();
+	}
+
+	/**
+	 * Gets the metrics of the server
+	 *
+	 * @return the instance of the metrics
+	 */
+	public static Metrics getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Records the time taken to handle a command
+	 *
+	 * @param verb
+	 *            the verb of the command
+	 * @param nanos
+	 *            the time taken, in nanoseconds
+	 */
+	public void recordCommand(Verb verb, long nanos) {
+		commands[verb.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Records the time taken by a database call, and whether it failed
+	 *
+	 * @param call
+	 *            the database call
+	 * @param nanos
+	 *            the time taken, in nanoseconds
+	 * @param failed
+	 *            true if the call failed
+	 */
+	public void recordDatabaseCall(DatabaseCall call, long nanos,
+			boolean failed) {
+		databaseCalls[call.ordinal()].record(nanos);
+		if (failed) {
+			databaseErrors[call.ordinal()].increment();
+		}
+	}
+
+	/**
+	 * Counts bytes received from clients
+	 *
+	 * @param n
+	 *            the number of bytes read
+	 */
+	public void addBytesIn(long n) {
+		bytesIn.add(n);
+	}
+
+	/**
+	 * Counts bytes sent to clients
+	 *
+	 * @param n
+	 *            the number of bytes written
+	 */
+	public void addBytesOut(long n) {
+		bytesOut.add(n);
+	}
+
+	/**
+	 * Records a completed TLS handshake
+	 *
+	 * @param nanos
+	 *            the time from the start of the handshake to its end, in
+	 *            nanoseconds
+	 * @param resumed
+	 *            true if an earlier session was resumed rather than a full
+	 *            handshake being made
+	 */
+	public void recordTlsHandshake(long nanos, boolean resumed) {
+		if (resumed) {
+			tlsResumedHandshakes.record(nanos);
+		} else {
+			tlsFullHandshakes.record(nanos);
+		}
+	}
+
+	/**
+	 * Counts a TLS handshake that failed
+	 */
+	public void recordTlsHandshakeFailure() {
+		tlsFailures.increment();
+	}
+
+	/**
+	 * Gets the latencies of a command
+	 *
+	 * @param verb
+	 *            the verb of the command
+	 * @return the histogram of the command
+	 */
+	public LatencyHistogram getCommandLatency(Verb verb) {
+		return commands[verb.ordinal()];
+	}
+
+	/**
+	 * Gets the latencies of a database call
+	 *
+	 * @param call
+	 *            the database call
+	 * @return the histogram of the call
+	 */
+	public LatencyHistogram getDatabaseLatency(DatabaseCall call) {
+		return databaseCalls[call.ordinal()];
+	}
+
+	/**
+	 * Gets the number of times a database call failed
+	 *
+	 * @param call
+	 *            the database call
+	 * @return the number of errors
+	 */
+	public long getDatabaseErrors(DatabaseCall call) {
+		return databaseErrors[call.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the total number of bytes received from clients
+	 *
+	 * @return the bytes read
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * Gets the total number of bytes sent to clients
+	 *
+	 * @return the bytes written
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * Gets the durations of TLS handshakes that made a new session
+	 *
+	 * @return the histogram of the full handshakes
+	 */
+	public LatencyHistogram getTlsFullHandshakeLatency() {
+		return tlsFullHandshakes;
+	}
+
+	/**
+	 * Gets the durations of TLS handshakes that resumed an earlier session
+	 *
+	 * @return the histogram of the resumed handshakes
+	 */
+	public LatencyHistogram getTlsResumedHandshakeLatency() {
+		return tlsResumedHandshakes;
+	}
+
+	/**
+	 * Gets the number of TLS handshakes that failed
+	 *
+	 * @return the failed handshakes
+	 */
+	public long getTlsFailures() {
+		return tlsFailures.sum();
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MetricsDatabase implements IDatabase {
+	/* Database members */
+	private IDatabase database;
+	private Metrics metrics;
+
+	/**
+	 * Wraps a database so the time taken by every call is recorded. A call
+	 * is counted as an error if it throws, or if it returns the result a
+	 * backend gives when the storage cannot be read. A user that doesn't
+	 * exist or a maildrop that is already locked is not an error. Calls that
+	 * stream a message to the client include the time taken to send it.
+	 *
+	 * @param database
+	 *            the database to wrap
+	 * @param metrics
+	 *            the metrics the calls are recorded in
+	 */
+	public MetricsDatabase(IDatabase database, Metrics metrics) {
+		this.database = database;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		long start = System.nanoTime();
+		Account account = database.getAccount(username);
+		record(Metrics.DatabaseCall.GET_ACCOUNT, start, false);
+		return account;
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		long start = System.nanoTime();
+		boolean locked = database.lockMaildrop(maildropId);
+		record(Metrics.DatabaseCall.LOCK_MAILDROP, start, false);
+		return locked;
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		long start = System.nanoTime();
+		database.unlockMaildrop(maildropId);
+		record(Metrics.DatabaseCall.UNLOCK_MAILDROP, start, false);
+	}
+
+	@Override
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		long start = System.nanoTime();
+		int deleted = database.deleteMessages(maildropId, mailIds);
+		record(Metrics.DatabaseCall.DELETE_MESSAGES, start, deleted < 0);
+		return deleted;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		long start = System.nanoTime();
+		int n = database.numMessages(maildropId);
+		record(Metrics.DatabaseCall.NUM_MESSAGES, start, false);
+		return n;
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		long start = System.nanoTime();
+		int size = database.sizeOfMaildrop(maildropId);
+		record(Metrics.DatabaseCall.SIZE_OF_MAILDROP, start, false);
+		return size;
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		long start = System.nanoTime();
+		MaildropIndex index = database.getMaildropIndex(maildropId);
+		record(Metrics.DatabaseCall.GET_MAILDROP_INDEX, start, index == null);
+		return index;
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		long start = System.nanoTime();
+		String message = database.getMessage(maildropId, mailId);
+		record(Metrics.DatabaseCall.GET_MESSAGE, start, message == null);
+		return message;
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		long start = System.nanoTime();
+		boolean written = false;
+		try {
+			written = database.writeMessage(maildropId, mailId, out);
+			return written;
+		} finally {
+			record(Metrics.DatabaseCall.WRITE_MESSAGE, start, !written);
+		}
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		long start = System.nanoTime();
+		boolean written = false;
+		try {
+			written = database.writeMessageTop(maildropId, mailId, lines, out);
+			return written;
+		} finally {
+			record(Metrics.DatabaseCall.WRITE_MESSAGE_TOP, start, !written);
+		}
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId)
+			throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			FileChannel channel = database.openWireMessage(maildropId, mailId);
+			failed = false;
+			return channel;
+		} finally {
+			record(Metrics.DatabaseCall.OPEN_WIRE_MESSAGE, start, failed);
+		}
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId)
+			throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			ByteBuffer buffer = database.mapWireMessage(maildropId, mailId);
+			failed = false;
+			return buffer;
+		} finally {
+			record(Metrics.DatabaseCall.MAP_WIRE_MESSAGE, start, failed);
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return database.isAvailable();
+	}
+
+	@Override
+	public void close() {
+		database.close();
+	}
+
+	/**
+	 * Records a call that started at the specified time
+	 *
+	 * @param call
+	 *            the database call
+	 * @param start
+	 *            the time the call started, from System.nanoTime
+	 * @param failed
+	 *            true if the call failed
+	 */
+	private void record(Metrics.DatabaseCall call, long start, boolean failed) {
+		metrics.recordDatabaseCall(call, System.nanoTime() - start, failed);
+	}
+}
@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsExporter implements MetricsMXBean {
+	/* System Messages */
+	private static final String ERROR_JMX = "Unable to register the metrics with JMX";
+	private static final String ERROR_ENDPOINT = "Unable to open the metrics endpoint";
+
+	/* Endpoint settings */
+	private static final String OBJECT_NAME = "Pop3Server:type=Metrics,port=";
+	private static final String SCRAPE_PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* TLS handshake types */
+	private static final String TLS_FULL = "full";
+	private static final String TLS_RESUMED = "resumed";
+
+	/* Login throttle limits */
+	private static final String AUTH_ADDRESS = "address";
+	private static final String AUTH_USER = "user";
+
+	/* Exporter members */
+	private Metrics metrics;
+	private AdmissionController admission;
+	private ObjectName name;
+	private HttpServer endpoint;
+
+	/**
+	 * Creates an exporter of the server metrics and the session counts of the
+	 * admission controller
+	 *
+	 * @param metrics
+	 *            the metrics to export
+	 * @param admission
+	 *            the admission controller of the server
+	 */
+	public MetricsExporter(Metrics metrics, AdmissionController admission) {
+		this.metrics = metrics;
+		this.admission = admission;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server and, if a port is
+	 * given, serves them as plain text at /metrics on the loopback address.
+	 * Failing to export the metrics doesn't stop the server.
+	 *
+	 * @param serverPort
+	 *            the port of the POP3 server, which names the MBean
+	 * @param port
+	 *            the port of the scrape endpoint, 0 for no endpoint
+	 */
+	public void start(int serverPort, int port) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName(OBJECT_NAME + serverPort);
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println(ERROR_JMX + ": " + e.getMessage());
+			name = null;
+		}
+
+		if (port <= 0) {
+			return;
+		}
+		try {
+			endpoint = HttpServer.create(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), port), 0);
+			endpoint.createContext(SCRAPE_PATH, new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = scrape().getBytes(CHARSET);
+					exchange.getResponseHeaders().set("Content-Type",
+							CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				}
+			});
+			endpoint.start();
+		} catch (IOException e) {
+			System.err.println(ERROR_ENDPOINT + ": " + e.getMessage());
+			endpoint = null;
+		}
+	}
+
+	/**
+	 * Stops the scrape endpoint and removes the MBean
+	 */
+	public void close() {
+		if (endpoint != null) {
+			endpoint.stop(0);
+			endpoint = null;
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				/* The server is stopping anyway */
+			}
+			name = null;
+		}
+	}
+
+	@Override
+	public int getActiveSessions() {
+		return admission.getActive();
+	}
+
+	@Override
+	public long getAcceptedSessions() {
+		return admission.getAccepted();
+	}
+
+	@Override
+	public long getRejectedSessions() {
+		return admission.getRejectedBusy() + admission.getRejectedAddress();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return metrics.getBytesIn();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return metrics.getBytesOut();
+	}
+
+	@Override
+	public long getAccessLogDropped() {
+		return AccessLog.getInstance().getDropped();
+	}
+
+	@Override
+	public long getTlsHandshakes() {
+		return metrics.getTlsFullHandshakeLatency().getCount()
+				+ metrics.getTlsResumedHandshakeLatency().getCount();
+	}
+
+	@Override
+	public double getTlsResumptionRate() {
+		long handshakes = getTlsHandshakes();
+		return (handshakes == 0) ? 0 : (double) metrics
+				.getTlsResumedHandshakeLatency().getCount() / handshakes;
+	}
+
+	@Override
+	public long getTlsHandshakeFailures() {
+		return metrics.getTlsFailures();
+	}
+
+	@Override
+	public Map<String, LatencySummary> getTlsHandshakeLatency() {
+		Map<String, LatencySummary> latency = new TreeMap<>();
+		latency.put(TLS_FULL, new LatencySummary(metrics
+				.getTlsFullHandshakeLatency()));
+		latency.put(TLS_RESUMED, new LatencySummary(metrics
+				.getTlsResumedHandshakeLatency()));
+		return latency;
+	}
+
+	@Override
+	public Map<String, Long> getAuthThrottled() {
+		AuthThrottle throttle = AuthThrottle.getInstance();
+		Map<String, Long> throttled = new TreeMap<>();
+		throttled.put(AUTH_ADDRESS, throttle.getThrottledAddress());
+		throttled.put(AUTH_USER, throttle.getThrottledUser());
+		return throttled;
+	}
+
+	@Override
+	public long getAuthFailures() {
+		return AuthThrottle.getInstance().getFailures();
+	}
+
+	@Override
+	public int getAuthThrottleEntries() {
+		return AuthThrottle.getInstance().getEntries();
+	}
+
+	@Override
+	public Map<String, LatencySummary> getCommandLatency() {
+		Map<String, LatencySummary> latency = new TreeMap<>();
+		for (Verb verb : Verb.values()) {
+			latency.put(verb.name(), new LatencySummary(metrics
+					.getCommandLatency(verb)));
+		}
+		return latency;
+	}
+
+	@Override
+	public Map<String, LatencySummary> getDatabaseLatency() {
+		Map<String, LatencySummary> latency = new TreeMap<>();
+		for (Metrics.DatabaseCall call : Metrics.DatabaseCall.values()) {
+			latency.put(call.getMethod(), new LatencySummary(metrics
+					.getDatabaseLatency(call)));
+		}
+		return latency;
+	}
+
+	@Override
+	public Map<String, Long> getDatabaseErrors() {
+		Map<String, Long> errors = new TreeMap<>();
+		for (Metrics.DatabaseCall call : Metrics.DatabaseCall.values()) {
+			errors.put(call.getMethod(), metrics.getDatabaseErrors(call));
+		}
+		return errors;
+	}
+
+	/**
+	 * Formats every metric in the Prometheus text format. Latencies are given
+	 * in seconds as quantiles, with their count and sum.
+	 *
+	 * @return the metrics as text
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder();
+		gauge(out, "pop3_sessions_active", admission.getActive());
+		counter(out, "pop3_sessions_accepted_total", admission.getAccepted());
+		out.append("# TYPE pop3_sessions_rejected_total counter\n");
+		out.append("pop3_sessions_rejected_total{reason=\"busy\"} ")
+				.append(admission.getRejectedBusy()).append('\n');
+		out.append("pop3_sessions_rejected_total{reason=\"address\"} ")
+				.append(admission.getRejectedAddress()).append('\n');
+		counter(out, "pop3_bytes_in_total", metrics.getBytesIn());
+		counter(out, "pop3_bytes_out_total", metrics.getBytesOut());
+		counter(out, "pop3_access_log_dropped_total", getAccessLogDropped());
+
+		out.append("# TYPE pop3_command_duration_seconds summary\n");
+		for (Verb verb : Verb.values()) {
+			summary(out, "pop3_command_duration_seconds", "command",
+					verb.name(), metrics.getCommandLatency(verb));
+		}
+
+		out.append("# TYPE pop3_database_duration_seconds summary\n");
+		for (Metrics.DatabaseCall call : Metrics.DatabaseCall.values()) {
+			summary(out, "pop3_database_duration_seconds", "method",
+					call.getMethod(), metrics.getDatabaseLatency(call));
+		}
+
+		out.append("# TYPE pop3_database_errors_total counter\n");
+		for (Metrics.DatabaseCall call : Metrics.DatabaseCall.values()) {
+			out.append("pop3_database_errors_total{method=\"")
+					.append(call.getMethod()).append("\"} ")
+					.append(metrics.getDatabaseErrors(call)).append('\n');
+		}
+
+		/* The handshake counts are the counts of the summaries */
+		out.append("# TYPE pop3_tls_handshake_duration_seconds summary\n");
+		summary(out, "pop3_tls_handshake_duration_seconds", "type", TLS_FULL,
+				metrics.getTlsFullHandshakeLatency());
+		summary(out, "pop3_tls_handshake_duration_seconds", "type",
+				TLS_RESUMED, metrics.getTlsResumedHandshakeLatency());
+		counter(out, "pop3_tls_handshake_failures_total",
+				metrics.getTlsFailures());
+
+		AuthThrottle throttle = AuthThrottle.getInstance();
+		out.append("# TYPE pop3_auth_throttled_total counter\n");
+		out.append("pop3_auth_throttled_total{limit=\"").append(AUTH_ADDRESS)
+				.append("\"} ").append(throttle.getThrottledAddress())
+				.append('\n');
+		out.append("pop3_auth_throttled_total{limit=\"").append(AUTH_USER)
+				.append("\"} ").append(throttle.getThrottledUser())
+				.append('\n');
+		counter(out, "pop3_auth_failures_total", throttle.getFailures());
+		gauge(out, "pop3_auth_throttle_entries", throttle.getEntries());
+		return out.toString();
+	}
+
+	/**
+	 * Appends a gauge to the scrape output
+	 */
+	private static void gauge(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a counter to the scrape output
+	 */
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends the quantiles, count and sum of a histogram to the scrape
+	 * output
+	 */
+	private static void summary(StringBuilder out, String name, String label,
+			String value, LatencyHistogram histogram) {
+		String labels = label + "=\"" + value + "\"";
+		for (double quantile : LatencySummary.QUANTILES) {
+			out.append(name).append('{').append(labels)
+					.append(",quantile=\"").append(quantile).append("\"} ")
+					.append(seconds(histogram.getQuantile(quantile)))
+					.append('\n');
+		}
+		out.append(name).append("_count{").append(labels).append("} ")
+				.append(histogram.getCount()).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ")
+				.append(seconds(histogram.getSum())).append('\n');
+	}
+
+	/**
+	 * Formats a duration in nanoseconds as seconds
+	 */
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+}
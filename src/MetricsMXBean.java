@@ -0,0 +1,119 @@
+import java.util.Map;
+
+public interface MetricsMXBean {
+	/**
+	 * Gets the number of sessions currently open
+	 *
+	 * @return the number of active sessions
+	 */
+	public int getActiveSessions();
+
+	/**
+	 * Gets the total number of sessions accepted
+	 *
+	 * @return the number of accepted sessions
+	 */
+	public long getAcceptedSessions();
+
+	/**
+	 * Gets the total number of connections turned away by a connection limit
+	 *
+	 * @return the number of rejected sessions
+	 */
+	public long getRejectedSessions();
+
+	/**
+	 * Gets the total number of bytes received from clients
+	 *
+	 * @return the bytes read
+	 */
+	public long getBytesIn();
+
+	/**
+	 * Gets the total number of bytes sent to clients
+	 *
+	 * @return the bytes written
+	 */
+	public long getBytesOut();
+
+	/**
+	 * Gets the number of access log records dropped because the log buffer
+	 * was full
+	 *
+	 * @return the dropped records
+	 */
+	public long getAccessLogDropped();
+
+	/**
+	 * Gets the number of completed TLS handshakes, full and resumed
+	 *
+	 * @return the TLS handshakes
+	 */
+	public long getTlsHandshakes();
+
+	/**
+	 * Gets the share of completed TLS handshakes that resumed an earlier
+	 * session
+	 *
+	 * @return the resumption rate, from 0 to 1
+	 */
+	public double getTlsResumptionRate();
+
+	/**
+	 * Gets the number of TLS handshakes that failed
+	 *
+	 * @return the failed handshakes
+	 */
+	public long getTlsHandshakeFailures();
+
+	/**
+	 * Gets the latencies of TLS handshakes, keyed by full or resumed
+	 *
+	 * @return the latency summaries of the handshakes
+	 */
+	public Map<String, LatencySummary> getTlsHandshakeLatency();
+
+	/**
+	 * Gets the number of login attempts turned away by the throttle, keyed by
+	 * the limit of the address or username that was reached
+	 *
+	 * @return the throttled attempts
+	 */
+	public Map<String, Long> getAuthThrottled();
+
+	/**
+	 * Gets the number of failed logins
+	 *
+	 * @return the failed logins
+	 */
+	public long getAuthFailures();
+
+	/**
+	 * Gets the number of addresses and usernames tracked by the login
+	 * throttle
+	 *
+	 * @return the tracked entries
+	 */
+	public int getAuthThrottleEntries();
+
+	/**
+	 * Gets the latencies of each command, keyed by verb
+	 *
+	 * @return the latency summaries of the commands
+	 */
+	public Map<String, LatencySummary> getCommandLatency();
+
+	/**
+	 * Gets the latencies of each database call, keyed by method name
+	 *
+	 * @return the latency summaries of the database calls
+	 */
+	public Map<String, LatencySummary> getDatabaseLatency();
+
+	/**
+	 * Gets the number of failures of each database call, keyed by method name
+	 *
+	 * @return the error counts of the database calls
+	 */
+	public Map<String, Long> getDatabaseErrors();
+}
@@ -0,0 +1,77 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class NegativeCache {
+	/* Cache members */
+	private final long ttl;
+	private final int maxEntries;
+	private final LinkedHashMap<String, Long> expiries;
+
+	/**
+	 * Creates a cache of keys known not to exist, such as unknown usernames,
+	 * so repeated lookups of the same key are answered without a query.
+	 * Entries expire after a short time so a key that is created later is
+	 * found again. When the cache is full the oldest entries are dropped, so
+	 * a flood of distinct keys cannot use unbounded memory.
+	 *
+	 * @param ttl
+	 *            the time an entry is kept, in milliseconds
+	 * @param maxEntries
+	 *            the maximum number of entries
+	 */
+	public NegativeCache(long ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		expiries = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Checks if a key is known not to exist
+	 *
+	 * @param key
+	 *            the key to check
+	 * @return true if the key was recently found not to exist
+	 */
+	public synchronized boolean contains(String key) {
+		Long expiry = expiries.get(key);
+		if (expiry == null) {
+			return false;
+		} else if (expiry < System.currentTimeMillis()) {
+			expiries.remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a key doesn't exist
+	 *
+	 * @param key
+	 *            the key that wasn't found
+	 */
+	public synchronized void add(String key) {
+		long now = System.currentTimeMillis();
+
+		/* Entries are kept in insertion order, so the oldest expire first */
+		expiries.remove(key);
+		expiries.put(key, now + ttl);
+		Iterator<Map.Entry<String, Long>> it = expiries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (expiries.size() <= maxEntries && entry.getValue() >= now) {
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Gets the number of keys held by the cache
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return expiries.size();
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class NioServer {
+	/* System Messages */
+	private static final String ERROR_ACCEPT = "Unable to accept a connection";
+	private static final String ERROR_CLIENT_SETUP = "Unable to set up a client connection";
+
+	/* Default number of threads that run commands against the database */
+	private static final int DEFAULT_WORKERS = 16;
+
+	/* Time to wait after a failed accept, in milliseconds */
+	private static final int ACCEPT_RETRY_DELAY = 100;
+
+	/* Server members */
+	private int port;
+	private SessionTimeouts timeouts;
+	private String threads;
+	private IDatabase database;
+	private AdmissionController admission;
+	private TlsContext tls;
+	private Reactor[] reactors;
+	private ExecutorService workers;
+	private AccessLog log;
+	private volatile ServerSocketChannel server;
+
+	/**
+	 * Creates a non-blocking server. Connections are spread over a number of
+	 * event loops, pop3.nio.reactors (one per processor by default), while
+	 * commands run on a pool of pop3.nio.workers threads so that database
+	 * calls never block an event loop. With virtual threads every command
+	 * runs on its own virtual thread and the connection pool bounds the
+	 * database concurrency instead.
+	 *
+	 * @param port
+	 *            the port number to listen on
+	 * @param timeouts
+	 *            the idle timeouts of each session state
+	 * @param threads
+	 *            the thread mode of the workers, platform or virtual
+	 * @param database
+	 *            the database used by sessions
+	 * @param admission
+	 *            the connection limits applied to new connections
+	 * @param tls
+	 *            the TLS settings of the server, null if TLS is off
+	 */
+	public NioServer(int port, SessionTimeouts timeouts, String threads,
+			IDatabase database, AdmissionController admission, TlsContext tls) {
+		this.port = port;
+		this.timeouts = timeouts;
+		this.threads = threads;
+		this.database = database;
+		this.admission = admission;
+		this.tls = tls;
+		log = AccessLog.getInstance();
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until the server socket
+	 * is closed
+	 *
+	 * @throws IOException
+	 *             if the server socket cannot be opened
+	 */
+	public void run() throws IOException {
+		int numReactors = ServerConfig.getInt("nio.reactors", Runtime
+				.getRuntime().availableProcessors());
+		int numWorkers = ServerConfig.getInt("nio.workers", DEFAULT_WORKERS);
+		if (numReactors <= 0 || numWorkers <= 0) {
+			throw new IllegalArgumentException(
+					"The number of reactors and workers must be greater than zero.");
+		}
+
+		if (threads.equals(SessionExecutors.THREADS_VIRTUAL)) {
+			workers = SessionExecutors.newVirtualThreadExecutor();
+		} else {
+			workers = Executors.newFixedThreadPool(numWorkers,
+					SessionExecutors.newThreadFactory("Pop3Worker", true));
+		}
+		reactors = new Reactor[numReactors];
+		ThreadFactory reactorThreads = SessionExecutors.newThreadFactory(
+				"Pop3Reactor", true);
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			this.server = server;
+			server.bind(new InetSocketAddress(port));
+
+			/* Start the event loops */
+			for (int i = 0; i < numReactors; i++) {
+				reactors[i] = new Reactor(database, workers, admission,
+						timeouts, tls);
+				reactorThreads.newThread(reactors[i]).start();
+			}
+
+			/* Accept connections and spread them over the event loops */
+			int next = 0;
+			while (server.isOpen()) {
+				SocketChannel channel;
+				try {
+					channel = server.accept();
+				} catch (ClosedChannelException e) {
+					/* The server was stopped */
+					break;
+				} catch (IOException e) {
+					/* Running out of descriptors or an aborted connection */
+					log.error(ERROR_ACCEPT + ": " + e.getMessage());
+					if (!pause()) {
+						break;
+					}
+					continue;
+				}
+
+				/* Turn the client away if the server is at a limit */
+				InetAddress address = channel.socket().getInetAddress();
+				AdmissionController.Admission result = admission
+						.admit(address);
+				if (result != AdmissionController.Admission.ADMITTED) {
+					reject(channel, AdmissionController.rejection(result));
+					continue;
+				}
+
+				/* A client that resets straight away only loses its own slot */
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					log.error(ERROR_CLIENT_SETUP + ": " + e.getMessage());
+					admission.release(address);
+					close(channel);
+					continue;
+				}
+				reactors[next].register(channel);
+				next = (next + 1) % numReactors;
+			}
+		} finally {
+			for (Reactor reactor : reactors) {
+				if (reactor != null) {
+					reactor.shutdown();
+				}
+			}
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Sends an error to a client that cannot be served and closes the
+	 * connection straight away. The channel is still in blocking mode and
+	 * the response fits in the socket buffer, so this never waits.
+	 *
+	 * @param channel
+	 *            the client connection
+	 * @param response
+	 *            the error response
+	 */
+	private static void reject(SocketChannel channel, String response) {
+		try {
+			channel.write(ByteBuffer.wrap((response + "\r\n").getBytes()));
+		} catch (IOException e) {
+			/* The client is being turned away anyway */
+		} finally {
+			close(channel);
+		}
+	}
+
+	/**
+	 * Closes a client connection that will not be served
+	 *
+	 * @param channel
+	 *            the client connection
+	 */
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			/* The client is being turned away anyway */
+		}
+	}
+
+	/**
+	 * Waits briefly after a failed accept, so a lack of file descriptors
+	 * does not spin the accept loop
+	 *
+	 * @return false if the thread was interrupted
+	 */
+	private static boolean pause() {
+		try {
+			Thread.sleep(ACCEPT_RETRY_DELAY);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the server socket, which stops the accept loop and the event
+	 * loops
+	 *
+	 * @throws IOException
+	 *             if the server socket cannot be closed
+	 */
+	public void stop() throws IOException {
+		if (server != null) {
+			server.close();
+		}
+	}
+}
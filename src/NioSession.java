@@ -0,0 +1,643 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+public class NioSession {
+	/* System Messages */
+	private static final String SERVER_WELCOME = "+OK POP3 server ready";
+	private static final String ERROR_LINE_TOO_LONG = "-ERR command line too long";
+	private static final String ERROR_SESSION_CLOSED = "The session has been closed";
+
+	/* How a session ended, as written to the access log */
+	private static final String END_QUIT = "quit";
+	private static final String END_TIMEOUT = "timeout";
+	private static final String END_CLOSED = "closed";
+	private static final String END_ERROR = "error";
+
+	/* Session limits */
+	private static final int READ_BUFFER_SIZE = 1024;
+	private static final int MAX_PENDING_COMMANDS = 32;
+	private static final int RESPONSE_CHUNK_SIZE = 16384;
+	private static final int MAX_QUEUED_RESPONSE = 262144;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Session members */
+	private Reactor reactor;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private InetAddress address;
+	private ICommandInterpreter interpreter;
+	private Executor workers;
+	private AdmissionController admission;
+	private ByteBuffer readBuffer;
+	private Deque<Chunk> writeQueue;
+	private Deque<Command> pendingCommands;
+	private Deque<Command> spareCommands;
+	private Semaphore writeCredits;
+	private IResponseSink responseSink;
+	private Metrics metrics;
+	private AccessLog log;
+	private long sessionId;
+	private long startTime;
+	private TlsContext tlsContext;
+	private SessionTimeouts timeouts;
+	private TimingWheel wheel;
+	private TimingWheel.Timeout idle;
+
+	/* Session state, only accessed from the reactor thread */
+	private TlsCodec tls;
+	private boolean tlsPending;
+	private boolean busy;
+	private boolean quitting;
+	private boolean releasePending;
+	private String end = END_CLOSED;
+	private int commands;
+	private long bytesIn;
+	private long bytesOut;
+
+	/* Set by the reactor thread, read by workers streaming a response */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a session for an accepted connection
+	 *
+	 * @param reactor
+	 *            the event loop that owns the connection
+	 * @param channel
+	 *            the non-blocking channel of the connection
+	 * @param database
+	 *            the database used by the session
+	 * @param workers
+	 *            the executor that runs commands, which may block on the
+	 *            database
+	 * @param admission
+	 *            the admission controller to release the session to when it
+	 *            ends
+	 * @param timeouts
+	 *            the idle timeouts of each session state
+	 * @param wheel
+	 *            the timing wheel of the reactor, which tracks the idle
+	 *            timeout
+	 * @param tlsContext
+	 *            the TLS settings of the server, null if TLS is off
+	 */
+	public NioSession(Reactor reactor, SocketChannel channel,
+			IDatabase database, Executor workers,
+			AdmissionController admission, SessionTimeouts timeouts,
+			TimingWheel wheel, TlsContext tlsContext) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.workers = workers;
+		this.admission = admission;
+		this.timeouts = timeouts;
+		this.wheel = wheel;
+		this.tlsContext = tlsContext;
+		address = channel.socket().getInetAddress();
+		interpreter = new CommandInterpreter(database, address);
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		writeQueue = new ArrayDeque<>();
+		pendingCommands = new ArrayDeque<>();
+		spareCommands = new ArrayDeque<>();
+		writeCredits = new Semaphore(MAX_QUEUED_RESPONSE);
+		responseSink = new StreamResponseSink(new ResponseStream());
+		metrics = Metrics.getInstance();
+		log = AccessLog.getInstance();
+		sessionId = log.nextSessionId();
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Registers the connection with the reactor's selector and sends the
+	 * welcome message. With implicit TLS the welcome message is held until the
+	 * handshake has finished. The first command is due soon after connecting.
+	 *
+	 * @param selector
+	 *            the selector of the owning reactor
+	 * @throws IOException
+	 *             if the channel cannot be registered
+	 */
+	public void open(Selector selector) throws IOException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		idle = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				end = END_TIMEOUT;
+				close(true);
+			}
+		}, timeouts.getFirstCommandMillis());
+		if (tlsContext != null && tlsContext.isImplicit()) {
+			tls = tlsContext.newCodec();
+		} else {
+			interpreter.setTlsAvailable(tlsContext != null);
+		}
+		send(SERVER_WELCOME);
+	}
+
+	/**
+	 * Reads available input from the client and queues each complete command
+	 * line. Called by the reactor when the channel is readable. Over TLS the
+	 * input is decrypted first, answering any handshake messages.
+	 *
+	 * @throws IOException
+	 *             if the channel cannot be read
+	 */
+	public void handleRead() throws IOException {
+		if (tls != null) {
+			if (channel.read(tls.getNetIn()) < 0) {
+				close(!quitting);
+				return;
+			}
+
+			/* Commands sent before the client closed TLS are still handled */
+			boolean open = tls.unwrap();
+			handleWrite();
+			readPlaintext();
+			if (!open) {
+				close(!quitting);
+			}
+			return;
+		}
+
+		int n = channel.read(readBuffer);
+		if (n < 0) {
+			close(!quitting);
+			return;
+		}
+		metrics.addBytesIn(n);
+		bytesIn += n;
+		splitLines();
+	}
+
+	/**
+	 * Moves decrypted input into the read buffer and queues each complete
+	 * command line, until the input runs out or reading is paused
+	 *
+	 * @throws IOException
+	 *             if the input cannot be decrypted
+	 */
+	private void readPlaintext() throws IOException {
+		while (!closed && !tlsPending && tls.hasPlaintext()
+				&& (key.interestOps() & SelectionKey.OP_READ) != 0) {
+			int n = tls.read(readBuffer);
+			metrics.addBytesIn(n);
+			bytesIn += n;
+			if (!splitLines()) {
+				return;
+			}
+
+			/* Decrypt records held back while the plaintext buffer was full */
+			if (!tls.hasPlaintext()) {
+				tls.unwrap();
+			}
+		}
+	}
+
+	/**
+	 * Splits the input in the read buffer into command lines and queues them
+	 * 
+	 * @return false if the buffer is full without a line terminator, which
+	 *         ends the session
+	 */
+	private boolean splitLines() {
+		/* Split the buffered input into lines */
+		readBuffer.flip();
+		int start = readBuffer.position();
+		for (int i = start; i < readBuffer.limit(); i++) {
+			if (readBuffer.get(i) == '\n') {
+				int end = (i > start && readBuffer.get(i - 1) == '\r') ? i - 1
+						: i;
+				Command command = spareCommands.isEmpty() ? new Command()
+						: spareCommands.poll();
+				command.decode(readBuffer.array(), start, end - start);
+				pendingCommands.add(command);
+				start = i + 1;
+			}
+		}
+		readBuffer.position(start);
+		readBuffer.compact();
+
+		/* A full buffer without a line terminator cannot be a valid command */
+		if (!readBuffer.hasRemaining()) {
+			quitting = true;
+			pendingCommands.clear();
+			send(ERROR_LINE_TOO_LONG);
+			return false;
+		}
+
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Writes queued responses to the client. Called by the reactor when the
+	 * channel is writable. Once the response to STLS has been sent the TLS
+	 * handshake starts.
+	 *
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public void handleWrite() throws IOException {
+		if (tls != null) {
+			if (!writeTls()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		} else {
+			while (!writeQueue.isEmpty()) {
+				Chunk chunk = writeQueue.peek();
+				int n = channel.write(chunk.data);
+				metrics.addBytesOut(n);
+				bytesOut += n;
+				if (n > 0) {
+					touch();
+				}
+				if (chunk.data.hasRemaining()) {
+					/* The socket buffer is full, wait to be writable again */
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				writeQueue.poll();
+				writeCredits.release(chunk.credits);
+			}
+		}
+
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (tlsPending && writeQueue.isEmpty()) {
+			tlsPending = false;
+			tls = tlsContext.newCodec();
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		if (quitting && !busy && writeQueue.isEmpty()) {
+			close(false);
+		}
+	}
+
+	/**
+	 * Encrypts queued responses, once the handshake allows, and writes the
+	 * TLS data to the client along with any handshake messages
+	 * 
+	 * @return true if all TLS data was written, false if the socket buffer is
+	 *         full
+	 * @throws IOException
+	 *             if the data cannot be encrypted or written
+	 */
+	private boolean writeTls() throws IOException {
+		while (true) {
+			while (!writeQueue.isEmpty()) {
+				Chunk chunk = writeQueue.peek();
+				int before = chunk.data.remaining();
+				tls.wrap(chunk.data);
+				int n = before - chunk.data.remaining();
+				metrics.addBytesOut(n);
+				bytesOut += n;
+				if (chunk.data.hasRemaining()) {
+					break;
+				}
+				writeQueue.poll();
+				writeCredits.release(chunk.credits);
+			}
+
+			if (!tls.hasOutput()) {
+				return true;
+			}
+			if (tls.writeTo(channel) > 0) {
+				touch();
+			}
+			if (tls.hasOutput()) {
+				return false;
+			}
+
+			/* Take handshake steps held back while the output was full */
+			tls.unwrap();
+		}
+	}
+
+	/**
+	 * Restarts the idle timeout once a response is being read by the client,
+	 * so a slow download isn't cut off. The timeout doesn't run while a
+	 * command is being handled, and the first command must still arrive in
+	 * time.
+	 */
+	private void touch() {
+		if (!busy && commands > 0) {
+			idle.reset(timeouts.getIdleMillis(interpreter));
+		}
+	}
+
+	/**
+	 * Closes the connection and writes the session to the access log. The
+	 * interpreter is closed on a worker thread, as releasing the maildrop lock
+	 * needs the database.
+	 *
+	 * @param release
+	 *            true if the maildrop should be released, false if the
+	 *            session ended with QUIT
+	 */
+	public void close(boolean release) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (idle != null) {
+			idle.cancel();
+		}
+
+		/* Tell a TLS client no more data is coming, if the socket takes it */
+		if (tls != null) {
+			tls.closeOutbound();
+			try {
+				tls.writeTo(channel);
+			} catch (IOException e) {
+				/* The connection is being discarded anyway */
+			}
+		}
+
+		/* Close the network connection */
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			/* The connection is being discarded anyway */
+		}
+		admission.release(address);
+		log.session(sessionId, address, interpreter.getUsername(), commands,
+				bytesIn, bytesOut, System.nanoTime() - startTime, end);
+
+		/* Unblock a worker waiting for the queued response to drain */
+		writeQueue.clear();
+		writeCredits.release(MAX_QUEUED_RESPONSE);
+
+		/* Wait for a running command before releasing the maildrop */
+		if (release) {
+			if (busy) {
+				releasePending = true;
+			} else {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Passes the next queued command to a worker thread. Only one command per
+	 * session runs at a time so responses are sent in order. The worker
+	 * streams the response back to the reactor in chunks, followed by the
+	 * completion of the command. While more commands are queued the end of
+	 * the response is held back, so a pipelined batch of short responses is
+	 * sent as a single chunk.
+	 */
+	private void dispatch() {
+		if (busy || closed || quitting || pendingCommands.isEmpty()) {
+			return;
+		}
+
+		final Command command = pendingCommands.poll();
+
+		/* Responses to pipelined commands are collected into one write */
+		final boolean flush = pendingCommands.isEmpty()
+				|| command.getVerb() == Verb.QUIT
+				|| command.getVerb() == Verb.STLS;
+		busy = true;
+		idle.suspend();
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean sent;
+					try {
+						interpreter.handleInput(command, responseSink);
+						if (flush) {
+							responseSink.getOutputStream().flush();
+						}
+						sent = true;
+					} catch (IOException e) {
+						sent = false;
+					}
+
+					final boolean failed = !sent;
+					reactor.execute(new Runnable() {
+						@Override
+						public void run() {
+							complete(command, failed);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			busy = false;
+			close(true);
+			return;
+		}
+
+		/* Stop reading while too many commands are waiting */
+		if (pendingCommands.size() >= MAX_PENDING_COMMANDS) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Handles the response from a command once the worker has finished,
+	 * running on the reactor thread
+	 *
+	 * @param command
+	 *            the command that was executed, which is kept for reuse
+	 * @param failed
+	 *            true if the response could not be sent in full
+	 */
+	private void complete(Command command, boolean failed) {
+		busy = false;
+		commands++;
+		spareCommands.add(command);
+		if (closed) {
+			if (releasePending) {
+				release();
+			}
+			return;
+		}
+		idle.reset(timeouts.getIdleMillis(interpreter));
+
+		/* A partially sent response leaves the client out of step */
+		if (failed) {
+			end = END_ERROR;
+			close(true);
+			return;
+		}
+
+		/* Check for a QUIT command */
+		if (command.getVerb() == Verb.QUIT) {
+			end = END_QUIT;
+			quitting = true;
+			pendingCommands.clear();
+		} else if (interpreter.isStartingTls()) {
+			/*
+			 * Input sent before the handshake is dropped so it can't be taken
+			 * as a command over TLS. Reading resumes once the response has
+			 * been sent and the handshake has started.
+			 */
+			tlsPending = true;
+			pendingCommands.clear();
+			readBuffer.clear();
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		} else if (!tlsPending
+				&& pendingCommands.size() < MAX_PENDING_COMMANDS) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		try {
+			if (quitting || tlsPending) {
+				handleWrite();
+			} else if (tls != null) {
+				/* Input decrypted while reading was paused */
+				readPlaintext();
+			}
+		} catch (IOException e) {
+			end = END_ERROR;
+			close(!quitting);
+			return;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Queues a response line and attempts to write it straight away
+	 *
+	 * @param response
+	 *            the response, without a line terminator
+	 */
+	private void send(String response) {
+		enqueue(new Chunk(ByteBuffer.wrap((response + "\r\n")
+				.getBytes(CHARSET)), 0));
+	}
+
+	/**
+	 * Queues response data and attempts to write it straight away
+	 * 
+	 * @param chunk
+	 *            the data to send
+	 */
+	private void enqueue(Chunk chunk) {
+		if (closed) {
+			writeCredits.release(chunk.credits);
+			return;
+		}
+
+		writeQueue.add(chunk);
+		try {
+			handleWrite();
+		} catch (IOException e) {
+			end = END_ERROR;
+			close(!quitting);
+		}
+	}
+
+	/**
+	 * Releases the maildrop held by the session on a worker thread
+	 */
+	private void release() {
+		releasePending = false;
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					interpreter.close();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			interpreter.close();
+		}
+	}
+
+	/**
+	 * Response data queued for the client, along with the write credits it
+	 * holds until it has been written
+	 */
+	private static final class Chunk {
+		private final ByteBuffer data;
+		private final int credits;
+
+		private Chunk(ByteBuffer data, int credits) {
+			this.data = data;
+			this.credits = credits;
+		}
+	}
+
+	/**
+	 * Stream used by workers to send a response. Data is collected into
+	 * chunks which are handed to the reactor thread for writing. A worker
+	 * blocks once too much data is queued for the client, so a slow client
+	 * cannot make the server buffer a whole message.
+	 */
+	private final class ResponseStream extends OutputStream {
+		private byte[] buffer = new byte[RESPONSE_CHUNK_SIZE];
+		private int count;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				post();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					post();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				post();
+			}
+		}
+
+		/**
+		 * Hands the buffered data to the reactor thread, waiting for queued
+		 * data to drain if the client is reading slowly
+		 * 
+		 * @throws IOException
+		 *             if the session has been closed
+		 */
+		private void post() throws IOException {
+			if (closed) {
+				throw new IOException(ERROR_SESSION_CLOSED);
+			}
+			writeCredits.acquireUninterruptibly(count);
+			if (closed) {
+				writeCredits.release(count);
+				throw new IOException(ERROR_SESSION_CLOSED);
+			}
+
+			final Chunk chunk = new Chunk(ByteBuffer.wrap(buffer, 0, count),
+					count);
+			buffer = new byte[RESPONSE_CHUNK_SIZE];
+			count = 0;
+			reactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					enqueue(chunk);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PooledConnection {
+	/* Connection members */
+	private Connection connection;
+	private Map<String, PreparedStatement> statements;
+	private long checkoutTime;
+	private boolean inTransaction;
+
+	/**
+	 * Wraps a physical database connection for use by the pool
+	 *
+	 * @param connection
+	 *            the physical connection
+	 */
+	public PooledConnection(Connection connection) {
+		this.connection = connection;
+		statements = new HashMap<>();
+	}
+
+	/**
+	 * Gets a prepared statement for the specified SQL. Statements are prepared
+	 * once per connection and reused by later callers. The connection is only
+	 * ever used by the thread that checked it out so no locking is needed.
+	 *
+	 * @param sql
+	 *            the SQL of the statement
+	 * @return the prepared statement
+	 * @throws SQLException
+	 *             if the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearParameters();
+		}
+		return statement;
+	}
+
+	/**
+	 * Starts a transaction. Statements run on the connection are not
+	 * committed until commit is called; a transaction left open when the
+	 * connection is released is rolled back.
+	 *
+	 * @throws SQLException
+	 *             if auto-commit cannot be disabled
+	 */
+	public void begin() throws SQLException {
+		connection.setAutoCommit(false);
+		inTransaction = true;
+	}
+
+	/**
+	 * Commits the current transaction and returns the connection to
+	 * auto-commit mode
+	 *
+	 * @throws SQLException
+	 *             if the transaction cannot be committed
+	 */
+	public void commit() throws SQLException {
+		connection.commit();
+		connection.setAutoCommit(true);
+		inTransaction = false;
+	}
+
+	/**
+	 * Rolls back the current transaction and returns the connection to
+	 * auto-commit mode
+	 *
+	 * @throws SQLException
+	 *             if the transaction cannot be rolled back
+	 */
+	public void rollback() throws SQLException {
+		inTransaction = false;
+		connection.rollback();
+		connection.setAutoCommit(true);
+	}
+
+	/**
+	 * Gets the underlying physical connection
+	 *
+	 * @return the connection
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Gets the time the connection was last checked out of the pool
+	 *
+	 * @return the checkout time, from System.nanoTime
+	 */
+	long getCheckoutTime() {
+		return checkoutTime;
+	}
+
+	/**
+	 * Records the time the connection was checked out of the pool
+	 *
+	 * @param checkoutTime
+	 *            the checkout time, from System.nanoTime
+	 */
+	void setCheckoutTime(long checkoutTime) {
+		this.checkoutTime = checkoutTime;
+	}
+
+	/**
+	 * Rolls back any transaction left open by the last caller and checks that
+	 * the connection is still usable
+	 *
+	 * @return true if the connection can be reused, false otherwise
+	 */
+	boolean reset() {
+		try {
+			if (inTransaction) {
+				inTransaction = false;
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			return !connection.isClosed();
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the cached statements and the physical connection
+	 */
+	void close() {
+		for (PreparedStatement statement : statements.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				/* The connection is being discarded anyway */
+			}
+		}
+		statements.clear();
+
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			/* The connection is being discarded anyway */
+		}
+	}
+}
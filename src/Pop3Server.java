@@ -1,6 +1,13 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Pop3Server {
 	/* System Messages */
@@ -9,66 +16,364 @@ public class Pop3Server {
 	private static final String ERROR_INVALID_PORT = "An invalid port was specified. Port must be between 0 and 65535 inclusive.";
 	private static final String ERROR_INVALID_TIMEOUT = "An invalid timeout was specified. Timeout must be greater than zero.";
 	private static final String ERROR_UNABLE_TO_ESTABLISH_SOCKET = "An error occurred while establishing a socket or thread.";
+	private static final String ERROR_INVALID_MODE = "An invalid server mode was specified. Mode must be classic or nio.";
+	private static final String ERROR_INVALID_STORAGE = "An invalid storage backend was specified. Storage must be mysql, maildir or segment.";
+	private static final String ERROR_OPEN_STORAGE = "Unable to open the storage backend";
+	private static final String ERROR_INVALID_TLS_MODE = "An invalid TLS mode was specified. Mode must be off, starttls or implicit.";
+	private static final String ERROR_TLS = "Unable to set up TLS";
 	public static final int ERROR_STATUS = 1;
 
+	/* Server modes */
+	private static final String MODE_CLASSIC = "classic";
+	private static final String MODE_NIO = "nio";
+
+	/* Storage backends */
+	private static final String STORAGE_MYSQL = "mysql";
+	private static final String STORAGE_MAILDIR = "maildir";
+	private static final String STORAGE_SEGMENT = "segment";
+	private static final String MAILDIR_ROOT = "maildir";
+	private static final String SEGMENT_ROOT = "store";
+
+	/* Message cache defaults, in bytes */
+	private static final int CACHE_MAX_BYTES = 64 * 1024 * 1024;
+	private static final int CACHE_MAX_ENTRY_BYTES = 1024 * 1024;
+
+	/* Metrics endpoint port, 0 for none */
+	private static final int METRICS_PORT = 0;
+
 	/* POP3 Server Properties */
 	private int port;
-	private int timeout;
-	private boolean serverRunning;
+	private String mode;
+	private String threads;
+	private String storage;
+	private String tlsMode;
+	private TlsContext tls;
+	private SessionTimeouts timeouts;
+	private volatile boolean serverRunning;
+	private IDatabase database;
+	private AdmissionController admission;
+	private volatile MetricsExporter metrics;
+	private volatile MessageCache<CachingDatabase.Key> cache;
+	private volatile ServerSocket serverSocket;
+	private volatile NioServer nioServer;
 
 	/**
-	 * Initial POP3 Server setup.
+	 * Initial POP3 Server setup. The server mode is read from the
+	 * pop3.server.mode property: classic runs a thread per connection, nio
+	 * runs a small number of non-blocking event loops. The pop3.server.threads
+	 * property selects platform or virtual threads for sessions in classic
+	 * mode and for command workers in nio mode. The pop3.storage property
+	 * selects the mysql database, maildir storage under the directory named
+	 * by pop3.maildir.root, or the segment store under pop3.segment.root.
+	 * Metrics are registered with JMX while the server runs, and served as
+	 * plain text on the loopback address at the port named by
+	 * pop3.metrics.port, if it is set. Sessions and errors are written to the
+	 * access log by a background thread, see AccessLog. The pop3.tls.mode
+	 * property is off for plain connections, starttls to let clients upgrade
+	 * with STLS, or implicit for POP3S, where every connection starts with the
+	 * TLS handshake; see TlsContext for the key store settings.
 	 * 
 	 * @param port
 	 *            the port number to run the server from
 	 * @param timeout
-	 *            the default timeout of each client connection, in seconds
+	 *            the idle timeout of each client connection once logged in,
+	 *            in seconds, see SessionTimeouts
 	 */
 	public Pop3Server(int port, int timeout) throws IllegalArgumentException {
+		this(port, timeout, null);
+	}
+
+	/**
+	 * POP3 Server setup using the specified database rather than the default
+	 * MySQL database
+	 * 
+	 * @param port
+	 *            the port number to run the server from
+	 * @param timeout
+	 *            the idle timeout of each client connection once logged in,
+	 *            in seconds, see SessionTimeouts
+	 * @param database
+	 *            the database holding the maildrops, null for the default
+	 */
+	public Pop3Server(int port, int timeout, IDatabase database)
+			throws IllegalArgumentException {
 		this.port = port;
-		this.timeout = timeout;
+		this.database = database;
+		this.mode = ServerConfig.getString("server.mode", MODE_CLASSIC);
+		this.threads = ServerConfig.getString("server.threads",
+				SessionExecutors.THREADS_PLATFORM);
+		this.storage = ServerConfig.getString("storage", STORAGE_MYSQL);
+		this.tlsMode = ServerConfig.getString("tls.mode", TlsContext.MODE_OFF);
 
 		/* Check the timeout range entered */
 		if (timeout <= 0) {
 			throw new IllegalArgumentException(ERROR_INVALID_TIMEOUT);
 		}
+		timeouts = new SessionTimeouts(timeout);
 		
 		/* Check the port range entered */
 		if (port < 0 || port > 65535) {
 			throw new IllegalArgumentException(ERROR_INVALID_PORT);
 		}
+
+		/* Check the server mode */
+		if (!mode.equals(MODE_CLASSIC) && !mode.equals(MODE_NIO)) {
+			throw new IllegalArgumentException(ERROR_INVALID_MODE);
+		}
+
+		/* Check the storage backend */
+		if (!storage.equals(STORAGE_MYSQL) && !storage.equals(STORAGE_MAILDIR)
+				&& !storage.equals(STORAGE_SEGMENT)) {
+			throw new IllegalArgumentException(ERROR_INVALID_STORAGE);
+		}
+
+		/* Check the TLS mode */
+		if (!tlsMode.equals(TlsContext.MODE_OFF)
+				&& !tlsMode.equals(TlsContext.MODE_STARTTLS)
+				&& !tlsMode.equals(TlsContext.MODE_IMPLICIT)) {
+			throw new IllegalArgumentException(ERROR_INVALID_TLS_MODE);
+		}
+
+		/* Check the thread mode */
+		SessionExecutors.validate(threads);
+
+		/* Set up the connection limits */
+		admission = new AdmissionController();
 	}
 
 	/**
 	 * Runs the POP3 server. A socket is opened to listen on the port specified
 	 * and then the function waits for incoming connections on that port. Any
 	 * new incoming connection triggers a new ServerThread which directs client
-	 * input through the CommandInterpreter.
+	 * input through the CommandInterpreter. In nio mode the connections are
+	 * handled by a NioServer instead.
 	 */
 	public void run() {
 		serverRunning = true;
+		if (database == null) {
+			database = openStorage();
+			if (database == null) {
+				return;
+			}
+		}
+
+		/* Load the key store before accepting connections */
+		try {
+			tls = TlsContext.fromConfig(tlsMode);
+		} catch (IOException | GeneralSecurityException e) {
+			System.err.println(ERROR_TLS + ": " + e.getMessage());
+			database.close();
+			database = null;
+			return;
+		}
+
+		/* Export the metrics while the server runs */
+		metrics = new MetricsExporter(Metrics.getInstance(), admission);
+		metrics.start(port, ServerConfig.getInt("metrics.port", METRICS_PORT));
+
+		if (mode.equals(MODE_NIO)) {
+			runNio();
+			return;
+		}
+
+		ExecutorService sessions;
+		try {
+			sessions = SessionExecutors.newSessionExecutor(threads,
+					"Pop3ServerThread", ServerConfig.getInt(
+							"server.maxThreads", admission.getMaxSessions()),
+					ServerConfig.getInt("server.queueSize", 0));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			metrics.close();
+			AccessLog.getInstance().flush();
+			database.close();
+			return;
+		}
+
+		/* One timing wheel tracks the idle timeouts of every session */
+		TimingWheel wheel = new TimingWheel();
+		wheel.start("Pop3Timeouts");
 
 		/*
 		 * Attempt to open a ServerSocket. Also closes the socket when the
-		 * try/catch is complete
+		 * try/catch is complete. The socket is opened through a channel so
+		 * sessions can send files with FileChannel.transferTo.
 		 */
-		try (ServerSocket socket = new ServerSocket(port)) {
+		try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+			channel.bind(new InetSocketAddress(port));
+			ServerSocket socket = channel.socket();
+			serverSocket = socket;
 			while (serverRunning) {
+				Socket client = socket.accept();
+
+				/* Turn the client away if the server is at a limit */
+				AdmissionController.Admission result = admission.admit(client
+						.getInetAddress());
+				if (result != AdmissionController.Admission.ADMITTED) {
+					reject(client, AdmissionController.rejection(result));
+					continue;
+				}
+
 				/*
 				 * Create and start a new ServerThread. A reference to the
-				 * thread isn't needed as the Garbage Collector will clean it up
-				 * after the client quits or the session times out.
+				 * session isn't needed as the Garbage Collector will clean it
+				 * up after the client quits or the session times out.
 				 */
-				new ServerThread(socket.accept(), timeout).start();
+				try {
+					sessions.execute(new ServerThread(client, timeouts, wheel,
+							database, admission, tls));
+				} catch (RejectedExecutionException e) {
+					admission.release(client.getInetAddress());
+					admission.recordRejectedBusy();
+					reject(client, AdmissionController.SERVER_BUSY);
+				}
 			}
 		} catch (IOException | SecurityException | IllegalBlockingModeException
 				| IllegalArgumentException ex) {
-			System.err.println(ERROR_UNABLE_TO_ESTABLISH_SOCKET);
+			if (serverRunning) {
+				System.err.println(ERROR_UNABLE_TO_ESTABLISH_SOCKET);
+			}
+		} finally {
+			sessions.shutdown();
+			wheel.stop();
+			metrics.close();
+			AccessLog.getInstance().flush();
+
+			/* Close the database connections */
+			database.close();
+			database = null;
+		}
+	}
+
+	/**
+	 * Opens the configured storage backend. With mysql storage, reads are
+	 * spread over the replicas listed by pop3.db.replicas, if any. Calls to
+	 * the backend are timed for the metrics. Message content is cached in
+	 * memory across sessions unless pop3.cache.maxBytes is 0; messages larger
+	 * than pop3.cache.maxEntryBytes are not cached.
+	 * 
+	 * @return the database holding the maildrops, null if it couldn't be
+	 *         opened
+	 */
+	private IDatabase openStorage() {
+		IDatabase backend;
+		try {
+			if (storage.equals(STORAGE_MAILDIR)) {
+				backend = new MaildirDatabase(Paths.get(ServerConfig.getString(
+						"maildir.root", MAILDIR_ROOT)));
+			} else if (storage.equals(STORAGE_SEGMENT)) {
+				backend = new SegmentDatabase(Paths.get(ServerConfig.getString(
+						"segment.root", SEGMENT_ROOT)));
+			} else {
+				Database primary = Database.getInstance();
+				DatabaseReader[] replicas = Database.openReplicas();
+				backend = (replicas.length > 0) ? new ReplicatedDatabase(
+						primary, replicas) : primary;
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println(ERROR_OPEN_STORAGE + ": " + e.getMessage());
+			return null;
+		}
+		backend = new MetricsDatabase(backend, Metrics.getInstance());
+
+		int maxBytes = ServerConfig.getInt("cache.maxBytes", CACHE_MAX_BYTES);
+		if (maxBytes <= 0) {
+			return backend;
+		}
+		cache = new MessageCache<>(maxBytes, ServerConfig.getInt(
+				"cache.maxEntryBytes", CACHE_MAX_ENTRY_BYTES));
+		return new CachingDatabase(backend, cache);
+	}
+
+	/**
+	 * Runs the POP3 server on non-blocking event loops until the server socket
+	 * is closed
+	 */
+	private void runNio() {
+		try {
+			nioServer = new NioServer(port, timeouts, threads, database,
+					admission, tls);
+			nioServer.run();
+		} catch (IOException | SecurityException | IllegalArgumentException ex) {
+			if (serverRunning) {
+				System.err.println(ERROR_UNABLE_TO_ESTABLISH_SOCKET);
+			}
 		} finally {
-			/* Close the database connection */
-			IDatabase db = Database.getInstance();
-			db.close();
-			db = null;
+			metrics.close();
+			AccessLog.getInstance().flush();
+
+			/* Close the database connections */
+			database.close();
+			database = null;
+		}
+	}
+
+	/**
+	 * Sends an error to a client that cannot be served and closes the
+	 * connection straight away
+	 * 
+	 * @param client
+	 *            the client connection
+	 * @param response
+	 *            the error response
+	 */
+	private static void reject(Socket client, String response) {
+		try {
+			client.getOutputStream().write((response + "\r\n").getBytes());
+		} catch (IOException e) {
+			/* The client is being turned away anyway */
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				/* The client is being turned away anyway */
+			}
+		}
+	}
+
+	/**
+	 * Gets the shared message cache, which counts hits, misses and evictions
+	 * 
+	 * @return the message cache, null if the server isn't running with one
+	 */
+	public MessageCache<CachingDatabase.Key> getMessageCache() {
+		return cache;
+	}
+
+	/**
+	 * Gets the exporter of the server metrics
+	 * 
+	 * @return the metrics exporter, null if the server hasn't been run
+	 */
+	public MetricsExporter getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the admission controller, which counts accepted and rejected
+	 * connections
+	 * 
+	 * @return the admission controller
+	 */
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Stops accepting connections and makes run return. Sessions that are
+	 * already running are left to finish or time out.
+	 */
+	public void stop() {
+		serverRunning = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+			if (nioServer != null) {
+				nioServer.stop();
+			}
+		} catch (IOException e) {
+			System.err.println(ERROR_UNABLE_TO_ESTABLISH_SOCKET);
 		}
 	}
 
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+public class Reactor implements Runnable {
+	/* System Messages */
+	private static final String ERROR_SELECTOR = "An error occurred in the network event loop.";
+
+	/* Reactor members */
+	private AccessLog log;
+	private Selector selector;
+	private Queue<Runnable> tasks;
+	private IDatabase database;
+	private Executor workers;
+	private AdmissionController admission;
+	private TlsContext tls;
+	private SessionTimeouts timeouts;
+	private TimingWheel wheel;
+	private volatile boolean running;
+
+	/**
+	 * Creates an event loop for client connections. The idle timeouts of its
+	 * sessions are kept in a timing wheel moved on by the event loop, so they
+	 * expire on the loop's thread.
+	 *
+	 * @param database
+	 *            the database used by sessions
+	 * @param workers
+	 *            the executor that runs commands off the event loop
+	 * @param admission
+	 *            the admission controller sessions are released to
+	 * @param timeouts
+	 *            the idle timeouts of each session state
+	 * @param tls
+	 *            the TLS settings of the server, null if TLS is off
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	public Reactor(IDatabase database, Executor workers,
+			AdmissionController admission, SessionTimeouts timeouts,
+			TlsContext tls) throws IOException {
+		this.database = database;
+		log = AccessLog.getInstance();
+		this.workers = workers;
+		this.admission = admission;
+		this.tls = tls;
+		this.timeouts = timeouts;
+		wheel = new TimingWheel();
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		running = true;
+	}
+
+	/**
+	 * Runs a task on the event loop thread. This is how other threads hand
+	 * results back to sessions, as sessions are not thread-safe.
+	 *
+	 * @param task
+	 *            the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Hands an accepted connection to this event loop
+	 *
+	 * @param channel
+	 *            the accepted connection
+	 */
+	public void register(final SocketChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				NioSession session = new NioSession(Reactor.this, channel,
+						database, workers, admission, timeouts, wheel, tls);
+				try {
+					session.open(selector);
+				} catch (IOException e) {
+					session.close(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the event loop and closes every session
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Waits for network events and dispatches them to the sessions owning the
+	 * channels, along with any tasks handed over by other threads
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select(wheel.getTickMillis());
+
+				/* Run tasks handed over by other threads */
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				/* Handle network events */
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+
+				/* Close idle sessions */
+				wheel.advance(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			log.error(ERROR_SELECTOR);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				((NioSession) key.attachment()).close(true);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.error(ERROR_SELECTOR);
+			}
+		}
+	}
+
+	/**
+	 * Dispatches the ready operations of a channel to its session
+	 *
+	 * @param key
+	 *            the selection key of the channel
+	 */
+	private void handle(SelectionKey key) {
+		NioSession session = (NioSession) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				session.handleRead();
+			}
+			if (key.isValid() && key.isWritable()) {
+				session.handleWrite();
+			}
+		} catch (IOException | CancelledKeyException e) {
+			session.close(true);
+		}
+	}
+}
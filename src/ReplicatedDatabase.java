@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReplicatedDatabase implements IDatabase {
+	/* System Messages */
+	private static final String ERROR_REPLICA_DOWN = "A read replica is unavailable, reading from the primary instead";
+	private static final String ERROR_REPLICA_UP = "A read replica is available";
+
+	/* Routing defaults */
+	private static final int REPLICA_LAG = 5;
+	private static final int CHECK_INTERVAL = 5000;
+
+	/* Pin held while a session of this node has the maildrop open */
+	private static final long PIN_HELD = Long.MAX_VALUE;
+
+	/**
+	 * A read replica and whether its last health check passed
+	 */
+	private static final class Replica {
+		private final IReadOnlyDatabase database;
+		private final int number;
+		private volatile boolean healthy;
+
+		private Replica(IReadOnlyDatabase database, int number) {
+			this.database = database;
+			this.number = number;
+		}
+	}
+
+	/* Database members */
+	private Database primary;
+	private Replica[] replicas;
+	private long lagMillis;
+	private AccessLog log;
+
+	/* Replicas that passed their last check, replaced as a whole */
+	private volatile Replica[] available;
+	private AtomicInteger next;
+
+	/* Times until which reads of a maildrop go to the primary */
+	private Map<Integer, Long> pinned;
+
+	/* Routing counts */
+	private StripedCounter primaryReads;
+	private StripedCounter replicaReads;
+	private ScheduledExecutorService healthCheck;
+
+	/**
+	 * Creates a router over a primary and its read replicas, with the
+	 * replication lag allowed for set by pop3.db.replicaLag seconds and the
+	 * replicas checked every pop3.db.replicaCheckInterval milliseconds
+	 *
+	 * @param primary
+	 *            the database that takes locks and deletes
+	 * @param replicas
+	 *            the read replicas of the primary
+	 */
+	public ReplicatedDatabase(Database primary, IReadOnlyDatabase[] replicas) {
+		this(primary, replicas, ServerConfig.getInt("db.replicaLag",
+				REPLICA_LAG), ServerConfig.getInt("db.replicaCheckInterval",
+				CHECK_INTERVAL));
+	}
+
+	/**
+	 * Creates a router that sends locks and deletes to the primary and
+	 * spreads reads over the replicas in turn. A replica is only read from
+	 * once a health check has passed, and is left out as soon as a check or
+	 * an index load fails; with no replica available every read goes to the
+	 * primary.
+	 *
+	 * Once a node writes to a maildrop, by unlocking it or deleting messages
+	 * from it, reads of that maildrop go to the primary until the replicas
+	 * have had time to catch up. The time of the last write is kept on the
+	 * maildrop row of the primary, so a session that opens the maildrop
+	 * before then on any node reads from the primary until it ends, and a
+	 * client never sees messages it has already deleted.
+	 *
+	 * @param primary
+	 *            the database that takes locks and deletes
+	 * @param replicas
+	 *            the read replicas of the primary
+	 * @param lagSeconds
+	 *            the number of seconds reads of a maildrop stay on the
+	 *            primary after a write, longer than the replication lag
+	 * @param checkInterval
+	 *            the time between health checks, in milliseconds
+	 */
+	public ReplicatedDatabase(Database primary, IReadOnlyDatabase[] replicas,
+			int lagSeconds, int checkInterval) {
+		if (lagSeconds < 0 || checkInterval <= 0) {
+			throw new IllegalArgumentException(
+					"An invalid replica lag or health check interval was specified.");
+		}
+		this.primary = primary;
+		this.replicas = new Replica[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			this.replicas[i] = new Replica(replicas[i], i + 1);
+		}
+		lagMillis = lagSeconds * 1000L;
+		log = AccessLog.getInstance();
+		available = new Replica[0];
+		next = new AtomicInteger();
+		pinned = new ConcurrentHashMap<>();
+		primaryReads = new StripedCounter();
+		replicaReads = new StripedCounter();
+
+		/* Replicas are read from once their first check passes */
+		healthCheck = Executors
+				.newSingleThreadScheduledExecutor(SessionExecutors
+						.newThreadFactory("ReplicaHealthCheck", true));
+		healthCheck.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkReplicas();
+			}
+		}, 0, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the number of replicas that passed their last health check
+	 *
+	 * @return the available replicas
+	 */
+	public int getAvailableReplicas() {
+		return available.length;
+	}
+
+	/**
+	 * Gets the number of reads sent to the primary
+	 *
+	 * @return the reads of the primary
+	 */
+	public long getPrimaryReads() {
+		return primaryReads.sum();
+	}
+
+	/**
+	 * Gets the number of reads sent to a replica
+	 *
+	 * @return the reads of the replicas
+	 */
+	public long getReplicaReads() {
+		return replicaReads.sum();
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		Replica replica = nextReplica();
+		if (replica == null) {
+			return primary.getAccount(username);
+		}
+
+		/* A replica may not have seen the lock released yet */
+		Account account = replica.database.getAccount(username);
+		if (account != null && account.isLocked()) {
+			primaryReads.increment();
+			return primary.getAccount(username);
+		}
+		return account;
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		if (!primary.lockMaildrop(maildropId)) {
+			return false;
+		}
+
+		/*
+		 * Keep reading recent writes, from this node or another, from the
+		 * primary for as long as the session lasts
+		 */
+		if (isPinned(maildropId)
+				|| (lagMillis > 0 && primary.secondsSinceWrite(maildropId)
+						* 1000L < lagMillis)) {
+			pinned.put(maildropId, PIN_HELD);
+		}
+		return true;
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		primary.unlockMaildrop(maildropId);
+		pin(maildropId);
+	}
+
+	@Override
+	public int deleteMessages(int maildropId, int[] mailIds) {
+		int deleted = primary.deleteMessages(maildropId, mailIds);
+		pin(maildropId);
+		return deleted;
+	}
+
+	@Override
+	public int numMessages(int maildropId) {
+		return reader(maildropId).numMessages(maildropId);
+	}
+
+	@Override
+	public int sizeOfMaildrop(int maildropId) {
+		return reader(maildropId).sizeOfMaildrop(maildropId);
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		Replica replica = replicaFor(maildropId);
+		if (replica == null) {
+			return primary.getMaildropIndex(maildropId);
+		}
+
+		/* An index always exists, so a replica that returns none is failing */
+		MaildropIndex index = replica.database.getMaildropIndex(maildropId);
+		if (index == null) {
+			markDown(replica);
+			primaryReads.increment();
+			return primary.getMaildropIndex(maildropId);
+		}
+		return index;
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		Replica replica = replicaFor(maildropId);
+		if (replica == null) {
+			return primary.getMessage(maildropId, mailId);
+		}
+
+		/* The message may not have reached the replica yet */
+		String message = replica.database.getMessage(maildropId, mailId);
+		if (message == null) {
+			primaryReads.increment();
+			return primary.getMessage(maildropId, mailId);
+		}
+		return message;
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		return reader(maildropId).writeMessage(maildropId, mailId, out);
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		return reader(maildropId).writeMessageTop(maildropId, mailId, lines,
+				out);
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId)
+			throws IOException {
+		return reader(maildropId).openWireMessage(maildropId, mailId);
+	}
+
+	@Override
+	public ByteBuffer mapWireMessage(int maildropId, int mailId)
+			throws IOException {
+		return reader(maildropId).mapWireMessage(maildropId, mailId);
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return primary.isAvailable();
+	}
+
+	@Override
+	public void close() {
+		healthCheck.shutdownNow();
+		for (Replica replica : replicas) {
+			replica.database.close();
+		}
+		primary.close();
+	}
+
+	/**
+	 * Gets the database to read a maildrop from
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the primary if the maildrop was written to recently or no
+	 *         replica is available, otherwise the next replica
+	 */
+	private IReadOnlyDatabase reader(int maildropId) {
+		Replica replica = replicaFor(maildropId);
+		return (replica == null) ? primary : replica.database;
+	}
+
+	/**
+	 * Picks the replica to read a maildrop from, counting the read
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop
+	 * @return the replica, null if the maildrop was written to recently or
+	 *         no replica is available
+	 */
+	private Replica replicaFor(int maildropId) {
+		if (isPinned(maildropId)) {
+			primaryReads.increment();
+			return null;
+		}
+		return nextReplica();
+	}
+
+	/**
+	 * Picks the next available replica in turn, counting the read
+	 *
+	 * @return the replica, null if the read goes to the primary
+	 */
+	private Replica nextReplica() {
+		Replica[] current = available;
+		if (current.length == 0) {
+			primaryReads.increment();
+			return null;
+		}
+		replicaReads.increment();
+		int n = next.getAndIncrement() & Integer.MAX_VALUE;
+		return current[n % current.length];
+	}
+
+	/**
+	 * Sends reads of a maildrop to the primary until the replicas have caught
+	 * up with a write
+	 */
+	private void pin(int maildropId) {
+		if (lagMillis > 0) {
+			pinned.put(maildropId, System.currentTimeMillis() + lagMillis);
+		}
+	}
+
+	/**
+	 * Checks if reads of a maildrop must go to the primary
+	 */
+	private boolean isPinned(int maildropId) {
+		Long until = pinned.get(maildropId);
+		return until != null && until > System.currentTimeMillis();
+	}
+
+	/**
+	 * Leaves a failing replica out until its next health check passes
+	 */
+	private void markDown(Replica replica) {
+		synchronized (this) {
+			if (!replica.healthy) {
+				return;
+			}
+			replica.healthy = false;
+			updateAvailable();
+		}
+		log.error(ERROR_REPLICA_DOWN + ": replica " + replica.number);
+	}
+
+	/**
+	 * Checks every replica, then forgets the pins that have expired
+	 */
+	private void checkReplicas() {
+		for (Replica replica : replicas) {
+			boolean healthy = replica.database.isAvailable();
+			synchronized (this) {
+				if (healthy == replica.healthy) {
+					continue;
+				}
+				replica.healthy = healthy;
+				updateAvailable();
+			}
+			log.error((healthy ? ERROR_REPLICA_UP : ERROR_REPLICA_DOWN)
+					+ ": replica " + replica.number);
+		}
+
+		/* A pin renewed since it was read is kept */
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, Long> pin : pinned.entrySet()) {
+			if (pin.getValue() <= now) {
+				pinned.remove(pin.getKey(), pin.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the list of available replicas, must hold the lock
+	 */
+	private void updateAvailable() {
+		List<Replica> healthy = new ArrayList<>();
+		for (Replica replica : replicas) {
+			if (replica.healthy) {
+				healthy.add(replica);
+			}
+		}
+		available = healthy.toArray(new Replica[healthy.size()]);
+	}
+}
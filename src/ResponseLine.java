@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class ResponseLine {
+	/* Encoder limits */
+	private static final int INITIAL_LINE_SIZE = 256;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Line members */
+	private byte[] line;
+	private int length;
+
+	/**
+	 * Creates an empty response line. A response line is built up from the
+	 * status, numbers and the echoed command as bytes, and can be reused for
+	 * the next response, so sending short responses creates no objects.
+	 */
+	public ResponseLine() {
+		line = new byte[INITIAL_LINE_SIZE];
+	}
+
+	/**
+	 * Empties the line, so a new response can be built
+	 *
+	 * @return this line
+	 */
+	public ResponseLine clear() {
+		length = 0;
+		return this;
+	}
+
+	/**
+	 * Appends text to the line, encoded as UTF-8. ASCII text, which is all
+	 * the server itself sends, is copied without creating a byte array.
+	 *
+	 * @param text
+	 *            the text to append
+	 * @return this line
+	 */
+	public ResponseLine append(String text) {
+		int n = text.length();
+		ensureCapacity(length + n);
+		for (int i = 0; i < n; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x80) {
+				/* Leave the rest to the encoder */
+				byte[] b = text.substring(i).getBytes(CHARSET);
+				return append(b, 0, b.length);
+			}
+			line[length++] = (byte) c;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends an ASCII character to the line
+	 *
+	 * @param c
+	 *            the character to append
+	 * @return this line
+	 */
+	public ResponseLine append(char c) {
+		ensureCapacity(length + 1);
+		line[length++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends a number to the line in decimal
+	 *
+	 * @param value
+	 *            the number to append
+	 * @return this line
+	 */
+	public ResponseLine append(long value) {
+		if (value == Long.MIN_VALUE) {
+			return append(Long.toString(value));
+		} else if (value < 0) {
+			append('-');
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		ensureCapacity(length + digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			line[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+		return this;
+	}
+
+	/**
+	 * Appends bytes to the line
+	 *
+	 * @param b
+	 *            the buffer holding the bytes
+	 * @param off
+	 *            the position of the bytes in the buffer
+	 * @param len
+	 *            the number of bytes
+	 * @return this line
+	 */
+	public ResponseLine append(byte[] b, int off, int len) {
+		ensureCapacity(length + len);
+		System.arraycopy(b, off, line, length, len);
+		length += len;
+		return this;
+	}
+
+	/**
+	 * Writes the line to a sink, adding the CRLF line terminator
+	 *
+	 * @param out
+	 *            the sink the response is written to
+	 * @throws IOException
+	 *             if the response cannot be sent to the client
+	 */
+	public void writeTo(IResponseSink out) throws IOException {
+		ensureCapacity(length + 2);
+		line[length] = '\r';
+		line[length + 1] = '\n';
+		out.getOutputStream().write(line, 0, length + 2);
+	}
+
+	/**
+	 * Gets the line as text, without the line terminator
+	 *
+	 * @return the response line
+	 */
+	@Override
+	public String toString() {
+		return new String(line, 0, length, CHARSET);
+	}
+
+	/**
+	 * Grows the buffer to hold at least the specified number of bytes
+	 *
+	 * @param capacity
+	 *            the number of bytes needed
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > line.length) {
+			byte[] grown = new byte[Math.max(capacity, line.length * 2)];
+			System.arraycopy(line, 0, grown, 0, length);
+			line = grown;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class Segment {
+	/* Segment members */
+	private int id;
+	private Path path;
+	private FileChannel channel;
+	private long size;
+	private long deadBytes;
+	private MappedByteBuffer map;
+
+	/**
+	 * Opens a segment file of the segment store, creating it if it doesn't
+	 * exist. Records are only ever appended to a segment; reads are served
+	 * from a read-only memory mapping of the file.
+	 *
+	 * @param id
+	 *            the number of the segment, which orders segments by age
+	 * @param path
+	 *            the segment file
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public Segment(int id, Path path) throws IOException {
+		this.id = id;
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		size = channel.size();
+	}
+
+	/**
+	 * Gets the number of the segment
+	 *
+	 * @return the segment number
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the number of bytes written to the segment
+	 *
+	 * @return the size of the segment
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes held by records that are no longer needed
+	 *
+	 * @return the number of dead bytes in the segment
+	 */
+	public synchronized long getDeadBytes() {
+		return deadBytes;
+	}
+
+	/**
+	 * Records that a record in the segment is no longer needed
+	 *
+	 * @param bytes
+	 *            the length of the record
+	 */
+	public synchronized void addDeadBytes(long bytes) {
+		deadBytes += bytes;
+	}
+
+	/**
+	 * Appends a record to the end of the segment. The record isn't durable
+	 * until the segment is forced.
+	 *
+	 * @param record
+	 *            the record to append
+	 * @return the position of the record in the segment
+	 * @throws IOException
+	 *             if the record cannot be written
+	 */
+	public synchronized long append(ByteBuffer record) throws IOException {
+		long position = size;
+		while (record.hasRemaining()) {
+			size += channel.write(record, size);
+		}
+		return position;
+	}
+
+	/**
+	 * Writes appended records to the storage device
+	 *
+	 * @throws IOException
+	 *             if the segment cannot be written
+	 */
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Discards everything after the specified position, used to drop a
+	 * partially written record after a crash
+	 *
+	 * @param length
+	 *            the new length of the segment
+	 * @throws IOException
+	 *             if the segment cannot be truncated
+	 */
+	public synchronized void truncate(long length) throws IOException {
+		channel.truncate(length);
+		size = length;
+		map = null;
+	}
+
+	/**
+	 * Gets a read-only view of part of the segment. The file is mapped once
+	 * and mapped again only when it has grown past the mapped region.
+	 *
+	 * @param offset
+	 *            the position of the data in the segment
+	 * @param length
+	 *            the length of the data
+	 * @return a buffer holding the data
+	 * @throws IOException
+	 *             if the segment cannot be mapped
+	 */
+	public synchronized ByteBuffer slice(long offset, int length)
+			throws IOException {
+		if (map == null || offset + length > map.capacity()) {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		ByteBuffer view = map.duplicate();
+		view.position((int) offset);
+		view.limit((int) offset + length);
+		return view.slice();
+	}
+
+	/**
+	 * Closes the segment file. Buffers already handed out stay readable.
+	 */
+	public synchronized void close() {
+		map = null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			/* Nothing more will be read from the segment */
+		}
+	}
+
+	/**
+	 * Closes and removes the segment file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be removed
+	 */
+	public void delete() throws IOException {
+		close();
+		Files.deleteIfExists(path);
+	}
+}
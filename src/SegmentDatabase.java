@@ -0,0 +1,934 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class SegmentDatabase implements IDatabase {
+	/* System Messages */
+	private static final String ERROR_SEGMENT = "Unable to write to the segment store";
+	private static final String ERROR_CORRUPT = "Discarding corrupt records in segment";
+	private static final String ERROR_DELIVERY = "Unable to deliver a message";
+	private static final String ERROR_COMPACTION = "Unable to compact segment";
+	private static final String ERROR_MESSAGE_TOO_LARGE = "The message is larger than a segment";
+
+	/* Store layout */
+	private static final String ACCOUNT_FILE = "passwd";
+	private static final String DIR_SEGMENTS = "segments";
+	private static final String DIR_INCOMING = "incoming";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/* Default store settings */
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+	private static final int COMPACT_INTERVAL = 60;
+	private static final int COMPACT_RATIO = 50;
+
+	/*
+	 * Record layout. Every record starts with the magic number, type,
+	 * maildrop id and message id, and ends with a CRC32 of everything after
+	 * the magic number. A message record holds the size, header length, UIDL
+	 * and wire form of the message; a tombstone holds the segment of the message it
+	 * deletes.
+	 */
+	private static final int MAGIC = 0x504F5033;
+	private static final byte TYPE_MESSAGE = 1;
+	private static final byte TYPE_TOMBSTONE = 2;
+	private static final int HEADER_LENGTH = 13;
+	private static final int MESSAGE_FIELDS_LENGTH = 14;
+	private static final int TOMBSTONE_FIELDS_LENGTH = 4;
+	private static final int CRC_LENGTH = 4;
+
+	/* Database members */
+	private AccessLog log;
+	private Path segmentDir;
+	private Path incomingDir;
+	private AccountFile accounts;
+	private Set<Integer> locked;
+	private int segmentSize;
+	private int compactRatio;
+	private ScheduledExecutorService compactor;
+
+	/* Held by the single compaction that may run at a time */
+	private Object compaction;
+
+	/* Store state, guarded by the database */
+	private TreeMap<Integer, Segment> segments;
+	private Segment active;
+	private Map<Integer, TreeMap<Integer, Location>> maildrops;
+	private int nextMailId;
+
+	/**
+	 * Opens a segment store under the specified directory, recovering the
+	 * index by replaying every segment. A record left incomplete by a crash
+	 * at the end of the newest segment is discarded. The segment size and
+	 * compaction are set with the pop3.segment.size (bytes),
+	 * pop3.segment.compactInterval (seconds) and pop3.segment.compactRatio
+	 * (percentage of dead bytes) properties.
+	 *
+	 * Accounts are read from the passwd file in the directory. Messages
+	 * placed in incoming/username are appended to the store when the user
+	 * next logs in.
+	 *
+	 * @param root
+	 *            the directory holding the account file and segments
+	 * @throws IOException
+	 *             if the account file or segments cannot be read
+	 */
+	public SegmentDatabase(Path root) throws IOException {
+		this(root, ServerConfig.getInt("segment.size", SEGMENT_SIZE),
+				ServerConfig.getInt("segment.compactInterval",
+						COMPACT_INTERVAL), ServerConfig.getInt(
+						"segment.compactRatio", COMPACT_RATIO));
+	}
+
+	/**
+	 * Opens a segment store with the specified settings
+	 *
+	 * @param root
+	 *            the directory holding the account file and segments
+	 * @param segmentSize
+	 *            the size at which a new segment is started, in bytes
+	 * @param compactInterval
+	 *            the number of seconds between compaction runs, 0 to disable
+	 *            background compaction
+	 * @param compactRatio
+	 *            the percentage of dead bytes at which a segment is compacted
+	 * @throws IOException
+	 *             if the account file or segments cannot be read
+	 */
+	public SegmentDatabase(Path root, int segmentSize, int compactInterval,
+			int compactRatio) throws IOException {
+		if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize");
+		}
+		log = AccessLog.getInstance();
+		this.segmentSize = segmentSize;
+		this.compactRatio = compactRatio;
+		compaction = new Object();
+		segmentDir = root.resolve(DIR_SEGMENTS);
+		incomingDir = root.resolve(DIR_INCOMING);
+		accounts = new AccountFile(root.resolve(ACCOUNT_FILE));
+		locked = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		segments = new TreeMap<>();
+		maildrops = new HashMap<>();
+		nextMailId = 1;
+
+		Files.createDirectories(segmentDir);
+		recover();
+
+		if (compactInterval > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(SessionExecutors
+					.newThreadFactory("SegmentCompactor", true));
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					compact();
+				}
+			}, compactInterval, compactInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public Account getAccount(String username) {
+		Account account = accounts.get(username);
+		if (account == null) {
+			return null;
+		}
+		return account.withLock(locked.contains(account.getMaildropId()));
+	}
+
+	@Override
+	public boolean lockMaildrop(int maildropId) {
+		return locked.add(maildropId);
+	}
+
+	@Override
+	public void unlockMaildrop(int maildropId) {
+		locked.remove(maildropId);
+	}
+
+	@Override
+	public synchronized int deleteMessages(int maildropId, int[] mailIds) {
+		TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+		if (messages == null) {
+			return (mailIds.length == 0) ? 0 : -1;
+		}
+
+		/* Every message must still exist before anything is written */
+		Location[] locations = new Location[mailIds.length];
+		for (int i = 0; i < mailIds.length; i++) {
+			locations[i] = messages.get(mailIds[i]);
+			if (locations[i] == null) {
+				return -1;
+			}
+		}
+
+		/* Write a tombstone for each message, then make them durable together */
+		try {
+			for (int i = 0; i < mailIds.length; i++) {
+				append(tombstone(maildropId, mailIds[i],
+						locations[i].segment.getId()));
+			}
+			active.force();
+		} catch (IOException e) {
+			log.error(ERROR_SEGMENT + ": " + e.getMessage());
+			return -1;
+		}
+
+		/* Drop the messages from the index once the tombstones are safe */
+		for (int i = 0; i < mailIds.length; i++) {
+			messages.remove(mailIds[i]);
+			locations[i].segment.addDeadBytes(locations[i].recordLength);
+		}
+		return mailIds.length;
+	}
+
+	@Override
+	public synchronized int numMessages(int maildropId) {
+		TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+		return (messages == null) ? 0 : messages.size();
+	}
+
+	@Override
+	public synchronized int sizeOfMaildrop(int maildropId) {
+		TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+		if (messages == null) {
+			return 0;
+		}
+
+		long size = 0;
+		for (Location location : messages.values()) {
+			size += location.size;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public MaildropIndex getMaildropIndex(int maildropId) {
+		String username = accounts.nameOf(maildropId);
+		if (username == null) {
+			return null;
+		}
+		acceptIncoming(username);
+
+		synchronized (this) {
+			MaildropIndex index = new MaildropIndex(maildropId);
+			TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+			if (messages != null) {
+				for (Map.Entry<Integer, Location> message : messages.entrySet()) {
+					Location location = message.getValue();
+					index.add(message.getKey(), location.size, location.uidl);
+				}
+			}
+			return index;
+		}
+	}
+
+	@Override
+	public String getMessage(int maildropId, int mailId) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (!writeMessage(maildropId, mailId, out)) {
+				return null;
+			}
+		} catch (IOException e) {
+			log.error(ERROR_SEGMENT + ": " + e.getMessage());
+			return null;
+		}
+
+		/* Present LF line endings, as messages are stored in the MySQL database */
+		return new String(out.toByteArray(), CHARSET).replace("\r\n", "\n");
+	}
+
+	@Override
+	public boolean writeMessage(int maildropId, int mailId, OutputStream out)
+			throws IOException {
+		ByteBuffer wire = mapWireMessage(maildropId, mailId);
+		if (wire == null) {
+			return false;
+		}
+
+		InputStream in = new DotUnstuffingInputStream(new BufferInputStream(
+				wire));
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean writeMessageTop(int maildropId, int mailId, int lines,
+			OutputStream out) throws IOException {
+		ByteBuffer wire;
+		int headerLength;
+		synchronized (this) {
+			TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+			Location location = (messages == null) ? null : messages
+					.get(mailId);
+			if (location == null) {
+				return false;
+			}
+			wire = location.segment.slice(location.contentOffset,
+					location.wireLength);
+			headerLength = location.headerLength;
+		}
+
+		/* Only the header and the requested lines are read from the mapping */
+		MessageTop.write(new DotUnstuffingInputStream(new BufferInputStream(
+				wire)), headerLength, lines, out);
+		return true;
+	}
+
+	@Override
+	public FileChannel openWireMessage(int maildropId, int mailId) {
+		/* Messages share segment files, they are mapped instead */
+		return null;
+	}
+
+	@Override
+	public synchronized ByteBuffer mapWireMessage(int maildropId, int mailId)
+			throws IOException {
+		TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+		Location location = (messages == null) ? null : messages.get(mailId);
+		if (location == null) {
+			return null;
+		}
+		return location.segment.slice(location.contentOffset,
+				location.wireLength);
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return Files.isDirectory(segmentDir);
+	}
+
+	@Override
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+			segments.clear();
+			maildrops.clear();
+		}
+		locked.clear();
+	}
+
+	/**
+	 * Appends a message to the specified maildrop. The message is converted
+	 * to wire form and forced to disk before it is added to the index.
+	 *
+	 * @param username
+	 *            the user account
+	 * @param message
+	 *            the content of the message
+	 * @return the id of the stored message
+	 * @throws IOException
+	 *             if the message cannot be read or stored
+	 */
+	public int deliver(String username, InputStream message)
+			throws IOException {
+		int maildropId = accounts.idOf(username);
+		if (maildropId == 0) {
+			throw new IOException(ERROR_DELIVERY + ": " + username);
+		}
+
+		/* Encode the message before taking the store lock */
+		ByteArrayOutputStream wireOut = new ByteArrayOutputStream();
+		DotStuffingOutputStream wire = new DotStuffingOutputStream(wireOut);
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = message.read(buffer)) != -1) {
+			wire.write(buffer, 0, n);
+		}
+		int size = (int) Math.min(wire.getContentLength(), Integer.MAX_VALUE);
+		int headerLength = (wire.getHeaderLength() < 0) ? size : (int) Math
+				.min(wire.getHeaderLength(), Integer.MAX_VALUE);
+		wire.finish();
+		byte[] content = wireOut.toByteArray();
+
+		synchronized (this) {
+			int mailId = nextMailId++;
+			String uidl = Integer.toHexString(maildropId) + "."
+					+ Integer.toHexString(mailId) + "."
+					+ Long.toHexString(System.currentTimeMillis());
+			ByteBuffer record = messageRecord(maildropId, mailId, size,
+					headerLength, uidl, content);
+			int recordLength = record.remaining();
+			long position = append(record);
+			active.force();
+
+			index(maildropId, mailId, new Location(active, position
+					+ HEADER_LENGTH + MESSAGE_FIELDS_LENGTH
+					+ uidl.getBytes(CHARSET).length, content.length, size,
+					headerLength, uidl, recordLength));
+			return mailId;
+		}
+	}
+
+	/**
+	 * Compacts every sealed segment whose share of dead bytes has reached the
+	 * compaction ratio. Live records are copied to a new segment without
+	 * holding the store lock, which is only taken to pick the live records
+	 * and to point the index at the copies. The copies are forced before the
+	 * old segment is removed, so a crash during compaction leaves duplicates
+	 * that replay resolves rather than losing messages.
+	 */
+	public void compact() {
+		synchronized (compaction) {
+			List<Segment> candidates = new ArrayList<>();
+			synchronized (this) {
+				for (Segment segment : segments.values()) {
+					if (segment != active
+							&& segment.getSize() > 0
+							&& segment.getDeadBytes() * 100 >= segment
+									.getSize() * compactRatio) {
+						candidates.add(segment);
+					}
+				}
+			}
+
+			Segment target = null;
+			for (Segment segment : candidates) {
+				try {
+					long live = segment.getSize() - segment.getDeadBytes();
+					if (target == null
+							|| (target.getSize() > 0 && target.getSize()
+									+ live > segmentSize)) {
+						target = compactionSegment();
+					}
+					compact(segment, target);
+				} catch (IOException e) {
+					log.error(ERROR_COMPACTION + " " + segment.getId()
+							+ ": " + e.getMessage());
+				}
+			}
+
+			/* Nothing was left to copy */
+			if (target != null && target.getSize() == 0) {
+				synchronized (this) {
+					segments.remove(target.getId());
+				}
+				try {
+					target.delete();
+				} catch (IOException e) {
+					log.error(ERROR_COMPACTION + " " + target.getId()
+							+ ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records of a segment to the compaction segment, then
+	 * removes the segment
+	 *
+	 * @param segment
+	 *            the segment to compact
+	 * @param target
+	 *            the segment the records are copied to
+	 * @throws IOException
+	 *             if the records cannot be copied
+	 */
+	private void compact(Segment segment, Segment target) throws IOException {
+		/* The segment is sealed, so its records can be read without the lock */
+		List<Record> records = readRecords(segment);
+		List<Record> kept = new ArrayList<>();
+		List<Location> locations = new ArrayList<>();
+		synchronized (this) {
+			if (!segments.containsKey(segment.getId())) {
+				return;
+			}
+			for (Record record : records) {
+				if (record.type == TYPE_MESSAGE) {
+					/* Copy the message if the index still points here */
+					TreeMap<Integer, Location> messages = maildrops
+							.get(record.maildropId);
+					Location location = (messages == null) ? null : messages
+							.get(record.mailId);
+					if (location != null && location.segment == segment
+							&& location.contentOffset == record.contentOffset) {
+						kept.add(record);
+						locations.add(location);
+					}
+				} else if (record.target != segment.getId()) {
+					/* The deleted message may still exist in a later copy */
+					Integer next = segments.ceilingKey(record.target);
+					if (next != null && next < segment.getId()) {
+						kept.add(record);
+						locations.add(null);
+					}
+				}
+			}
+		}
+
+		long[] positions = new long[kept.size()];
+		for (int i = 0; i < kept.size(); i++) {
+			Record record = kept.get(i);
+			positions[i] = target.append(segment.slice(record.offset,
+					record.length));
+		}
+		target.force();
+
+		synchronized (this) {
+			if (!segments.containsKey(segment.getId())) {
+				return;
+			}
+			for (int i = 0; i < kept.size(); i++) {
+				Record record = kept.get(i);
+				Location location = locations.get(i);
+				if (location == null) {
+					continue;
+				}
+
+				/* A message deleted during the copy is tombstoned after it */
+				TreeMap<Integer, Location> messages = maildrops
+						.get(record.maildropId);
+				if (messages == null
+						|| messages.get(record.mailId) != location) {
+					target.addDeadBytes(record.length);
+					continue;
+				}
+				messages.put(record.mailId, new Location(target, positions[i]
+						+ (record.contentOffset - record.offset),
+						location.wireLength, location.size,
+						location.headerLength, location.uidl, record.length));
+			}
+			segments.remove(segment.getId());
+		}
+		segment.delete();
+	}
+
+	/**
+	 * Starts a segment for compaction to copy records to, numbered before a
+	 * new active segment so that tombstones written while records are copied
+	 * are replayed after the copies
+	 *
+	 * @return the segment to copy records to
+	 * @throws IOException
+	 *             if a segment file cannot be created
+	 */
+	private synchronized Segment compactionSegment() throws IOException {
+		/* An empty active segment is taken over rather than left behind */
+		Segment target = (active.getSize() == 0) ? active : newSegment();
+		active.force();
+		roll();
+		return target;
+	}
+
+	/**
+	 * Appends messages waiting in the incoming directory of the user to the
+	 * store, in name order. A message is removed from the incoming directory
+	 * once it is durable in the store.
+	 *
+	 * @param username
+	 *            the user account
+	 */
+	private void acceptIncoming(String username) {
+		Path dir = incomingDir.resolve(username);
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException e) {
+			log.error(ERROR_DELIVERY + ": " + e.getMessage());
+			return;
+		}
+		Collections.sort(files);
+
+		for (Path file : files) {
+			try (InputStream in = new BufferedInputStream(
+					Files.newInputStream(file))) {
+				deliver(username, in);
+			} catch (IOException e) {
+				log.error(ERROR_DELIVERY + ": " + e.getMessage());
+				continue;
+			}
+			try {
+				Files.delete(file);
+			} catch (IOException e) {
+				log.error(ERROR_DELIVERY + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the index by replaying every segment in order. Incomplete or
+	 * corrupt records at the end of the newest segment are truncated.
+	 *
+	 * @throws IOException
+	 *             if a segment cannot be read
+	 */
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				segmentDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				int id = Integer.parseInt(name.substring(
+						SEGMENT_PREFIX.length(),
+						name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, new Segment(id, file));
+			}
+		}
+
+		for (Segment segment : segments.values()) {
+			List<Record> records = readRecords(segment);
+			for (Record record : records) {
+				replay(segment, record);
+			}
+
+			long end = records.isEmpty() ? 0 : records.get(records.size() - 1).offset
+					+ records.get(records.size() - 1).length;
+			if (end < segment.getSize()) {
+				log.error(ERROR_CORRUPT + " " + segment.getId());
+				if (segment.getId() == segments.lastKey()) {
+					segment.truncate(end);
+				} else {
+					segment.addDeadBytes(segment.getSize() - end);
+				}
+			}
+		}
+
+		if (segments.isEmpty()) {
+			roll();
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+	}
+
+	/**
+	 * Applies a record read from a segment to the index
+	 *
+	 * @param segment
+	 *            the segment holding the record
+	 * @param record
+	 *            the record
+	 */
+	private void replay(Segment segment, Record record) {
+		TreeMap<Integer, Location> messages = maildrops.get(record.maildropId);
+		if (record.type == TYPE_MESSAGE) {
+			nextMailId = Math.max(nextMailId, record.mailId + 1);
+			Location replaced = index(record.maildropId, record.mailId,
+					new Location(segment, record.contentOffset,
+							record.wireLength, record.size,
+							record.headerLength, record.uidl, record.length));
+			if (replaced != null) {
+				/* A copy left by an interrupted compaction */
+				replaced.segment.addDeadBytes(replaced.recordLength);
+			}
+		} else if (messages != null) {
+			/* Mail ids are never reused, so a later copy is deleted as well */
+			Location location = messages.get(record.mailId);
+			if (location != null && location.segment.getId() >= record.target) {
+				messages.remove(record.mailId);
+				location.segment.addDeadBytes(location.recordLength);
+			}
+		}
+	}
+
+	/**
+	 * Adds a message to the index
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the id of the message
+	 * @param location
+	 *            where the message is stored
+	 * @return the location previously held for the message, if any
+	 */
+	private Location index(int maildropId, int mailId, Location location) {
+		TreeMap<Integer, Location> messages = maildrops.get(maildropId);
+		if (messages == null) {
+			messages = new TreeMap<>();
+			maildrops.put(maildropId, messages);
+		}
+		return messages.put(mailId, location);
+	}
+
+	/**
+	 * Reads the valid records of a segment, stopping at the first record
+	 * that is incomplete or fails its checksum
+	 *
+	 * @param segment
+	 *            the segment to read
+	 * @return the records of the segment, in order
+	 * @throws IOException
+	 *             if the segment cannot be mapped
+	 */
+	private static List<Record> readRecords(Segment segment)
+			throws IOException {
+		List<Record> records = new ArrayList<>();
+		ByteBuffer data = segment.slice(0, (int) segment.getSize());
+		byte[] chunk = new byte[8192];
+
+		while (data.remaining() >= HEADER_LENGTH + CRC_LENGTH) {
+			int start = data.position();
+			if (data.getInt() != MAGIC) {
+				break;
+			}
+
+			Record record = new Record();
+			record.offset = start;
+			record.type = data.get();
+			record.maildropId = data.getInt();
+			record.mailId = data.getInt();
+			if (record.type == TYPE_MESSAGE) {
+				if (data.remaining() < MESSAGE_FIELDS_LENGTH) {
+					break;
+				}
+				record.size = data.getInt();
+				record.headerLength = data.getInt();
+				byte[] uidl = new byte[data.getShort() & 0xFFFF];
+				if (data.remaining() < uidl.length + 4) {
+					break;
+				}
+				data.get(uidl);
+				record.uidl = new String(uidl, CHARSET);
+				record.wireLength = data.getInt();
+				record.contentOffset = data.position();
+				if (record.wireLength < 0
+						|| data.remaining() < record.wireLength + CRC_LENGTH) {
+					break;
+				}
+				data.position(data.position() + record.wireLength);
+			} else if (record.type == TYPE_TOMBSTONE) {
+				if (data.remaining() < TOMBSTONE_FIELDS_LENGTH + CRC_LENGTH) {
+					break;
+				}
+				record.target = data.getInt();
+			} else {
+				break;
+			}
+
+			/* Check the record against its checksum */
+			int end = data.position();
+			CRC32 crc = new CRC32();
+			ByteBuffer covered = data.duplicate();
+			covered.position(start + 4);
+			covered.limit(end);
+			while (covered.hasRemaining()) {
+				int n = Math.min(chunk.length, covered.remaining());
+				covered.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+			if (data.getInt() != (int) crc.getValue()) {
+				break;
+			}
+
+			record.length = data.position() - start;
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new segment if the
+	 * active one is full
+	 *
+	 * @param record
+	 *            the record to append
+	 * @return the position of the record in the active segment
+	 * @throws IOException
+	 *             if the record cannot be written
+	 */
+	private long append(ByteBuffer record) throws IOException {
+		if (record.remaining() > MAX_SEGMENT_SIZE) {
+			throw new IOException(ERROR_MESSAGE_TOO_LARGE);
+		}
+		if (active.getSize() > 0
+				&& active.getSize() + record.remaining() > segmentSize) {
+			active.force();
+			roll();
+		}
+		return active.append(record);
+	}
+
+	/**
+	 * Starts a new active segment
+	 *
+	 * @throws IOException
+	 *             if the segment file cannot be created
+	 */
+	private void roll() throws IOException {
+		active = newSegment();
+	}
+
+	/**
+	 * Creates a segment numbered after every existing segment
+	 *
+	 * @return the new segment
+	 * @throws IOException
+	 *             if the segment file cannot be created
+	 */
+	private Segment newSegment() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, segmentDir.resolve(String.format(
+				"%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Builds a message record
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the id of the message
+	 * @param size
+	 *            the size of the message in octets
+	 * @param headerLength
+	 *            the length of the message header in octets
+	 * @param uidl
+	 *            the unique id of the message
+	 * @param content
+	 *            the wire form of the message
+	 * @return the record, ready to be written
+	 */
+	private static ByteBuffer messageRecord(int maildropId, int mailId,
+			int size, int headerLength, String uidl, byte[] content) {
+		byte[] uidlBytes = uidl.getBytes(CHARSET);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH
+				+ MESSAGE_FIELDS_LENGTH + uidlBytes.length + content.length
+				+ CRC_LENGTH);
+		record.putInt(MAGIC).put(TYPE_MESSAGE).putInt(maildropId)
+				.putInt(mailId).putInt(size).putInt(headerLength)
+				.putShort((short) uidlBytes.length).put(uidlBytes)
+				.putInt(content.length).put(content);
+		return seal(record);
+	}
+
+	/**
+	 * Builds a tombstone record
+	 *
+	 * @param maildropId
+	 *            the id of the maildrop containing the message
+	 * @param mailId
+	 *            the id of the deleted message
+	 * @param target
+	 *            the segment holding the deleted message
+	 * @return the record, ready to be written
+	 */
+	private static ByteBuffer tombstone(int maildropId, int mailId, int target) {
+		ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH
+				+ TOMBSTONE_FIELDS_LENGTH + CRC_LENGTH);
+		record.putInt(MAGIC).put(TYPE_TOMBSTONE).putInt(maildropId)
+				.putInt(mailId).putInt(target);
+		return seal(record);
+	}
+
+	/**
+	 * Adds the checksum to a record and prepares it for writing
+	 *
+	 * @param record
+	 *            the record, with room left for the checksum
+	 * @return the record, ready to be written
+	 */
+	private static ByteBuffer seal(ByteBuffer record) {
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.position() - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Where the wire form of a message is stored
+	 */
+	private static final class Location {
+		private final Segment segment;
+		private final long contentOffset;
+		private final int wireLength;
+		private final int size;
+		private final int headerLength;
+		private final String uidl;
+		private final int recordLength;
+
+		private Location(Segment segment, long contentOffset, int wireLength,
+				int size, int headerLength, String uidl, int recordLength) {
+			this.segment = segment;
+			this.contentOffset = contentOffset;
+			this.wireLength = wireLength;
+			this.size = size;
+			this.headerLength = headerLength;
+			this.uidl = uidl;
+			this.recordLength = recordLength;
+		}
+	}
+
+	/**
+	 * Stream reading the remaining content of a buffer
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
+	/**
+	 * A record read from a segment
+	 */
+	private static final class Record {
+		private int offset;
+		private int length;
+		private byte type;
+		private int maildropId;
+		private int mailId;
+		private int size;
+		private int headerLength;
+		private String uidl;
+		private int contentOffset;
+		private int wireLength;
+		private int target;
+	}
+}
@@ -0,0 +1,68 @@
+public class ServerConfig {
+	/* Prefix of every server property */
+	private static final String PREFIX = "pop3.";
+
+	/* System Messages */
+	private static final String ERROR_INVALID_VALUE = "An invalid value was specified for the property ";
+
+	/**
+	 * Prevents instantiation, the configuration is read through static methods
+	 */
+	private ServerConfig() {
+	}
+
+	/**
+	 * Gets a string setting. Settings are passed to the server as system
+	 * properties, for example -Dpop3.db.url=jdbc:mysql://localhost/mail
+	 *
+	 * @param key
+	 *            the name of the setting, without the "pop3." prefix
+	 * @param defaultValue
+	 *            the value to use if the setting is not specified
+	 * @return the value of the setting
+	 */
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		return (value == null || value.isEmpty()) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Gets an integer setting
+	 *
+	 * @param key
+	 *            the name of the setting, without the "pop3." prefix
+	 * @param defaultValue
+	 *            the value to use if the setting is not specified
+	 * @return the value of the setting
+	 * @throws IllegalArgumentException
+	 *             if the setting is not a valid integer
+	 */
+	public static int getInt(String key, int defaultValue)
+			throws IllegalArgumentException {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(ERROR_INVALID_VALUE + PREFIX
+					+ key);
+		}
+	}
+
+	/**
+	 * Gets a boolean setting
+	 *
+	 * @param key
+	 *            the name of the setting, without the "pop3." prefix
+	 * @param defaultValue
+	 *            the value to use if the setting is not specified
+	 * @return the value of the setting
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
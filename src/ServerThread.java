@@ -1,102 +1,324 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable {
 	/* System Messages */
-	private static final String INFO_USER_TIMEOUT = "User timed out";
-	private static final String INFO_USER_CONNECTED = "User connected";
-	private static final String INFO_USER_DISCONNECTED = "User disconnected";
 	private static final String SERVER_WELCOME = "+OK POP3 server ready";
-	private static final String ERROR_STREAM = "Unable to open or close the network stream.";
 	private static final String ERROR_SOCKET_STREAM_CLOSE = "Unable to close a socket or stream.";
+	private static final String ERROR_LINE_TOO_LONG = "-ERR command line too long";
+
+	/* How a session ended, as written to the access log */
+	private static final String END_QUIT = "quit";
+	private static final String END_TIMEOUT = "timeout";
+	private static final String END_CLOSED = "closed";
+	private static final String END_ERROR = "error";
+
+	/* Session limits */
+	private static final int READ_BUFFER_SIZE = 1024;
 	
 	/* Thread members */
 	private Socket socket;
-	private InputStreamReader streamReader;
-	private PrintWriter out;
-	private BufferedReader in;
+	private BufferedOutputStream out;
+	private InputStream in;
+	private byte[] readBuffer;
+	private int readPosition;
+	private int readLimit;
 	private ICommandInterpreter interpreter;
+	private AdmissionController admission;
+	private Metrics metrics;
+	private AccessLog log;
+	private long sessionId;
+	private long startTime;
+	private int commands;
+	private long bytesIn;
+	private CountingOutputStream counter;
+	private StreamResponseSink sink;
+	private TlsContext tls;
+	private SessionTimeouts timeouts;
+	private TimingWheel.Timeout idle;
+	private volatile boolean timedOut;
 
 	/**
-	 * Initialises the thread with a name and sets the timeout for socket
+	 * Initialises the session and starts its idle timeout. The session is run
+	 * by a platform or virtual thread supplied by the server, while the
+	 * timeout is tracked by a timing wheel shared by every session, which
+	 * closes the socket when it expires.
 	 * 
 	 * @param socket
 	 *            the socket object for this thread
-	 * @param timeout
-	 *            the number of seconds of inactivity before closing the socket
-	 * @throws SocketException
-	 *             if a timeout cannot be established
+	 * @param timeouts
+	 *            the idle timeouts of each session state
+	 * @param wheel
+	 *            the timing wheel tracking the idle timeouts
+	 * @param database
+	 *            the database used by the session
+	 * @param admission
+	 *            the admission controller to release the session to when it
+	 *            ends
+	 * @param tls
+	 *            the TLS settings of the server, null if TLS is off
 	 */
-	public ServerThread(Socket socket, int timeout) throws SocketException {
-		super("Pop3ServerThread <" + socket.getInetAddress() + ">");
-		
+	public ServerThread(Socket socket, SessionTimeouts timeouts,
+			TimingWheel wheel, IDatabase database,
+			AdmissionController admission, TlsContext tls) {
 		/* Configure the class */
 		this.socket = socket;
-		interpreter = new CommandInterpreter();
-		this.socket.setSoTimeout(timeout * 1000);
-		
-		/* Server connection message */
-		System.out.println("[" + socket.getInetAddress() + "] "
-				+ INFO_USER_CONNECTED);
+		this.admission = admission;
+		this.tls = tls;
+		this.timeouts = timeouts;
+		metrics = Metrics.getInstance();
+		interpreter = new CommandInterpreter(database, socket.getInetAddress());
+
+		/* The session is written to the access log when it ends */
+		log = AccessLog.getInstance();
+		sessionId = log.nextSessionId();
+		startTime = System.nanoTime();
+
+		/* The first command is due soon after connecting */
+		idle = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				timedOut = true;
+				try {
+					ServerThread.this.socket.close();
+				} catch (IOException e) {
+					/* The session is ending anyway */
+				}
+			}
+		}, timeouts.getFirstCommandMillis());
 	}
 
 	/**
 	 * Establishes input and output streams to/from the client and waits for
 	 * user commands over the socket. Commands are then parsed using the
 	 * CommandInterpreter and server responses are sent back over the network to
-	 * the client.
+	 * the client. Responses are buffered until every command already received
+	 * from a pipelining client has been handled. With implicit TLS the
+	 * handshake is completed before the welcome message; otherwise the client
+	 * can upgrade the connection with STLS.
 	 * 
-	 * If the specified timeout for the socket was reached, the user will be
-	 * disconnected and the thread will end, closing any streams and sockets
-	 * used in the execution of the thread.
+	 * If the session is idle for longer than the timeout of its state, the
+	 * user will be disconnected and the thread will end, closing any streams
+	 * and sockets used in the execution of the thread. The timeout doesn't run
+	 * while a command is being handled. The session is then written to the
+	 * access log.
 	 */
 	@Override
 	public void run() {
+		String end = END_CLOSED;
 		try {
 			/* Initialise the network streams */
-			streamReader = new InputStreamReader(socket.getInputStream());
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(streamReader);
-			String input, output;
+			in = socket.getInputStream();
+			counter = new CountingOutputStream(socket.getOutputStream(),
+					metrics);
+			out = new BufferedOutputStream(counter);
+			readBuffer = new byte[READ_BUFFER_SIZE];
+			if (tls != null && tls.isImplicit()) {
+				startTls();
+			} else {
+				interpreter.setTlsAvailable(tls != null);
+				sink = new StreamResponseSink(out, socket.getChannel());
+			}
+			Command command = new Command();
 
 			/* Send a welcome message */
-			out.println(SERVER_WELCOME);
+			sink.writeLine(SERVER_WELCOME);
+			out.flush();
 			
 			/* Thread-blocking while loop waits for commands from the client */
-			while ((input = in.readLine()) != null) {
+			while (readCommand(command)) {
 				/* Handle the client command */
-				output = interpreter.handleInput(input);
-				out.println(output);
-				
+				idle.suspend();
+				interpreter.handleInput(command, sink);
+				commands++;
+				idle.reset(timeouts.getIdleMillis(interpreter));
+
 				/* Check for a QUIT command */
-				if (input.startsWith("QUIT")) {
+				if (command.getVerb() == Verb.QUIT) {
+					end = END_QUIT;
 					break;
 				}
+
+				/*
+				 * After STLS the handshake starts once the response is sent.
+				 * Anything the client sent before the handshake is dropped so
+				 * it can't be taken as a command over TLS.
+				 */
+				if (interpreter.isStartingTls()) {
+					out.flush();
+					readPosition = 0;
+					readLimit = 0;
+					startTls();
+					continue;
+				}
+
+				/*
+				 * Pipelined commands already received are handled before
+				 * flushing, so their responses leave in as few writes as
+				 * possible
+				 */
+				if (!hasBufferedLine()) {
+					out.flush();
+				}
 			}
-		} catch (SocketTimeoutException e) {
-			interpreter.close();
-			System.out.println("[" + socket.getInetAddress() + "] "
-					+ INFO_USER_TIMEOUT);
+
+			/* A full buffer without a line terminator cannot be a command */
+			if (readPosition == 0 && readLimit == readBuffer.length) {
+				sink.writeLine(ERROR_LINE_TOO_LONG);
+			}
+			out.flush();
 		} catch (IOException e) {
-			System.err.println(ERROR_STREAM);
+			/* An expired timeout closes the socket under the session */
+			end = timedOut ? END_TIMEOUT : END_ERROR;
 		} finally {
+			idle.cancel();
+
+			/* A session that ends without QUIT releases its maildrop */
+			if (end != END_QUIT) {
+				interpreter.close();
+			}
 			try {
-				/* Close any open streams */
-				streamReader.close();
-				in.close();
-				out.close();
+				/* Close any open streams, output first so TLS can say goodbye */
+				if (out != null) {
+					out.close();
+				}
+				if (in != null) {
+					in.close();
+				}
 				socket.close();
 			} catch (IOException e) {
-				System.err.println(ERROR_SOCKET_STREAM_CLOSE);
+				log.error(ERROR_SOCKET_STREAM_CLOSE);
 			} finally {
-				System.out.println("[" + socket.getInetAddress() + "] "
-						+ INFO_USER_DISCONNECTED);
+				admission.release(socket.getInetAddress());
+				log.session(sessionId, socket.getInetAddress(),
+						interpreter.getUsername(), commands, bytesIn,
+						bytesOut(), System.nanoTime() - startTime, end);
+			}
+		}
+	}
+
+	/**
+	 * Completes the TLS handshake and moves the session onto TLS. Responses
+	 * are counted before they are encrypted, and are written through the
+	 * stream since file regions can't be sent to the channel directly.
+	 * 
+	 * @throws IOException
+	 *             if the handshake fails or the connection is closed
+	 */
+	private void startTls() throws IOException {
+		TlsStreams streams = new TlsStreams(tls.newCodec(),
+				socket.getInputStream(), socket.getOutputStream());
+		streams.handshake();
+		in = streams.getInputStream();
+		counter.redirect(streams.getOutputStream());
+		sink = new StreamResponseSink(out, null);
+	}
+
+	/**
+	 * Reads the next command line from the client into the command, without
+	 * creating any objects
+	 * 
+	 * @param command
+	 *            the command to decode the line into
+	 * @return true if a command was read, false if the client closed the
+	 *         connection or sent a line longer than the read buffer
+	 * @throws IOException
+	 *             if the socket cannot be read
+	 */
+	private boolean readCommand(Command command) throws IOException {
+		int scanned = readPosition;
+		while (true) {
+			for (int i = scanned; i < readLimit; i++) {
+				if (readBuffer[i] == '\n') {
+					command.decode(readBuffer, readPosition, i - readPosition);
+					readPosition = i + 1;
+					return true;
+				}
+			}
+
+			/* Move the start of a partial line to the front of the buffer */
+			if (readPosition > 0) {
+				System.arraycopy(readBuffer, readPosition, readBuffer, 0,
+						readLimit - readPosition);
+				readLimit -= readPosition;
+				readPosition = 0;
+			}
+			if (readLimit == readBuffer.length) {
+				return false;
+			}
+
+			scanned = readLimit;
+			int n = in.read(readBuffer, readLimit, readBuffer.length
+					- readLimit);
+			if (n < 0) {
+				return false;
+			}
+			metrics.addBytesIn(n);
+			bytesIn += n;
+			readLimit += n;
+		}
+	}
+
+	/**
+	 * Gets the number of bytes sent to the client, through the stream or
+	 * directly to the channel
+	 * 
+	 * @return the bytes written
+	 */
+	private long bytesOut() {
+		long written = (counter == null) ? 0 : counter.count;
+		return (sink == null) ? written : written + sink.getChannelBytes();
+	}
+
+	/**
+	 * Checks if a complete command line has already been received
+	 * 
+	 * @return true if the read buffer holds another command line
+	 */
+	private boolean hasBufferedLine() {
+		for (int i = readPosition; i < readLimit; i++) {
+			if (readBuffer[i] == '\n') {
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * Stream that counts the bytes written to the client
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private final Metrics metrics;
+		private long count;
+
+		private CountingOutputStream(OutputStream out, Metrics metrics) {
+			super(out);
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Sends further writes to another stream, keeping the count
+		 */
+		private void redirect(OutputStream target) {
+			out = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			metrics.addBytesOut(1);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			metrics.addBytesOut(len);
+			count += len;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionExecutors {
+	/* Thread modes */
+	public static final String THREADS_PLATFORM = "platform";
+	public static final String THREADS_VIRTUAL = "virtual";
+
+	/* How long an idle platform session thread is kept, in seconds */
+	private static final long KEEP_ALIVE = 60;
+
+	/* System Messages */
+	private static final String ERROR_INVALID_THREADS = "An invalid thread mode was specified. Mode must be platform or virtual.";
+	private static final String ERROR_NO_VIRTUAL_THREADS = "Virtual threads require Java 21 or later.";
+
+	/**
+	 * Prevents instantiation, executors are created through static methods
+	 */
+	private SessionExecutors() {
+	}
+
+	/**
+	 * Checks that a thread mode is valid
+	 *
+	 * @param threads
+	 *            the thread mode, platform or virtual
+	 * @throws IllegalArgumentException
+	 *             if the thread mode is not valid or not supported by the
+	 *             running JVM
+	 */
+	public static void validate(String threads) throws IllegalArgumentException {
+		if (threads.equals(THREADS_VIRTUAL)) {
+			newVirtualThreadExecutor().shutdown();
+		} else if (!threads.equals(THREADS_PLATFORM)) {
+			throw new IllegalArgumentException(ERROR_INVALID_THREADS);
+		}
+	}
+
+	/**
+	 * Creates an executor for sessions. Platform threads are pooled, up to
+	 * maxThreads, with up to queueSize sessions waiting for a free thread;
+	 * further sessions are rejected with a RejectedExecutionException.
+	 * Virtual threads are cheap enough that every session gets its own, so
+	 * only the server's session limit applies.
+	 *
+	 * @param threads
+	 *            the thread mode, platform or virtual
+	 * @param name
+	 *            the name prefix of platform threads
+	 * @param maxThreads
+	 *            the maximum number of platform threads
+	 * @param queueSize
+	 *            the maximum number of sessions waiting for a platform thread
+	 * @return the executor
+	 */
+	public static ExecutorService newSessionExecutor(String threads,
+			String name, int maxThreads, int queueSize) {
+		if (threads.equals(THREADS_VIRTUAL)) {
+			return newVirtualThreadExecutor();
+		}
+		if (maxThreads <= 0 || queueSize < 0) {
+			throw new IllegalArgumentException(
+					"An invalid session thread limit was specified.");
+		}
+
+		BlockingQueue<Runnable> queue = (queueSize == 0) ? new SynchronousQueue<Runnable>()
+				: new ArrayBlockingQueue<Runnable>(queueSize);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads,
+				maxThreads, KEEP_ALIVE, TimeUnit.SECONDS, queue,
+				newThreadFactory(name, false));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new virtual thread. The
+	 * server is built for Java 7 so the executor is looked up reflectively.
+	 *
+	 * @return the executor
+	 * @throws IllegalArgumentException
+	 *             if the running JVM does not support virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor()
+			throws IllegalArgumentException {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException(ERROR_NO_VIRTUAL_THREADS);
+		}
+	}
+
+	/**
+	 * Creates a factory of named platform threads
+	 *
+	 * @param name
+	 *            the name prefix of the threads
+	 * @param daemon
+	 *            true if the threads should not keep the process alive
+	 * @return the thread factory
+	 */
+	public static ThreadFactory newThreadFactory(final String name,
+			final boolean daemon) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-"
+						+ count.incrementAndGet());
+				thread.setDaemon(daemon);
+				return thread;
+			}
+		};
+	}
+}
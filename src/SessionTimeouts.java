@@ -0,0 +1,75 @@
+public class SessionTimeouts {
+	/* Default limits of the shorter timeouts, in seconds */
+	private static final int DEFAULT_FIRST_COMMAND = 30;
+	private static final int DEFAULT_AUTHORIZATION = 60;
+
+	/* Timeouts, in milliseconds */
+	private final long firstCommand;
+	private final long authorization;
+	private final long transaction;
+
+	/**
+	 * Reads the idle timeouts of sessions from the configuration. A session
+	 * must send its first command within pop3.timeout.firstCommand seconds of
+	 * connecting, which includes any implicit TLS handshake. After that it may
+	 * be idle for pop3.timeout.authorization seconds until it has logged in,
+	 * and pop3.timeout.transaction seconds once it has. The first two default
+	 * to 30 and 60 seconds, or the server timeout if that is shorter; the
+	 * last defaults to the server timeout.
+	 *
+	 * @param timeout
+	 *            the timeout given to the server, in seconds
+	 * @throws IllegalArgumentException
+	 *             if a timeout is not greater than zero
+	 */
+	public SessionTimeouts(int timeout) throws IllegalArgumentException {
+		this(ServerConfig.getInt("timeout.firstCommand", Math.min(timeout,
+				DEFAULT_FIRST_COMMAND)), ServerConfig.getInt(
+				"timeout.authorization", Math.min(timeout,
+						DEFAULT_AUTHORIZATION)), ServerConfig.getInt(
+				"timeout.transaction", timeout));
+	}
+
+	/**
+	 * Creates the idle timeouts of sessions
+	 *
+	 * @param firstCommand
+	 *            the seconds from connecting to the first command
+	 * @param authorization
+	 *            the seconds a session may be idle before logging in
+	 * @param transaction
+	 *            the seconds a session may be idle after logging in
+	 * @throws IllegalArgumentException
+	 *             if a timeout is not greater than zero
+	 */
+	public SessionTimeouts(int firstCommand, int authorization, int transaction)
+			throws IllegalArgumentException {
+		if (firstCommand <= 0 || authorization <= 0 || transaction <= 0) {
+			throw new IllegalArgumentException(
+					"An invalid session timeout was specified. Timeouts must be greater than zero.");
+		}
+		this.firstCommand = firstCommand * 1000L;
+		this.authorization = authorization * 1000L;
+		this.transaction = transaction * 1000L;
+	}
+
+	/**
+	 * Gets the time a new connection has to send its first command
+	 *
+	 * @return the timeout, in milliseconds
+	 */
+	public long getFirstCommandMillis() {
+		return firstCommand;
+	}
+
+	/**
+	 * Gets the time a session may be idle in its current state
+	 *
+	 * @param interpreter
+	 *            the interpreter of the session
+	 * @return the timeout, in milliseconds
+	 */
+	public long getIdleMillis(ICommandInterpreter interpreter) {
+		return interpreter.isAuthorised() ? transaction : authorization;
+	}
+}
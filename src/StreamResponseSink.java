@@ -0,0 +1,117 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+public class StreamResponseSink implements IResponseSink {
+	/* Encoding of response lines */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/* Sink members */
+	private OutputStream out;
+	private WritableByteChannel channel;
+	private long channelBytes;
+
+	/**
+	 * Creates a sink writing to the specified stream. The stream is not
+	 * flushed by the sink, the session flushes it once a response is
+	 * complete.
+	 *
+	 * @param out
+	 *            the stream to write responses to
+	 */
+	public StreamResponseSink(OutputStream out) {
+		this(out, null);
+	}
+
+	/**
+	 * Creates a sink writing to the specified stream, which sends files
+	 * directly to the channel underlying the stream
+	 *
+	 * @param out
+	 *            the stream to write responses to
+	 * @param channel
+	 *            the channel the stream writes to, null if there isn't one
+	 */
+	public StreamResponseSink(OutputStream out, WritableByteChannel channel) {
+		this.out = out;
+		this.channel = channel;
+	}
+
+	@Override
+	public void writeLine(String line) throws IOException {
+		out.write(line.getBytes(CHARSET));
+		out.write(CRLF);
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		if (channel != null) {
+			/* Buffered response lines must reach the client first */
+			out.flush();
+			while (data.hasRemaining()) {
+				int n = channel.write(data);
+				Metrics.getInstance().addBytesOut(n);
+				channelBytes += n;
+			}
+		} else if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+			data.position(data.limit());
+		} else {
+			byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+			while (data.hasRemaining()) {
+				int n = Math.min(chunk.length, data.remaining());
+				data.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+		}
+	}
+
+	@Override
+	public void transferFrom(FileChannel file, long position, long count)
+			throws IOException {
+		WritableByteChannel target;
+		if (channel != null) {
+			/* Buffered response lines must reach the client first */
+			out.flush();
+			target = channel;
+		} else {
+			target = Channels.newChannel(out);
+		}
+
+		long end = position + count;
+		while (position < end) {
+			long n = file.transferTo(position, end - position, target);
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			position += n;
+
+			/* Bytes sent past the session's stream are counted here */
+			if (target == channel) {
+				Metrics.getInstance().addBytesOut(n);
+				channelBytes += n;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of bytes sent directly to the channel, past the stream
+	 *
+	 * @return the bytes written to the channel
+	 */
+	public long getChannelBytes() {
+		return channelBytes;
+	}
+}
@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class StripedCounter {
+	/* Longs per stripe, so each stripe sits on its own cache line */
+	private static final int PADDING = 8;
+
+	/* Counter members */
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * Creates a counter that many threads can add to without contending. Each
+	 * thread adds to one of several stripes, chosen by its id, and the stripes
+	 * are only summed when the counter is read.
+	 */
+	public StripedCounter() {
+		int n = Runtime.getRuntime().availableProcessors() * 2;
+		int stripes = Integer.highestOneBit(n);
+		if (stripes < n) {
+			stripes <<= 1;
+		}
+		cells = new AtomicLongArray(stripes * PADDING);
+		mask = stripes - 1;
+	}
+
+	/**
+	 * Adds to the counter
+	 *
+	 * @param x
+	 *            the amount to add
+	 */
+	public void add(long x) {
+		cells.getAndAdd(stripe() * PADDING, x);
+	}
+
+	/**
+	 * Adds one to the counter
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Gets the value of the counter. Additions made while the stripes are
+	 * summed may or may not be included.
+	 *
+	 * @return the sum of every stripe
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * Chooses the stripe of the current thread
+	 *
+	 * @return the stripe index
+	 */
+	private int stripe() {
+		int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
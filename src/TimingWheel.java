@@ -0,0 +1,249 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class TimingWheel {
+	/* Wheel defaults */
+	public static final long TICK_MILLIS = 500;
+	private static final int WHEEL_SIZE = 512;
+
+	/* Deadline of a timeout that is suspended */
+	private static final long NEVER = Long.MAX_VALUE;
+
+	/**
+	 * A deadline tracked by the wheel. Any thread can reset, suspend or
+	 * cancel it; resetting only records the new deadline, and the wheel moves
+	 * the timeout to the right bucket when the old one comes round.
+	 */
+	public final class Timeout {
+		private volatile Runnable task;
+		private volatile long deadline;
+		private volatile boolean cancelled;
+
+		/* Bucket links, only used by the thread advancing the wheel */
+		private Timeout previous;
+		private Timeout next;
+		private int bucket = -1;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Moves the deadline to a time from now
+		 *
+		 * @param delayMillis
+		 *            the time until the timeout expires, in milliseconds
+		 */
+		public void reset(long delayMillis) {
+			long previousDeadline = deadline;
+			deadline = System.currentTimeMillis() + delayMillis;
+
+			/* A later deadline is found when the old bucket comes round */
+			if (deadline < previousDeadline) {
+				pending.add(this);
+			}
+		}
+
+		/**
+		 * Stops the timeout expiring until it is next reset
+		 */
+		public void suspend() {
+			deadline = NEVER;
+		}
+
+		/**
+		 * Removes the timeout from the wheel, so it never expires
+		 */
+		public void cancel() {
+			cancelled = true;
+			task = null;
+			pending.add(this);
+		}
+	}
+
+	/* Wheel members, only used by the thread advancing the wheel */
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long tickMillis;
+	private long tick;
+
+	/* Timeouts to link, relink or unlink, added by any thread */
+	private final Queue<Timeout> pending;
+	private volatile boolean running;
+
+	/**
+	 * Creates a hashed timing wheel with the default tick
+	 */
+	public TimingWheel() {
+		this(TICK_MILLIS);
+	}
+
+	/**
+	 * Creates a hashed timing wheel. Each bucket holds the timeouts due in
+	 * one tick, so scheduling, resetting and cancelling cost the same however
+	 * many timeouts there are. Timeouts expire up to a tick late. The wheel is
+	 * moved on by a single thread, either the one started by start or an
+	 * event loop calling advance, and timeouts expire on that thread.
+	 *
+	 * @param tickMillis
+	 *            the length of a tick, in milliseconds
+	 */
+	public TimingWheel(long tickMillis) {
+		this.tickMillis = tickMillis;
+		buckets = new Timeout[WHEEL_SIZE];
+		mask = WHEEL_SIZE - 1;
+		pending = new ConcurrentLinkedQueue<>();
+		tick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * Gets the length of a tick
+	 *
+	 * @return the tick, in milliseconds
+	 */
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Adds a timeout to the wheel
+	 *
+	 * @param task
+	 *            the task run when the timeout expires, which must not block
+	 * @param delayMillis
+	 *            the time until the timeout expires, in milliseconds
+	 * @return the timeout, used to reset or cancel it
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.currentTimeMillis()
+				+ delayMillis);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Starts a thread that moves the wheel on every tick
+	 *
+	 * @param name
+	 *            the name of the thread
+	 */
+	public void start(String name) {
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					advance(System.currentTimeMillis());
+					try {
+						Thread.sleep(tickMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread started by start
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Expires the timeouts due by a time. Each bucket is visited once its
+	 * tick has passed; timeouts found in it that were reset since they were
+	 * placed are moved to the bucket of their new deadline. Must only be
+	 * called by one thread.
+	 *
+	 * @param now
+	 *            the current time, in milliseconds
+	 */
+	public void advance(long now) {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			unlink(timeout);
+			if (!timeout.cancelled) {
+				link(timeout);
+			}
+		}
+
+		/* After a long pause a single turn of the wheel visits every bucket */
+		long last = now / tickMillis - 1;
+		if (last - tick >= WHEEL_SIZE) {
+			tick = last - WHEEL_SIZE + 1;
+		}
+
+		for (; tick <= last; tick++) {
+			int bucket = (int) tick & mask;
+			timeout = buckets[bucket];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				long deadline = timeout.deadline;
+				if (deadline <= now) {
+					unlink(timeout);
+					Runnable task = timeout.task;
+					if (task != null) {
+						task.run();
+					}
+				} else if (indexOf(deadline) != bucket) {
+					unlink(timeout);
+					link(timeout);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Gets the bucket of a deadline. A deadline already passed goes in the
+	 * next bucket visited, and one beyond a turn of the wheel, such as that of
+	 * a suspended timeout, is looked at again once a turn.
+	 */
+	private int indexOf(long deadline) {
+		long due = Math.max(deadline / tickMillis, tick);
+		if (due - tick >= WHEEL_SIZE) {
+			due = tick;
+		}
+		return (int) due & mask;
+	}
+
+	/**
+	 * Adds a timeout to the head of the bucket of its deadline
+	 */
+	private void link(Timeout timeout) {
+		int bucket = indexOf(timeout.deadline);
+		Timeout head = buckets[bucket];
+		timeout.previous = null;
+		timeout.next = head;
+		if (head != null) {
+			head.previous = timeout;
+		}
+		buckets[bucket] = timeout;
+		timeout.bucket = bucket;
+	}
+
+	/**
+	 * Removes a timeout from its bucket, if it is in one
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.bucket < 0) {
+			return;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+}
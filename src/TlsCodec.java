@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+public class TlsCodec {
+	/* Nothing to encrypt, used to produce handshake messages */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/* Codec members */
+	private final SSLEngine engine;
+	private final Metrics metrics;
+	private final ByteBuffer netIn;
+	private final ByteBuffer netOut;
+	private final ByteBuffer appIn;
+	private final long handshakeStart;
+	private final long handshakeStartMillis;
+	private boolean handshaking;
+	private boolean closed;
+
+	/**
+	 * Wraps a server-side SSLEngine for a single connection. The codec does
+	 * no I/O itself: the session reads data from the client into
+	 * getNetIn, decrypts it with unwrap and takes the plaintext with read,
+	 * and encrypts responses with wrap and sends them with writeTo. Each step
+	 * also moves the handshake on, so the same codec serves blocking streams
+	 * and non-blocking channels. Delegated tasks run on the calling thread.
+	 * The handshake starts straight away, waiting for the client's hello.
+	 *
+	 * @param engine
+	 *            the engine, in server mode
+	 * @param metrics
+	 *            the metrics the handshake is recorded in
+	 * @throws IllegalStateException
+	 *             if the handshake cannot be started
+	 */
+	public TlsCodec(SSLEngine engine, Metrics metrics) {
+		this.engine = engine;
+		this.metrics = metrics;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocate(packetSize);
+		netOut = ByteBuffer.allocate(packetSize);
+		appIn = ByteBuffer.allocate(engine.getSession()
+				.getApplicationBufferSize());
+
+		handshakeStart = System.nanoTime();
+		handshakeStartMillis = System.currentTimeMillis();
+		handshaking = true;
+		try {
+			engine.beginHandshake();
+		} catch (SSLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Gets the buffer that data received from the client is read into
+	 *
+	 * @return the buffer, ready to be filled
+	 */
+	public ByteBuffer getNetIn() {
+		return netIn;
+	}
+
+	/**
+	 * Decrypts the data received from the client, taking any handshake steps
+	 * it allows. Handshake messages to send are queued for writeTo. This stops
+	 * when more data is needed, when the plaintext buffer is full or when
+	 * queued data must be sent first.
+	 *
+	 * @return false once the client has closed TLS
+	 * @throws SSLException
+	 *             if the data is not valid TLS or the handshake fails
+	 */
+	public boolean unwrap() throws SSLException {
+		try {
+			while (true) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+				if (status == HandshakeStatus.NEED_WRAP) {
+					if (!produce(EMPTY)) {
+						return !closed;
+					}
+					continue;
+				}
+				if (netIn.position() == 0) {
+					return true;
+				}
+
+				netIn.flip();
+				SSLEngineResult result;
+				try {
+					result = engine.unwrap(netIn, appIn);
+				} finally {
+					netIn.compact();
+				}
+				finished(result);
+
+				switch (result.getStatus()) {
+				case CLOSED:
+					closed = true;
+					return false;
+				case BUFFER_UNDERFLOW:
+				case BUFFER_OVERFLOW:
+					return true;
+				default:
+					if (result.bytesConsumed() == 0
+							&& result.bytesProduced() == 0
+							&& engine.getHandshakeStatus() == status) {
+						return true;
+					}
+				}
+			}
+		} catch (SSLException e) {
+			failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypts as much of the plaintext as the output buffer holds, queuing
+	 * it for writeTo along with any handshake messages due first. Nothing is
+	 * encrypted until the handshake has finished.
+	 *
+	 * @param src
+	 *            the plaintext, advanced past the data encrypted
+	 * @throws SSLException
+	 *             if the data cannot be encrypted
+	 */
+	public void wrap(ByteBuffer src) throws SSLException {
+		try {
+			while (true) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+				if (status == HandshakeStatus.NEED_UNWRAP
+						|| (status == HandshakeStatus.NOT_HANDSHAKING && !src
+								.hasRemaining())) {
+					return;
+				}
+				if (!produce(src)) {
+					return;
+				}
+			}
+		} catch (SSLException e) {
+			failed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies decrypted data into a buffer
+	 *
+	 * @param dst
+	 *            the buffer to fill
+	 * @return the number of bytes copied
+	 */
+	public int read(ByteBuffer dst) {
+		appIn.flip();
+		int n = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		return n;
+	}
+
+	/**
+	 * Checks if decrypted data is waiting to be read
+	 *
+	 * @return true if read would copy data
+	 */
+	public boolean hasPlaintext() {
+		return appIn.position() > 0;
+	}
+
+	/**
+	 * Sends queued TLS data to the client
+	 *
+	 * @param channel
+	 *            the connection to the client
+	 * @return the number of bytes written, which may be 0 for a
+	 *         non-blocking channel that is full
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public int writeTo(WritableByteChannel channel) throws IOException {
+		netOut.flip();
+		try {
+			return channel.write(netOut);
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	/**
+	 * Checks if TLS data is waiting to be sent
+	 *
+	 * @return true if writeTo has data to send
+	 */
+	public boolean hasOutput() {
+		return netOut.position() > 0;
+	}
+
+	/**
+	 * Checks if the handshake is waiting for data from the client
+	 *
+	 * @return true if nothing more can be sent until data is received
+	 */
+	public boolean isWaitingForInput() {
+		return engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP;
+	}
+
+	/**
+	 * Checks if the first handshake is still in progress
+	 *
+	 * @return true until the handshake finishes
+	 */
+	public boolean isHandshaking() {
+		return handshaking;
+	}
+
+	/**
+	 * Queues a close_notify alert, telling the client no more data will be
+	 * sent. The caller sends it with writeTo if it can.
+	 */
+	public void closeOutbound() {
+		engine.closeOutbound();
+		try {
+			wrap(EMPTY);
+		} catch (SSLException e) {
+			/* The connection is being closed anyway */
+		}
+	}
+
+	/**
+	 * Wraps data, or a handshake message if one is due, into the output
+	 * buffer
+	 *
+	 * @param src
+	 *            the plaintext
+	 * @return true if more can be wrapped, false if the output buffer is full
+	 *         or the engine is closed
+	 * @throws SSLException
+	 *             if the data cannot be encrypted
+	 */
+	private boolean produce(ByteBuffer src) throws SSLException {
+		SSLEngineResult result = engine.wrap(src, netOut);
+		finished(result);
+		switch (result.getStatus()) {
+		case CLOSED:
+			closed = true;
+			return false;
+		case BUFFER_OVERFLOW:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Runs the slow handshake steps the engine hands back, on this thread
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Records the first handshake once a step reports it has finished. A
+	 * resumed session was created before this handshake began.
+	 *
+	 * @param result
+	 *            the result of a wrap or unwrap
+	 */
+	private void finished(SSLEngineResult result) {
+		if (handshaking
+				&& result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+			handshaking = false;
+			boolean resumed = engine.getSession().getCreationTime() < handshakeStartMillis;
+			metrics.recordTlsHandshake(System.nanoTime() - handshakeStart,
+					resumed);
+		}
+	}
+
+	/**
+	 * Records a failed handshake
+	 */
+	private void failed() {
+		if (handshaking) {
+			handshaking = false;
+			metrics.recordTlsHandshakeFailure();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+public class TlsContext {
+	/* System Messages */
+	private static final String ERROR_NO_KEYSTORE = "No TLS key store was specified. Set pop3.tls.keystore.";
+	private static final String ERROR_NO_PROTOCOLS = "None of the TLS protocols specified are supported.";
+
+	/* TLS modes */
+	public static final String MODE_OFF = "off";
+	public static final String MODE_STARTTLS = "starttls";
+	public static final String MODE_IMPLICIT = "implicit";
+
+	/* TLS defaults */
+	private static final String KEYSTORE_TYPE = "PKCS12";
+	private static final String PROTOCOLS = "TLSv1.3,TLSv1.2";
+	private static final int SESSION_CACHE_SIZE = 20000;
+	private static final int SESSION_TIMEOUT = 86400;
+	private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+	/* Context members */
+	private SSLContext context;
+	private String[] protocols;
+	private boolean implicit;
+	private Metrics metrics;
+
+	/**
+	 * Creates the TLS settings of the server from a key store holding its
+	 * private key and certificate chain
+	 *
+	 * @param keystore
+	 *            the key store file
+	 * @param type
+	 *            the type of the key store, such as PKCS12 or JKS
+	 * @param password
+	 *            the password of the key store and the key
+	 * @param protocols
+	 *            the protocols to enable, those the JVM doesn't support are
+	 *            left out
+	 * @param cacheSize
+	 *            the number of sessions kept for resumption, 0 for no limit
+	 * @param sessionTimeout
+	 *            the number of seconds a session can be resumed for
+	 * @param implicit
+	 *            true if connections start with the handshake, false if they
+	 *            are upgraded with STLS
+	 * @throws IOException
+	 *             if the key store cannot be read
+	 * @throws GeneralSecurityException
+	 *             if the key store or protocols cannot be used
+	 */
+	public TlsContext(Path keystore, String type, char[] password,
+			String[] protocols, int cacheSize, int sessionTimeout,
+			boolean implicit) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(type);
+		try (InputStream in = Files.newInputStream(keystore)) {
+			store.load(in, password);
+		}
+		KeyManagerFactory keys = KeyManagerFactory
+				.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, password);
+
+		context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+
+		/* Sessions are cached so reconnecting clients skip the full handshake */
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(cacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+
+		/* Leave out the protocols this JVM doesn't have */
+		List<String> supported = Arrays.asList(context
+				.getSupportedSSLParameters().getProtocols());
+		List<String> enabled = new ArrayList<>();
+		for (String protocol : protocols) {
+			if (supported.contains(protocol.trim())) {
+				enabled.add(protocol.trim());
+			}
+		}
+		if (enabled.isEmpty()) {
+			throw new GeneralSecurityException(ERROR_NO_PROTOCOLS);
+		}
+		this.protocols = enabled.toArray(new String[enabled.size()]);
+		this.implicit = implicit;
+		metrics = Metrics.getInstance();
+	}
+
+	/**
+	 * Creates the TLS settings from the server configuration, or returns
+	 * null if pop3.tls.mode is off. The key store is named by
+	 * pop3.tls.keystore, with its type and password in pop3.tls.keystoreType
+	 * and pop3.tls.keystorePassword. Up to pop3.tls.sessionCacheSize sessions
+	 * are kept for pop3.tls.sessionTimeout seconds so that clients polling
+	 * every few minutes resume them. Session tickets, which let a client
+	 * resume without the server keeping the session, are sent unless
+	 * pop3.tls.sessionTickets is false; this needs Java 13 or later.
+	 *
+	 * @param mode
+	 *            the TLS mode of the server
+	 * @return the TLS settings, null if TLS is off
+	 * @throws IOException
+	 *             if the key store cannot be read
+	 * @throws GeneralSecurityException
+	 *             if the key store or protocols cannot be used
+	 */
+	public static TlsContext fromConfig(String mode) throws IOException,
+			GeneralSecurityException {
+		if (mode.equals(MODE_OFF)) {
+			return null;
+		}
+
+		String keystore = ServerConfig.getString("tls.keystore", null);
+		if (keystore == null) {
+			throw new GeneralSecurityException(ERROR_NO_KEYSTORE);
+		}
+
+		/* The JDK reads the ticket setting once, before the first handshake */
+		if (System.getProperty(SESSION_TICKETS_PROPERTY) == null) {
+			System.setProperty(SESSION_TICKETS_PROPERTY, String
+					.valueOf(ServerConfig.getBoolean("tls.sessionTickets",
+							true)));
+		}
+
+		return new TlsContext(Paths.get(keystore), ServerConfig.getString(
+				"tls.keystoreType", KEYSTORE_TYPE), ServerConfig.getString(
+				"tls.keystorePassword", "").toCharArray(), ServerConfig
+				.getString("tls.protocols", PROTOCOLS).split(","),
+				ServerConfig.getInt("tls.sessionCacheSize",
+						SESSION_CACHE_SIZE), ServerConfig.getInt(
+						"tls.sessionTimeout", SESSION_TIMEOUT),
+				mode.equals(MODE_IMPLICIT));
+	}
+
+	/**
+	 * Checks if connections start with the TLS handshake rather than being
+	 * upgraded with STLS
+	 *
+	 * @return true for implicit TLS
+	 */
+	public boolean isImplicit() {
+		return implicit;
+	}
+
+	/**
+	 * Creates the TLS state of a new connection
+	 *
+	 * @return a server-side codec waiting for the client's hello
+	 */
+	public TlsCodec newCodec() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setEnabledProtocols(protocols);
+		return new TlsCodec(engine, metrics);
+	}
+}
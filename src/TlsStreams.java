@@ -0,0 +1,197 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class TlsStreams {
+	/* System Messages */
+	private static final String ERROR_CLOSED = "The connection was closed during the TLS handshake";
+
+	/* Nothing to encrypt, used to send handshake messages */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/* Stream members */
+	private final TlsCodec codec;
+	private final InputStream rawIn;
+	private final OutputStream rawOut;
+	private final ReadableByteChannel source;
+	private final WritableByteChannel target;
+	private final InputStream in;
+	private final OutputStream out;
+
+	/**
+	 * Runs TLS over the blocking streams of a connection. Reads and writes
+	 * block on the connection, so the socket timeout applies to the
+	 * handshake as it does to commands.
+	 *
+	 * @param codec
+	 *            the TLS state of the connection
+	 * @param rawIn
+	 *            the stream data from the client is read from
+	 * @param rawOut
+	 *            the stream data to the client is written to
+	 */
+	public TlsStreams(TlsCodec codec, InputStream rawIn, OutputStream rawOut) {
+		this.codec = codec;
+		this.rawIn = rawIn;
+		this.rawOut = rawOut;
+		source = Channels.newChannel(rawIn);
+		target = Channels.newChannel(rawOut);
+		in = new TlsInputStream();
+		out = new TlsOutputStream();
+	}
+
+	/**
+	 * Completes the handshake before any data is exchanged
+	 *
+	 * @throws IOException
+	 *             if the handshake fails or the connection is closed
+	 */
+	public void handshake() throws IOException {
+		while (codec.isHandshaking()) {
+			if (!codec.unwrap()) {
+				throw new EOFException(ERROR_CLOSED);
+			}
+			codec.wrap(EMPTY);
+			if (!send() && codec.isHandshaking()) {
+				receive();
+			}
+		}
+
+		/* Messages sent after the handshake, such as session tickets */
+		codec.wrap(EMPTY);
+		send();
+	}
+
+	/**
+	 * Gets the stream of decrypted data from the client
+	 *
+	 * @return the input stream
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Gets the stream that encrypts data to the client
+	 *
+	 * @return the output stream
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Writes out any queued TLS data
+	 *
+	 * @return true if anything was written
+	 * @throws IOException
+	 *             if the connection cannot be written
+	 */
+	private boolean send() throws IOException {
+		boolean sent = false;
+		while (codec.hasOutput()) {
+			codec.writeTo(target);
+			sent = true;
+		}
+		if (sent) {
+			rawOut.flush();
+		}
+		return sent;
+	}
+
+	/**
+	 * Reads more TLS data from the client, waiting for at least one byte
+	 *
+	 * @throws IOException
+	 *             if the connection is closed or cannot be read
+	 */
+	private void receive() throws IOException {
+		if (source.read(codec.getNetIn()) < 0) {
+			throw new EOFException(ERROR_CLOSED);
+		}
+	}
+
+	/**
+	 * Stream of decrypted data, which answers any TLS messages from the
+	 * client as it reads
+	 */
+	private final class TlsInputStream extends InputStream {
+		private final byte[] single = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				if (codec.hasPlaintext()) {
+					return codec.read(ByteBuffer.wrap(b, off, len));
+				}
+				if (!codec.unwrap()) {
+					return -1;
+				}
+				boolean sent = send();
+				if (!codec.hasPlaintext() && !sent
+						&& source.read(codec.getNetIn()) < 0) {
+					return -1;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			rawIn.close();
+		}
+	}
+
+	/**
+	 * Stream that encrypts data as it is written. Each write is sent as one
+	 * or more TLS records, so the stream should be buffered.
+	 */
+	private final class TlsOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				codec.wrap(src);
+				if (!send() && src.hasRemaining()) {
+					/* The engine needs a message from the client first */
+					receive();
+					codec.unwrap();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			rawOut.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			codec.closeOutbound();
+			try {
+				send();
+			} catch (IOException e) {
+				/* The client may already have closed the connection */
+			} finally {
+				rawOut.close();
+			}
+		}
+	}
+}
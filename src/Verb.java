@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+
+public enum Verb {
+	USER, PASS, QUIT, STAT, LIST, RETR, DELE, NOOP, RSET, TOP, UIDL, CAPA, STLS, UNKNOWN;
+
+	/* Verbs indexed by their packed names, built once */
+	private static final Verb[] VERBS = values();
+	private static final int[] CODES = new int[VERBS.length];
+
+	static {
+		for (int i = 0; i < VERBS.length; i++) {
+			String name = VERBS[i].name();
+			CODES[i] = (name.length() > 4) ? -1 : pack(
+					name.getBytes(StandardCharsets.US_ASCII),
+					0, name.length());
+		}
+	}
+
+	/**
+	 * Identifies a command verb without creating a string. Verbs are
+	 * compared case-insensitively, as required by RFC 1939.
+	 *
+	 * @param b
+	 *            the buffer holding the verb
+	 * @param off
+	 *            the position of the verb in the buffer
+	 * @param len
+	 *            the length of the verb
+	 * @return the verb, UNKNOWN if it isn't a POP3 command
+	 */
+	public static Verb decode(byte[] b, int off, int len) {
+		if (len < 3 || len > 4) {
+			return UNKNOWN;
+		}
+
+		int code = pack(b, off, len);
+		for (int i = 0; i < CODES.length; i++) {
+			if (CODES[i] == code) {
+				return VERBS[i];
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Packs up to four letters into an int, converting lower case letters to
+	 * upper case
+	 *
+	 * @param b
+	 *            the buffer holding the letters
+	 * @param off
+	 *            the position of the letters in the buffer
+	 * @param len
+	 *            the number of letters
+	 * @return the packed letters, -1 if a byte isn't a letter
+	 */
+	private static int pack(byte[] b, int off, int len) {
+		int code = 0;
+		for (int i = off; i < off + len; i++) {
+			int c = b[i];
+			if (c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			} else if (c < 'A' || c > 'Z') {
+				return -1;
+			}
+			code = (code << 8) | c;
+		}
+		return code;
+	}
+}